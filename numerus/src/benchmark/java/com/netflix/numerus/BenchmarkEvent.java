@@ -0,0 +1,45 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+/**
+ * The event types written to by the benchmarks.
+ */
+/* package */enum BenchmarkEvent implements NumerusRollingNumberEvent {
+    SUCCESS(true), MAX_ACTIVE(false);
+
+    private final boolean counter;
+
+    BenchmarkEvent(boolean counter) {
+        this.counter = counter;
+    }
+
+    @Override
+    public boolean isCounter() {
+        return counter;
+    }
+
+    @Override
+    public boolean isMaxUpdater() {
+        return !counter;
+    }
+
+    @Override
+    public BenchmarkEvent[] getValues() {
+        return values();
+    }
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of {@link NumerusRollingNumber#increment} with the default (striped) writes and with buffered writes.
+ * <p>
+ * Run it with <code>gradle benchmark -PbenchmarkArgs="[threads] [seconds]"</code>.
+ */
+public class NumerusRollingNumberBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        for (int round = 0; round < 3; round++) {
+            // the first round is a warm up
+            run("default ", threads, seconds, false);
+            run("buffered", threads, seconds, true);
+        }
+    }
+
+    private static void run(String name, int threads, int seconds, boolean bufferWrites) throws InterruptedException {
+        final NumerusRollingNumber counter = new NumerusRollingNumber(BenchmarkEvent.SUCCESS, NumerusClock.Factory.systemClock(),
+                NumerusProperty.Factory.asProperty(10000), NumerusProperty.Factory.asProperty(10), bufferWrites);
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    long count = 0;
+                    while (System.currentTimeMillis() < end) {
+                        for (int i = 0; i < 1000; i++) {
+                            counter.increment(BenchmarkEvent.SUCCESS);
+                        }
+                        count += 1000;
+                    }
+                    counter.flush();
+                    total.addAndGet(count);
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        done.await();
+
+        long lost = total.get() - counter.getCumulativeSum(BenchmarkEvent.SUCCESS);
+        System.out.println(name + " threads: " + threads + " increments/second: " + total.get() / seconds + " lost: " + lost);
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput of {@link NumerusRollingNumber#increment} with buckets short enough (1ms by default) that the writers keep crossing bucket boundaries, so
+ * that it measures the cost of the rotations and of the writers racing them. It also reports the increments missing from the cumulative sum, which
+ * before rotation was lock-free were those written into a stale bucket.
+ * <p>
+ * It only uses the constructor taking the properties (and the system clock) so that it can be run against earlier versions as well. Run it with
+ * <code>gradle benchmark -PbenchmarkClass=NumerusRotationBenchmark -PbenchmarkArgs="[threads] [seconds] [bucket size in milliseconds]"</code>.
+ */
+public class NumerusRotationBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int bucketSize = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        for (int round = 0; round < 3; round++) {
+            // the first round is a warm up
+            run(1, seconds, bucketSize);
+            if (threads > 1) {
+                run(threads, seconds, bucketSize);
+            }
+        }
+    }
+
+    private static void run(int threads, int seconds, int bucketSize) throws InterruptedException {
+        // boxed so that the generic asProperty is the one called, which all versions have
+        final NumerusRollingNumber counter = new NumerusRollingNumber(BenchmarkEvent.SUCCESS,
+                NumerusProperty.Factory.asProperty(Integer.valueOf(bucketSize * 10)), NumerusProperty.Factory.asProperty(Integer.valueOf(10)));
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    long count = 0;
+                    while (System.currentTimeMillis() < end) {
+                        for (int i = 0; i < 100; i++) {
+                            counter.increment(BenchmarkEvent.SUCCESS);
+                        }
+                        count += 100;
+                    }
+                    total.addAndGet(count);
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        done.await();
+        // let the last bucket close so that it is in the cumulative sum of the earlier versions too
+        Thread.sleep(bucketSize * 2);
+
+        long lost = total.get() - counter.getCumulativeSum(BenchmarkEvent.SUCCESS);
+        System.out.println("threads: " + threads + " bucket size: " + bucketSize + "ms increments/second: " + total.get() / seconds + " lost: " + lost);
+    }
+
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+/**
+ * The values of all types of a {@link NumerusRollingNumber} bucket, indexed by <code>type.ordinal()</code>, each of which is used as a sum (see {@link #add}),
+ * a max (see {@link #updateMax}) or combined by another function (see {@link #accumulate} and {@link #set}).
+ * <p>
+ * Values start at 0, which is also the floor for the max values and must be the identity of the other functions. See {@link NumerusBucketStorage} for the
+ * implementations.
+ */
+/* package */interface BucketValues {
+
+    /**
+     * The function of {@link #add}.
+     */
+    LongBinaryOperator SUM = new LongBinaryOperator() {
+
+        @Override
+        public long applyAsLong(long left, long right) {
+            return left + right;
+        }
+
+    };
+
+    /**
+     * The function of {@link #updateMax}.
+     */
+    LongBinaryOperator MAX = new LongBinaryOperator() {
+
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+
+    };
+
+    /**
+     * Adds the given value to the value at index i.
+     */
+    void add(int i, long x);
+
+    /**
+     * Updates the value at index i to the given value if it is greater.
+     */
+    void updateMax(int i, long x);
+
+    /**
+     * Updates the value at index i to the given function of it and the given value, the same way as {@link #add} and {@link #updateMax} (which are the
+     * same as this with {@link #SUM} and {@link #MAX}). The function must be associative and commutative with 0 as its identity.
+     */
+    void accumulate(int i, long x, LongBinaryOperator fn);
+
+    /**
+     * Sets the value at index i to the given value. This is not striped: the value is written to the first stripe, the others are left at 0.
+     */
+    void set(int i, long x);
+
+    /**
+     * Returns the sum of the value at index i, this is not an atomic snapshot when there are concurrent updates.
+     */
+    long sum(int i);
+
+    /**
+     * Returns the max of the value at index i.
+     */
+    long max(int i);
+
+    /**
+     * Returns the value at index i combined with the given function across the stripes, starting from the first one.
+     */
+    long reduce(int i, LongBinaryOperator fn);
+
+    /**
+     * Equivalent to {@link #sum} followed by resetting the value at index i to 0, without losing updates made concurrently.
+     */
+    long sumThenReset(int i);
+
+    /**
+     * Equivalent to {@link #max} followed by resetting the value at index i to 0, without losing updates made concurrently.
+     */
+    long maxThenReset(int i);
+
+    /**
+     * Equivalent to {@link #reduce} followed by resetting the value at index i to 0, without losing updates made concurrently.
+     */
+    long reduceThenReset(int i, LongBinaryOperator fn);
+
+    /**
+     * Returns the first index from the given one that may have a value other than 0, or the number of values if there is none. This lets the
+     * implementations that only allocate the values that are written to skip the others.
+     */
+    int next(int from);
+
+    /**
+     * Collapses the striping of the values back to a single stripe if there was no contention since the last call, so that a bucket that was contended
+     * once doesn't keep its inflated stripes (and the cost of reading them) for good. The values are folded into the first stripe with the function of
+     * their index in the given array.
+     */
+    void decay(LongBinaryOperator[] operators);
+
+}
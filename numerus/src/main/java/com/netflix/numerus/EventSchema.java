@@ -0,0 +1,214 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The types of a {@link NumerusRollingNumberEvent} split into counters, max updaters and reducers, each numbered densely from 0 (their "slot").
+ * <p>
+ * This lets the storage of a {@link NumerusRollingNumber} be sized to the number of types of each kind rather than to the number of all types, and replaces
+ * the <code>isCounter()</code>/<code>isMaxUpdater()</code>/<code>getReducer()</code> calls on the types with a lookup by <code>ordinal()</code>.
+ * <p>
+ * The schema is worked out once per class of event (see {@link #of}) and shared by all rolling numbers using it.
+ */
+/* package */final class EventSchema {
+
+    private static final ConcurrentHashMap<Class<?>, EventSchema> SCHEMAS = new ConcurrentHashMap<Class<?>, EventSchema>();
+
+    static final int NEITHER = 0;
+    static final int COUNTER = 1;
+    static final int MAX_UPDATER = 2;
+    static final int REDUCER = 3;
+
+    /** number of types, counters, max updaters and reducers as well as the types that are none of them */
+    final int length;
+    /** the counter types by slot */
+    final NumerusRollingNumberEvent[] counters;
+    /** the max updater types by slot */
+    final NumerusRollingNumberEvent[] maxUpdaters;
+    /** the ordinal of the counter types by slot */
+    final int[] counterOrdinals;
+    /** the ordinal of the max updater types by slot */
+    final int[] maxUpdaterOrdinals;
+    /** the reducer types by slot */
+    final NumerusRollingNumberEvent[] reducers;
+    /** the ordinal of the reducer types by slot */
+    final int[] reducerOrdinals;
+    /** how the values of the reducer types are combined by slot */
+    final NumerusRollingNumberReducer[] reducerFunctions;
+    /** number of values of a bucket, the counters by slot followed by the max updaters by slot and the reducers by slot */
+    final int numberOfValues;
+    /** how the values of a bucket are combined (across the stripes of the storage) by index of the value */
+    final LongBinaryOperator[] operators;
+
+    private final int[] kindForOrdinal;
+    private final int[] slotForOrdinal;
+
+    private EventSchema(NumerusRollingNumberEvent events) {
+        NumerusRollingNumberEvent[] types = events.getValues();
+        length = types.length;
+        kindForOrdinal = new int[length];
+        slotForOrdinal = new int[length];
+        int numberOfCounters = 0;
+        int numberOfMaxUpdaters = 0;
+        int numberOfReducers = 0;
+        for (NumerusRollingNumberEvent type : types) {
+            int i = type.ordinal();
+            if (type.isCounter()) {
+                kindForOrdinal[i] = COUNTER;
+                slotForOrdinal[i] = numberOfCounters++;
+            } else if (type.isMaxUpdater()) {
+                kindForOrdinal[i] = MAX_UPDATER;
+                slotForOrdinal[i] = numberOfMaxUpdaters++;
+            } else if (reducerOf(type) != null) {
+                kindForOrdinal[i] = REDUCER;
+                slotForOrdinal[i] = numberOfReducers++;
+            } else {
+                kindForOrdinal[i] = NEITHER;
+                slotForOrdinal[i] = -1;
+            }
+        }
+        counters = new NumerusRollingNumberEvent[numberOfCounters];
+        counterOrdinals = new int[numberOfCounters];
+        maxUpdaters = new NumerusRollingNumberEvent[numberOfMaxUpdaters];
+        maxUpdaterOrdinals = new int[numberOfMaxUpdaters];
+        reducers = new NumerusRollingNumberEvent[numberOfReducers];
+        reducerOrdinals = new int[numberOfReducers];
+        reducerFunctions = new NumerusRollingNumberReducer[numberOfReducers];
+        for (NumerusRollingNumberEvent type : types) {
+            int i = type.ordinal();
+            if (kindForOrdinal[i] == COUNTER) {
+                counters[slotForOrdinal[i]] = type;
+                counterOrdinals[slotForOrdinal[i]] = i;
+            } else if (kindForOrdinal[i] == MAX_UPDATER) {
+                maxUpdaters[slotForOrdinal[i]] = type;
+                maxUpdaterOrdinals[slotForOrdinal[i]] = i;
+            } else if (kindForOrdinal[i] == REDUCER) {
+                reducers[slotForOrdinal[i]] = type;
+                reducerOrdinals[slotForOrdinal[i]] = i;
+                reducerFunctions[slotForOrdinal[i]] = reducerOf(type);
+            }
+        }
+        numberOfValues = numberOfCounters + numberOfMaxUpdaters + numberOfReducers;
+        operators = new LongBinaryOperator[numberOfValues];
+        Arrays.fill(operators, 0, numberOfCounters, BucketValues.SUM);
+        Arrays.fill(operators, numberOfCounters, numberOfCounters + numberOfMaxUpdaters, BucketValues.MAX);
+        for (int s = 0; s < numberOfReducers; s++) {
+            operators[numberOfCounters + numberOfMaxUpdaters + s] = reducerFunctions[s].operator;
+        }
+    }
+
+    private static NumerusRollingNumberReducer reducerOf(NumerusRollingNumberEvent type) {
+        return type instanceof NumerusRollingNumberReducerEvent ? ((NumerusRollingNumberReducerEvent) type).getReducer() : null;
+    }
+
+    /**
+     * The schema of the types of the given event, created the first time it is asked for.
+     */
+    static EventSchema of(NumerusRollingNumberEvent events) {
+        Class<?> key = events instanceof Enum ? ((Enum<?>) events).getDeclaringClass() : events.getClass();
+        EventSchema schema = SCHEMAS.get(key);
+        if (schema == null) {
+            // if two threads race to create it they both work out the same schema
+            schema = new EventSchema(events);
+            EventSchema existing = SCHEMAS.putIfAbsent(key, schema);
+            if (existing != null) {
+                schema = existing;
+            }
+        }
+        return schema;
+    }
+
+    boolean isCounter(NumerusRollingNumberEvent type) {
+        return kindForOrdinal[type.ordinal()] == COUNTER;
+    }
+
+    boolean isMaxUpdater(NumerusRollingNumberEvent type) {
+        return kindForOrdinal[type.ordinal()] == MAX_UPDATER;
+    }
+
+    boolean isReducer(NumerusRollingNumberEvent type) {
+        return kindForOrdinal[type.ordinal()] == REDUCER;
+    }
+
+    /**
+     * @return kind of the type of the given ordinal, COUNTER, MAX_UPDATER, REDUCER or NEITHER
+     */
+    int kind(int ordinal) {
+        return kindForOrdinal[ordinal];
+    }
+
+    /**
+     * @return slot of the given counter type
+     * @throws IllegalStateException
+     *             if the type is not a counter
+     */
+    int counterSlot(NumerusRollingNumberEvent type) {
+        int i = type.ordinal();
+        if (kindForOrdinal[i] != COUNTER) {
+            throw new IllegalStateException("Type is not a Counter: " + type.name());
+        }
+        return slotForOrdinal[i];
+    }
+
+    /**
+     * @return slot of the given max updater type
+     * @throws IllegalStateException
+     *             if the type is not a max updater
+     */
+    int maxUpdaterSlot(NumerusRollingNumberEvent type) {
+        int i = type.ordinal();
+        if (kindForOrdinal[i] != MAX_UPDATER) {
+            throw new IllegalStateException("Type is not a MaxUpdater: " + type.name());
+        }
+        return slotForOrdinal[i];
+    }
+
+    /**
+     * @return slot of the given reducer type
+     * @throws IllegalStateException
+     *             if the type is not a reducer
+     */
+    int reducerSlot(NumerusRollingNumberEvent type) {
+        int i = type.ordinal();
+        if (kindForOrdinal[i] != REDUCER) {
+            throw new IllegalStateException("Type is not a Reducer: " + type.name());
+        }
+        return slotForOrdinal[i];
+    }
+
+    /**
+     * @return index of the value of the type of the given ordinal in a bucket, the counters by slot followed by the max updaters by slot and the reducers
+     *         by slot
+     * @throws IllegalStateException
+     *             if the type is neither a counter, a max updater nor a reducer
+     */
+    int valueIndex(int ordinal) {
+        switch (kindForOrdinal[ordinal]) {
+        case COUNTER:
+            return slotForOrdinal[ordinal];
+        case MAX_UPDATER:
+            return counters.length + slotForOrdinal[ordinal];
+        case REDUCER:
+            return counters.length + maxUpdaters.length + slotForOrdinal[ordinal];
+        default:
+            throw new IllegalStateException("Type is neither a Counter, a MaxUpdater nor a Reducer: " + ordinal);
+        }
+    }
+
+}
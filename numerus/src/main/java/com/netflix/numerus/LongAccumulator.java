@@ -0,0 +1,263 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+/*
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ * 
+ * From http://gee.cs.oswego.edu/cgi-bin/viewcvs.cgi/jsr166/src/jsr166e/
+ */
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+
+/**
+ * One or more variables that together maintain a running {@code long}
+ * value updated using a supplied function. When updates (method
+ * {@link #accumulate}) are contended across threads, the set of variables
+ * may grow dynamically to reduce contention. Method {@link #get}
+ * (or, equivalently, {@link #longValue}) returns the current value
+ * across the variables maintaining updates.
+ * 
+ * <p>This class is usually preferable to {@link java.util.concurrent.atomic.AtomicLong}
+ * when multiple threads update a common value that is used for purposes
+ * such as collecting statistics, not for fine-grained synchronization
+ * control.
+ * 
+ * <p>The supplied accumulator function should be side-effect-free,
+ * since it may be re-applied when attempted updates fail due to
+ * contention among threads. The function is applied with the current
+ * value as its first argument, and the given update as the second
+ * argument. For example, to maintain a running maximum value, you
+ * could supply a function returning the larger of the two and
+ * {@code Long.MIN_VALUE} as the identity.
+ * 
+ * <p>Class {@link LongAdder} provides analogs of the functionality of
+ * this class for the common special case of maintaining counts and
+ * sums, as does {@link LongMaxUpdater} for maximums.
+ * 
+ * <p>Within or across threads the order of accumulation is not
+ * guaranteed and cannot be depended upon, so this class is only
+ * applicable to functions for which the order of accumulation does
+ * not matter (associative and commutative ones).
+ * 
+ * <p>This class extends {@link Number}, but does <em>not</em> define
+ * methods such as {@code hashCode} and {@code compareTo} because
+ * instances are expected to be mutated, and so are not useful as
+ * collection keys.
+ * 
+ * <p>(Numerus) It is serializable only if its function is.
+ * 
+ * @since 1.8
+ * @author Doug Lea
+ */
+public class LongAccumulator extends Striped64 implements Serializable {
+    private static final long serialVersionUID = 7249069246863182397L;
+
+    private final LongBinaryOperator function;
+    private final long identity;
+
+    final long fn(long v, long x) {
+        return function.applyAsLong(v, x);
+    }
+
+    final long identity() {
+        return identity;
+    }
+
+    /**
+     * Creates a new instance using the given accumulator function
+     * and identity element.
+     * 
+     * @param accumulatorFunction
+     *            a side-effect-free function of two arguments
+     * @param identity
+     *            identity (initial value) for the accumulator function
+     */
+    public LongAccumulator(LongBinaryOperator accumulatorFunction, long identity) {
+        this.function = accumulatorFunction;
+        this.identity = identity;
+        base = identity;
+    }
+
+    /**
+     * Creates a new instance using the given accumulator function and
+     * identity element, striped over at most the given number of cells
+     * under contention rather than the number of CPUs. (Numerus
+     * addition)
+     * 
+     * @param accumulatorFunction
+     *            a side-effect-free function of two arguments
+     * @param identity
+     *            identity (initial value) for the accumulator function
+     * @param maxCells
+     *            the maximum number of cells, 1 for none
+     */
+    public LongAccumulator(LongBinaryOperator accumulatorFunction, long identity, int maxCells) {
+        super(maxCells);
+        this.function = accumulatorFunction;
+        this.identity = identity;
+        base = identity;
+    }
+
+    /**
+     * Updates with the given value.
+     * 
+     * @param x
+     *            the value
+     */
+    public void accumulate(long x) {
+        Cell[] as;
+        long b, v, r;
+        Cell a;
+        int n;
+        if ((as = cells) != null ||
+                (r = function.applyAsLong(b = base, x)) != b && !casBase(b, r)) {
+            boolean uncontended = true;
+            int h = getProbe();
+            if (as == null || (n = as.length) < 1 ||
+                    (a = as[(n - 1) & h]) == null ||
+                    !(uncontended =
+                            (r = function.applyAsLong(v = a.value, x)) == v ||
+                            a.cas(v, r)))
+                retryUpdate(x, h, uncontended);
+            else if (a.retired)
+                drainRetired(a);
+        }
+    }
+
+    /**
+     * Returns the current value. The returned value is <em>NOT</em>
+     * an atomic snapshot: Invocation in the absence of concurrent
+     * updates returns an accurate result, but concurrent updates that
+     * occur while the value is being calculated might not be
+     * incorporated.
+     * 
+     * @return the current value
+     */
+    public long get() {
+        Cell[] as = cells;
+        long result = base;
+        if (as != null) {
+            int n = as.length;
+            for (int i = 0; i < n; ++i) {
+                Cell a = as[i];
+                if (a != null)
+                    result = function.applyAsLong(result, a.value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Resets variables maintaining updates to the identity value.
+     * This method may be a useful alternative to creating a new
+     * updater, but is only effective if there are no concurrent
+     * updates. Because this method is intrinsically racy, it should
+     * only be used when it is known that no threads are concurrently
+     * updating.
+     */
+    public void reset() {
+        internalReset(identity);
+    }
+
+    /**
+     * Equivalent in effect to {@link #get} followed by {@link #reset}.
+     * This method may apply for example during quiescent points
+     * between multithreaded computations. If there are updates
+     * concurrent with this method, the returned value is <em>not</em>
+     * guaranteed to be the final value occurring before the reset.
+     * 
+     * @return the value before reset
+     */
+    public long getThenReset() {
+        Cell[] as = cells;
+        long result = base;
+        base = identity;
+        if (as != null) {
+            int n = as.length;
+            for (int i = 0; i < n; ++i) {
+                Cell a = as[i];
+                if (a != null) {
+                    long v = a.value;
+                    a.value = identity;
+                    result = function.applyAsLong(result, v);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the String representation of the current value.
+     * 
+     * @return the String representation of the current value
+     */
+    public String toString() {
+        return Long.toString(get());
+    }
+
+    /**
+     * Equivalent to {@link #get}.
+     * 
+     * @return the current value
+     */
+    public long longValue() {
+        return get();
+    }
+
+    /**
+     * Returns the {@linkplain #get current value} as an {@code int}
+     * after a narrowing primitive conversion.
+     */
+    public int intValue() {
+        return (int) get();
+    }
+
+    /**
+     * Returns the {@linkplain #get current value} as a {@code float}
+     * after a widening primitive conversion.
+     */
+    public float floatValue() {
+        return (float) get();
+    }
+
+    /**
+     * Returns the {@linkplain #get current value} as a {@code double}
+     * after a widening primitive conversion.
+     */
+    public double doubleValue() {
+        return (double) get();
+    }
+
+    private void writeObject(java.io.ObjectOutputStream s)
+            throws java.io.IOException {
+        s.defaultWriteObject();
+        s.writeLong(get());
+    }
+
+    private void readObject(ObjectInputStream s)
+            throws IOException, ClassNotFoundException {
+        s.defaultReadObject();
+        busy = 0;
+        cells = null;
+        base = s.readLong();
+    }
+
+}
@@ -63,12 +63,28 @@ public class LongAdder extends Striped64 implements Serializable {
         return v + x;
     }
 
+    final long identity() {
+        return 0L;
+    }
+
     /**
      * Creates a new adder with initial sum of zero.
      */
     public LongAdder() {
     }
 
+    /**
+     * Creates a new adder with initial sum of zero, striped over at
+     * most the given number of cells under contention rather than the
+     * number of CPUs. (Numerus addition)
+     * 
+     * @param maxCells
+     *            the maximum number of cells, 1 for none
+     */
+    public LongAdder(int maxCells) {
+        super(maxCells);
+    }
+
     /**
      * Adds the given value.
      * 
@@ -78,16 +94,17 @@ public class LongAdder extends Striped64 implements Serializable {
     public void add(long x) {
         Cell[] as;
         long b, v;
-        HashCode hc;
         Cell a;
         int n;
         if ((as = cells) != null || !casBase(b = base, b + x)) {
             boolean uncontended = true;
-            int h = (hc = threadHashCode.get()).code;
+            int h = getProbe();
             if (as == null || (n = as.length) < 1 ||
                     (a = as[(n - 1) & h]) == null ||
                     !(uncontended = a.cas(v = a.value, v + x)))
-                retryUpdate(x, hc, uncontended);
+                retryUpdate(x, h, uncontended);
+            else if (a.retired)
+                drainRetired(a);
         }
     }
 
@@ -0,0 +1,29 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+/**
+ * A function of two {@code long} values to a {@code long}, the reducer of a {@link LongAccumulator} (the same as
+ * <code>java.util.function.LongBinaryOperator</code>, which isn't available on Java 6).
+ */
+public interface LongBinaryOperator {
+
+    /**
+     * @return the result of the function applied to the given values
+     */
+    long applyAsLong(long left, long right);
+
+}
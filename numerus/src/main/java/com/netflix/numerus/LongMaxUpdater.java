@@ -54,6 +54,10 @@ public class LongMaxUpdater extends Striped64 implements Serializable {
         return v > x ? v : x;
     }
 
+    final long identity() {
+        return Long.MIN_VALUE;
+    }
+
     /**
      * Creates a new instance with initial maximum of {@code Long.MIN_VALUE}.
      */
@@ -61,6 +65,19 @@ public class LongMaxUpdater extends Striped64 implements Serializable {
         base = Long.MIN_VALUE;
     }
 
+    /**
+     * Creates a new instance with initial maximum of {@code Long.MIN_VALUE},
+     * striped over at most the given number of cells under contention
+     * rather than the number of CPUs. (Numerus addition)
+     * 
+     * @param maxCells
+     *            the maximum number of cells, 1 for none
+     */
+    public LongMaxUpdater(int maxCells) {
+        super(maxCells);
+        base = Long.MIN_VALUE;
+    }
+
     /**
      * Updates the maximum to be at least the given value.
      * 
@@ -70,17 +87,18 @@ public class LongMaxUpdater extends Striped64 implements Serializable {
     public void update(long x) {
         Cell[] as;
         long b, v;
-        HashCode hc;
         Cell a;
         int n;
         if ((as = cells) != null ||
                 (b = base) < x && !casBase(b, x)) {
             boolean uncontended = true;
-            int h = (hc = threadHashCode.get()).code;
+            int h = getProbe();
             if (as == null || (n = as.length) < 1 ||
                     (a = as[(n - 1) & h]) == null ||
                     ((v = a.value) < x && !(uncontended = a.cas(v, x))))
-                retryUpdate(x, hc, uncontended);
+                retryUpdate(x, h, uncontended);
+            else if (a.retired)
+                drainRetired(a);
         }
     }
 
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+/**
+ * Where a {@link NumerusRollingNumber} stores the values of its buckets, see {@link Factory} for the choices.
+ */
+public abstract class NumerusBucketStorage {
+
+    /* only the implementations of the Factory */
+    NumerusBucketStorage() {
+    }
+
+    /**
+     * Allocate the values of the given number of buckets.
+     *
+     * @param count
+     *            number of buckets
+     * @param length
+     *            number of values of each bucket (the number of event types)
+     */
+    abstract BucketValues[] allocate(int count, int length);
+
+    /**
+     * Provided implementations.
+     */
+    public static class Factory {
+
+        private static final NumerusBucketStorage HEAP = new NumerusBucketStorage() {
+
+            @Override
+            BucketValues[] allocate(int count, int length) {
+                BucketValues[] values = new BucketValues[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = new StripedLongArray(length);
+                }
+                return values;
+            }
+
+        };
+
+        /**
+         * Values on the heap, each bucket with a striped table of values that grows under contention up to the number of CPUs.
+         * <p>
+         * This is the default and suits most uses.
+         */
+        public static NumerusBucketStorage heap() {
+            return HEAP;
+        }
+
+        /**
+         * Same as {@link #heap()} with the table of each bucket growing up to the given number of stripes (rounded up to a power of 2) rather than the
+         * number of CPUs, for example to bound the memory of the buckets of many rolling numbers or when the process is limited to fewer CPUs than the
+         * machine has. With 1 the values are never striped.
+         * <p>
+         * With either, the table of a bucket that saw no contention while it was the current bucket goes back to a single stripe when it is recycled.
+         *
+         * @param maxStripes
+         *            bound on the number of stripes of each bucket
+         */
+        public static NumerusBucketStorage heap(final int maxStripes) {
+            if (maxStripes <= 0) {
+                throw new IllegalArgumentException("The maximum number of stripes must be at least 1: " + maxStripes);
+            }
+            return new NumerusBucketStorage() {
+
+                @Override
+                BucketValues[] allocate(int count, int length) {
+                    BucketValues[] values = new BucketValues[count];
+                    for (int i = 0; i < count; i++) {
+                        values[i] = new StripedLongArray(length, maxStripes);
+                    }
+                    return values;
+                }
+
+            };
+        }
+
+        private static final NumerusBucketStorage SPARSE = new NumerusBucketStorage() {
+
+            @Override
+            BucketValues[] allocate(int count, int length) {
+                BucketValues[] values = new BucketValues[count];
+                for (int i = 0; i < count; i++) {
+                    values[i] = new SparseLongArray(length);
+                }
+                return values;
+            }
+
+        };
+
+        /**
+         * Values on the heap, each value of each bucket allocated the first time it is written to (as a LongAdder or LongMaxUpdater). Values that were
+         * never written to are read as 0.
+         * <p>
+         * This is for events with a large number of types (hundreds or thousands) of which each rolling number only uses a few: memory and the work of
+         * rotating the buckets then go with the number of types written to rather than with the number of types. With few types {@link #heap()} is more
+         * compact.
+         */
+        public static NumerusBucketStorage sparse() {
+            return SPARSE;
+        }
+
+        /**
+         * Same as {@link #sparse()} with the cells of each value growing up to the given number (rounded up to a power of 2) rather than the number of
+         * CPUs, see {@link #heap(int)}.
+         *
+         * @param maxStripes
+         *            bound on the number of cells of each value
+         */
+        public static NumerusBucketStorage sparse(final int maxStripes) {
+            if (maxStripes <= 0) {
+                throw new IllegalArgumentException("The maximum number of stripes must be at least 1: " + maxStripes);
+            }
+            return new NumerusBucketStorage() {
+
+                @Override
+                BucketValues[] allocate(int count, int length) {
+                    BucketValues[] values = new BucketValues[count];
+                    for (int i = 0; i < count; i++) {
+                        values[i] = new SparseLongArray(length, maxStripes);
+                    }
+                    return values;
+                }
+
+            };
+        }
+
+        /**
+         * Values in direct buffers outside of the heap: one for all the buckets of a {@link NumerusRollingNumber} (allocated again if the buckets are
+         * resized) and a small one for its cumulative sum.
+         * <p>
+         * This is for applications with a very large number of rolling numbers where their buckets take up a large part of the old generation and of the
+         * work of the garbage collector. On the heap only the objects of the rolling number and its buckets remain, not the values.
+         * <p>
+         * The buffer is allocated up front for the given number of stripes per bucket, each stripe being the values of all types rounded up to a cache line.
+         * With a single stripe all threads update the same values so use more stripes for the rolling numbers updated by many threads concurrently.
+         *
+         * @param stripes
+         *            number of stripes of each bucket, a power of 2
+         * @throws UnsupportedOperationException
+         *             if the JVM doesn't give access to the address of direct buffers
+         */
+        public static NumerusBucketStorage offHeap(final int stripes) {
+            if (stripes <= 0 || Integer.bitCount(stripes) != 1) {
+                throw new IllegalArgumentException("The number of stripes must be a power of 2: " + stripes);
+            }
+            OffHeapStripedLongArray.checkSupported();
+            return new NumerusBucketStorage() {
+
+                @Override
+                BucketValues[] allocate(int count, int length) {
+                    return OffHeapStripedLongArray.allocate(count, length, stripes);
+                }
+
+            };
+        }
+
+    }
+}
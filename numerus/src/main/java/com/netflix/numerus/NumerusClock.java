@@ -0,0 +1,126 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Source of time for {@link NumerusRollingNumber} and {@link NumerusRollingPercentile}.
+ * <p>
+ * The time is only used to work out which bucket of the rolling window is current so it only has to move forward consistently, it does not have to
+ * match the wall clock. See {@link Factory} for the implementations that are provided.
+ */
+public interface NumerusClock {
+
+    /**
+     * @return current time in milliseconds, this must never be negative
+     */
+    public long getCurrentTimeInMillis();
+
+    /**
+     * Provided implementations.
+     */
+    public static class Factory {
+
+        private static final NumerusClock SYSTEM_CLOCK = new SystemClock();
+
+        /**
+         * A clock reading {@link System#currentTimeMillis()} on every call.
+         * <p>
+         * This is the default. Note that the wall clock can jump (NTP adjustments for example) and a jump forward of more than a window will clear it.
+         */
+        public static NumerusClock systemClock() {
+            return SYSTEM_CLOCK;
+        }
+
+        /**
+         * A clock based on {@link System#nanoTime()} so it is not affected by changes to the wall clock.
+         * <p>
+         * It starts at {@link System#currentTimeMillis()} as of when the first monotonic clock was created and moves forward from there with elapsed time.
+         */
+        public static NumerusClock monotonicClock() {
+            return MonotonicClock.INSTANCE;
+        }
+
+        /**
+         * A monotonic clock (see {@link #monotonicClock()}) that is read every 10 milliseconds by a single daemon thread
+         * and cached in a volatile field, so getting the time is a plain volatile read.
+         * <p>
+         * The time returned lags behind by up to 10ms so this suits windows with buckets much larger than the tick (100ms or more).
+         * <p>
+         * The daemon thread is started the first time this is called and shared by everything using the coarse clock.
+         */
+        public static NumerusClock coarseClock() {
+            return CoarseClock.INSTANCE;
+        }
+
+        private static class SystemClock implements NumerusClock {
+
+            @Override
+            public long getCurrentTimeInMillis() {
+                return System.currentTimeMillis();
+            }
+
+        }
+
+        private static class MonotonicClock implements NumerusClock {
+            private static final MonotonicClock INSTANCE = new MonotonicClock();
+
+            private final long startTimeInMillis = System.currentTimeMillis();
+            private final long startNanos = System.nanoTime();
+
+            @Override
+            public long getCurrentTimeInMillis() {
+                return startTimeInMillis + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            }
+
+        }
+
+        private static class CoarseClock implements NumerusClock, Runnable {
+            private static final long TICK_IN_MILLISECONDS = 10;
+            private static final CoarseClock INSTANCE = new CoarseClock(MonotonicClock.INSTANCE);
+
+            private final NumerusClock source;
+            private volatile long currentTimeInMillis;
+
+            private CoarseClock(NumerusClock source) {
+                this.source = source;
+                this.currentTimeInMillis = source.getCurrentTimeInMillis();
+                Thread ticker = new Thread(this, "NumerusCoarseClock");
+                ticker.setDaemon(true);
+                ticker.start();
+            }
+
+            @Override
+            public long getCurrentTimeInMillis() {
+                return currentTimeInMillis;
+            }
+
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(TICK_IN_MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // ignore, we never stop ticking
+                    }
+                    currentTimeInMillis = source.getCurrentTimeInMillis();
+                }
+            }
+
+        }
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.netflix.numerus;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * Generic interface to represent a property value so Hystrix can consume properties without being tied to any particular backing implementation.
  * 
@@ -25,6 +27,120 @@ public interface NumerusProperty<T> {
 
     public T get();
 
+    /**
+     * Told when the value of a property changes.
+     */
+    public interface ChangeListener {
+
+        public void propertyChanged();
+
+    }
+
+    /**
+     * An int property that tells its listeners when it changes, so its users can read it without boxing and cache what they work out from it rather than
+     * reading it on every use.
+     * <p>
+     * Listeners are held for the life of the property.
+     */
+    public interface IntProperty extends NumerusProperty<Integer> {
+
+        public int getInt();
+
+        public void addListener(ChangeListener listener);
+
+    }
+
+    /**
+     * A boolean property that tells its listeners when it changes, see {@link IntProperty}.
+     */
+    public interface BooleanProperty extends NumerusProperty<Boolean> {
+
+        public boolean getBoolean();
+
+        public void addListener(ChangeListener listener);
+
+    }
+
+    /**
+     * An {@link IntProperty} whose value is set, for example from the callback of a dynamic property of the configuration library in use.
+     */
+    public static class IntValue implements IntProperty {
+        private final CopyOnWriteArrayList<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+        private volatile int value;
+
+        public IntValue(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public Integer get() {
+            return value;
+        }
+
+        @Override
+        public int getInt() {
+            return value;
+        }
+
+        /**
+         * Set the value, telling the listeners if it changed.
+         */
+        public void set(int value) {
+            if (this.value != value) {
+                this.value = value;
+                for (ChangeListener listener : listeners) {
+                    listener.propertyChanged();
+                }
+            }
+        }
+
+        @Override
+        public void addListener(ChangeListener listener) {
+            listeners.add(listener);
+        }
+
+    }
+
+    /**
+     * A {@link BooleanProperty} whose value is set, see {@link IntValue}.
+     */
+    public static class BooleanValue implements BooleanProperty {
+        private final CopyOnWriteArrayList<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+        private volatile boolean value;
+
+        public BooleanValue(boolean value) {
+            this.value = value;
+        }
+
+        @Override
+        public Boolean get() {
+            return value;
+        }
+
+        @Override
+        public boolean getBoolean() {
+            return value;
+        }
+
+        /**
+         * Set the value, telling the listeners if it changed.
+         */
+        public void set(boolean value) {
+            if (this.value != value) {
+                this.value = value;
+                for (ChangeListener listener : listeners) {
+                    listener.propertyChanged();
+                }
+            }
+        }
+
+        @Override
+        public void addListener(ChangeListener listener) {
+            listeners.add(listener);
+        }
+
+    }
+
     /**
      * Helper methods for wrapping static values.
      */
@@ -40,5 +156,67 @@ public interface NumerusProperty<T> {
 
             };
         }
+
+        /**
+         * A static int value as an {@link IntProperty}, which never changes so never calls its listeners.
+         */
+        public static IntProperty asProperty(final int value) {
+            return new IntProperty() {
+
+                @Override
+                public Integer get() {
+                    return value;
+                }
+
+                @Override
+                public int getInt() {
+                    return value;
+                }
+
+                @Override
+                public void addListener(ChangeListener listener) {
+                    // never changes
+                }
+
+            };
+        }
+
+        /**
+         * A static boolean value as a {@link BooleanProperty}, which never changes so never calls its listeners.
+         */
+        public static BooleanProperty asProperty(final boolean value) {
+            return new BooleanProperty() {
+
+                @Override
+                public Boolean get() {
+                    return value;
+                }
+
+                @Override
+                public boolean getBoolean() {
+                    return value;
+                }
+
+                @Override
+                public void addListener(ChangeListener listener) {
+                    // never changes
+                }
+
+            };
+        }
+
+        /**
+         * The value of an int property, without boxing if it is an {@link IntProperty}.
+         */
+        public static int intValue(NumerusProperty<Integer> property) {
+            return property instanceof IntProperty ? ((IntProperty) property).getInt() : property.get();
+        }
+
+        /**
+         * The value of a boolean property, without boxing if it is a {@link BooleanProperty}.
+         */
+        public static boolean booleanValue(NumerusProperty<Boolean> property) {
+            return property instanceof BooleanProperty ? ((BooleanProperty) property).getBoolean() : property.get();
+        }
     }
 }
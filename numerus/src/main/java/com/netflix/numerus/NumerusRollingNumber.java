@@ -15,13 +15,13 @@
  */
 package com.netflix.numerus;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReferenceArray;
-import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A number which can be used to track counters (increment) or set values over time.
@@ -34,46 +34,224 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * Performance-wise this class is optimized for writes, not reads. This is done because it expects far higher write volume (thousands/second) than reads (a few per second).
  * <p>
- * For example, on each read to getSum/getCount it will iterate buckets to sum the data so that on writes we don't need to maintain the overall sum and pay the synchronization cost at each write to
- * ensure the sum is up-to-date when the read can easily iterate each bucket to get the sum when it needs it.
+ * For example, writes never maintain the overall sum so they don't pay any synchronization cost beyond the striped values of the current bucket. Instead the sum of the
+ * buckets that have closed is maintained once per rotation (by the single thread that rotates the buckets) so a read of the rolling sum only needs to add the
+ * current bucket to it rather than iterate each bucket.
  * <p>
  * See UnitTest for usage and expected behavior examples.
  */
 public class NumerusRollingNumber {
-    private static final Time ACTUAL_TIME = new ActualTime();
-    private final Time time;
+    private final NumerusClock time;
     final NumerusProperty<Integer> timeInMilliseconds;
     final NumerusProperty<Integer> numberOfBuckets;
 
-    final BucketCircularArray buckets;
+    /*
+     * Replaced by a new one when timeInMilliseconds or numberOfBuckets change, see resize.
+     */
+    volatile BucketCircularArray buckets;
+    /*
+     * Set when timeInMilliseconds or numberOfBuckets change when they both tell us (see NumerusProperty.IntProperty), in which case the size of the buckets
+     * is only checked against them after a change rather than on every use. Null if they have to be read, which the reads do every time and the writes only
+     * when they move the window forward (see getBucket).
+     */
+    private final PropertyChangeFlag sizeChange;
+    private final NumerusBucketStorage storage;
     private final CumulativeSum cumulativeSum;
-    private final NumerusRollingNumberEvent events;
+    private final EventSchema schema;
+
+    /*
+     * The per-thread buffers when writes are buffered (see the bufferWrites constructor argument), otherwise null.
+     */
+    private final ThreadLocal<WriteBuffer> writeBuffer;
+    /*
+     * Incremented by reads so writing threads flush their buffers on their next write.
+     */
+    private final AtomicInteger flushRequests = new AtomicInteger();
+    /*
+     * The next coarser tier of a NumerusTieredRollingNumber that the buckets are rolled up into as they close, otherwise null.
+     */
+    private volatile NumerusRollingNumber rollUp;
+    /*
+     * Set by every use of the buckets and cleared by the NumerusRotationScheduler, which only rotates the buckets of the instances that were used.
+     */
+    private volatile boolean used;
+    /*
+     * The number of events given a time that was out of the window, see add(type, value, timeInMilliseconds).
+     */
+    private final AtomicLong droppedEvents = new AtomicLong();
 
     public NumerusRollingNumber(NumerusRollingNumberEvent events, NumerusProperty<Integer> timeInMilliseconds, NumerusProperty<Integer> numberOfBuckets) {
-        this(events, ACTUAL_TIME, timeInMilliseconds, numberOfBuckets);
+        this(events, NumerusClock.Factory.systemClock(), timeInMilliseconds, numberOfBuckets);
     }
 
     /* used for unit testing */
-    /* package for testing */NumerusRollingNumber(NumerusRollingNumberEvent events, Time time, int timeInMilliseconds, int numberOfBuckets) {
+    /* package for testing */NumerusRollingNumber(NumerusRollingNumberEvent events, NumerusClock time, int timeInMilliseconds, int numberOfBuckets) {
         this(events, time, NumerusProperty.Factory.asProperty(timeInMilliseconds), NumerusProperty.Factory.asProperty(numberOfBuckets));
     }
 
-    private NumerusRollingNumber(NumerusRollingNumberEvent events, Time time, NumerusProperty<Integer> timeInMilliseconds, NumerusProperty<Integer> numberOfBuckets) {
-        this.events = events;
+    /**
+     * @param events
+     *            {@link NumerusRollingNumberEvent} whose <code>getValues()</code> are the types that will be tracked
+     * @param time
+     *            {@link NumerusClock} to read the time from, see {@link NumerusClock.Factory} for the provided clocks
+     * @param timeInMilliseconds
+     *            {@code NumerusProperty<Integer>} for number of milliseconds of data that should be tracked
+     * @param numberOfBuckets
+     *            {@code NumerusProperty<Integer>} for number of buckets that the time window should be divided into
+     */
+    public NumerusRollingNumber(NumerusRollingNumberEvent events, NumerusClock time, NumerusProperty<Integer> timeInMilliseconds, NumerusProperty<Integer> numberOfBuckets) {
+        this(events, time, timeInMilliseconds, numberOfBuckets, false);
+    }
+
+    /**
+     * With <code>bufferWrites</code> true {@link #increment} and {@link #add} write to a plain <code>long[]</code> owned by the calling thread rather than to the
+     * bucket, and the thread adds what it buffered to the bucket (a "flush") on its first write:
+     * <ul>
+     * <li>in a new bucket of time,</li>
+     * <li>after a read of the counters, which flushes the buffer of the reading thread and requests all other threads to flush,</li>
+     * <li>or when it calls {@link #flush()}.</li>
+     * </ul>
+     * That makes a write on the same bucket of time free of any synchronization, at the cost of reads being stale:
+     * <ul>
+     * <li>a thread that keeps writing has its values visible to reads within one write after the read requesting it, and in the bucket of time after the
+     * one they were written in at the latest.</li>
+     * <li>values are added to the bucket that is current when they are flushed, so they can count towards a later bucket than the one they were written
+     * in.</li>
+     * <li>a thread that stops writing keeps what it buffered until it writes again or calls {@link #flush()}, and what it buffered is lost if the thread
+     * ends without doing either. Threads of a pool that may go idle should call {@link #flush()} at the end of each task.</li>
+     * </ul>
+     * Max updaters are not buffered.
+     * <p>
+     * Each instance uses a ThreadLocal for the buffers so this is meant for the few counters with the highest rate of writes, the default (false) is the
+     * right choice for the others.
+     * 
+     * @param events
+     *            {@link NumerusRollingNumberEvent} whose <code>getValues()</code> are the types that will be tracked
+     * @param time
+     *            {@link NumerusClock} to read the time from, see {@link NumerusClock.Factory} for the provided clocks
+     * @param timeInMilliseconds
+     *            {@code NumerusProperty<Integer>} for number of milliseconds of data that should be tracked
+     * @param numberOfBuckets
+     *            {@code NumerusProperty<Integer>} for number of buckets that the time window should be divided into
+     * @param bufferWrites
+     *            whether counter writes are buffered per thread as described above
+     */
+    public NumerusRollingNumber(NumerusRollingNumberEvent events, NumerusClock time, NumerusProperty<Integer> timeInMilliseconds, NumerusProperty<Integer> numberOfBuckets, boolean bufferWrites) {
+        this(events, time, timeInMilliseconds, numberOfBuckets, bufferWrites, NumerusBucketStorage.Factory.heap());
+    }
+
+    /**
+     * @param events
+     *            {@link NumerusRollingNumberEvent} whose <code>getValues()</code> are the types that will be tracked
+     * @param time
+     *            {@link NumerusClock} to read the time from, see {@link NumerusClock.Factory} for the provided clocks
+     * @param timeInMilliseconds
+     *            {@code NumerusProperty<Integer>} for number of milliseconds of data that should be tracked
+     * @param numberOfBuckets
+     *            {@code NumerusProperty<Integer>} for number of buckets that the time window should be divided into
+     * @param bufferWrites
+     *            whether counter writes are buffered per thread, see
+     *            {@link #NumerusRollingNumber(NumerusRollingNumberEvent, NumerusClock, NumerusProperty, NumerusProperty, boolean)}
+     * @param storage
+     *            {@link NumerusBucketStorage} for the values of the buckets, see {@link NumerusBucketStorage.Factory} for the choices
+     */
+    public NumerusRollingNumber(NumerusRollingNumberEvent events, NumerusClock time, NumerusProperty<Integer> timeInMilliseconds, NumerusProperty<Integer> numberOfBuckets, boolean bufferWrites,
+            NumerusBucketStorage storage) {
+        this.schema = EventSchema.of(events);
         this.time = time;
         this.timeInMilliseconds = timeInMilliseconds;
         this.numberOfBuckets = numberOfBuckets;
-        this.cumulativeSum = new CumulativeSum(events);
+        this.sizeChange = PropertyChangeFlag.of(timeInMilliseconds, numberOfBuckets);
+        this.storage = storage;
+        this.cumulativeSum = new CumulativeSum(schema, storage);
 
         if (timeInMilliseconds.get() % numberOfBuckets.get() != 0) {
             throw new IllegalArgumentException("The timeInMilliseconds must divide equally into numberOfBuckets. For example 1000/10 is ok, 1000/11 is not.");
         }
 
-        buckets = new BucketCircularArray(numberOfBuckets.get());
+        buckets = new BucketCircularArray(timeInMilliseconds.get(), numberOfBuckets.get());
+
+        if (bufferWrites) {
+            final int length = schema.counters.length;
+            writeBuffer = new ThreadLocal<WriteBuffer>() {
+
+                @Override
+                protected WriteBuffer initialValue() {
+                    return new WriteBuffer(length);
+                }
+
+            };
+        } else {
+            writeBuffer = null;
+        }
     }
 
     /* package for testing */int getBucketSizeInMilliseconds() {
-        return timeInMilliseconds.get() / numberOfBuckets.get();
+        return currentBuckets().bucketSize;
+    }
+
+    /**
+     * The buckets for the current values of timeInMilliseconds and numberOfBuckets, re-bucketing the data first if either has changed since the buckets
+     * were created (see {@link #resize}).
+     * <p>
+     * Values that don't divide equally are ignored (the current buckets are kept) until they do again, as there is no caller to throw at.
+     */
+    private BucketCircularArray currentBuckets() {
+        BucketCircularArray current = buckets;
+        if (sizeChange != null && !sizeChange.getAndClear()) {
+            return current;
+        }
+        int time = NumerusProperty.Factory.intValue(timeInMilliseconds);
+        int size = NumerusProperty.Factory.intValue(numberOfBuckets);
+        if (time == current.timeInMilliseconds && size == current.numBuckets) {
+            return current;
+        }
+        if (size <= 0 || time < size || time % size != 0) {
+            return current;
+        }
+        return resize(current, time, size);
+    }
+
+    /**
+     * Replace the given buckets by buckets of a new size, moving the data they hold over into the new ones.
+     * <p>
+     * The old buckets are claimed the same way a rotation claims them and are left in the rotating state for good (and marked as retired) so that anything
+     * still holding on to them moves on to the new buckets. Each old bucket in the new window is added to the new bucket its start time falls in: going to
+     * bigger buckets merges them and going to smaller ones puts all of an old bucket in the first of the new buckets it covers (as how the values were
+     * spread out within it is not known). Old buckets that are not in the new window (when it is shorter) are moved into the cumulative sum, as if they had
+     * rolled out of it.
+     * <p>
+     * Writes racing with the resize can still land in the old buckets after they have been moved. Each old bucket is marked as retired and then swept into
+     * the cumulative sum, and each write checks the flag of its bucket after writing to it (see {@link #moveIfRetired}): either the sweep sees the write or
+     * the writer sees the flag and moves what is left in the bucket into the current one itself, so nothing is lost (though what the sweep picks up is
+     * only in the cumulative sum).
+     */
+    private BucketCircularArray resize(BucketCircularArray from, int time, int size) {
+        while (true) {
+            BucketCircularArray current = buckets;
+            if (current != from) {
+                // another thread resized them first
+                return current;
+            }
+            long state = from.state.get();
+            if (!from.isRotating(state) && from.state.compareAndSet(state, from.rotating(from.epochOf(state)))) {
+                BucketCircularArray to = new BucketCircularArray(time, size);
+                to.rebucket(from, this.time.getCurrentTimeInMillis());
+                buckets = to;
+                // after publishing the new buckets so that whoever sees the flag finds them
+                from.retired = true;
+                // the buffered writes hold on to epochs of the old size
+                flushRequests.incrementAndGet();
+                for (Bucket b : from.data) {
+                    b.retired = true;
+                }
+                for (Bucket b : from.data) {
+                    cumulativeSum.addBucket(b);
+                }
+                return to;
+            }
+            Thread.yield();
+        }
     }
 
     /**
@@ -86,10 +264,10 @@ public class NumerusRollingNumber {
      *            Boolean doNotBlock if currentBucket is null
      */
     public void increment(NumerusRollingNumberEvent type, Boolean doNotBlock) {
-        Bucket lastBucket = getCurrentBucket(doNotBlock);
+        Bucket lastBucket = getCurrentBucketToWrite(doNotBlock);
         if (lastBucket == null)
             return;
-        lastBucket.getAdder(type).increment();
+        add(lastBucket, schema.counterSlot(type), 1);
     }
 
     /**
@@ -101,7 +279,7 @@ public class NumerusRollingNumber {
      *            HystrixRollingNumberEvent defining which counter to increment
      */
     public void increment(NumerusRollingNumberEvent type) {
-        getCurrentBucket().getAdder(type).increment();
+        add(getCurrentBucketToWrite(false), schema.counterSlot(type), 1);
     }
 
     /**
@@ -115,7 +293,63 @@ public class NumerusRollingNumber {
      *            long value to be added to the current bucket
      */
     public void add(NumerusRollingNumberEvent type, long value) {
-        getCurrentBucket().getAdder(type).add(value);
+        add(getCurrentBucketToWrite(false), schema.counterSlot(type), value);
+    }
+
+    private void add(Bucket currentBucket, int counterSlot, long value) {
+        if (writeBuffer == null) {
+            currentBucket.add(counterSlot, value);
+            moveIfRetired(currentBucket);
+            return;
+        }
+        WriteBuffer buffer = writeBuffer.get();
+        long epoch = currentBucket.epoch;
+        int requests = flushRequests.get();
+        if (buffer.epoch != epoch || buffer.flushRequests != requests) {
+            buffer.flushTo(currentBucket);
+            moveIfRetired(currentBucket);
+            buffer.epoch = epoch;
+            buffer.flushRequests = requests;
+        }
+        buffer.values[counterSlot] += value;
+    }
+
+    /**
+     * Add what the calling thread buffered to the current bucket when writes are buffered, see
+     * {@link #NumerusRollingNumber(NumerusRollingNumberEvent, NumerusClock, NumerusProperty, NumerusProperty, boolean)}.
+     * <p>
+     * Does nothing if writes are not buffered.
+     */
+    public void flush() {
+        if (writeBuffer == null) {
+            return;
+        }
+        Bucket currentBucket = getCurrentBucketToWrite(false);
+        writeBuffer.get().flushTo(currentBucket);
+        moveIfRetired(currentBucket);
+    }
+
+    /**
+     * Move what a write left in a bucket after a resize swept it (see {@link #resize}) into the current bucket, called after each write to a bucket that
+     * may have been retired in the meantime. The flag is read after the write so that this or the sweep of the resize sees the write.
+     */
+    private void moveIfRetired(Bucket b) {
+        while (b.retired) {
+            Bucket current = getBucket(time.getCurrentTimeInMillis(), false, true);
+            b.moveTo(current);
+            // the current bucket may have been retired by another resize in the meantime
+            b = current;
+        }
+    }
+
+    /**
+     * Flush the calling thread's buffer and ask the other threads buffering writes to flush theirs on their next write, called by all the reads.
+     */
+    private void requestFlush() {
+        if (writeBuffer != null) {
+            flushRequests.incrementAndGet();
+            flush();
+        }
     }
 
     /**
@@ -127,7 +361,220 @@ public class NumerusRollingNumber {
      * @param value
      */
     public void updateRollingMax(NumerusRollingNumberEvent type, long value) {
-        getCurrentBucket().getMaxUpdater(type).update(value);
+        Bucket currentBucket = getCurrentBucketToWrite(false);
+        currentBucket.updateMax(schema.maxUpdaterSlot(type), value);
+        moveIfRetired(currentBucket);
+    }
+
+    /**
+     * Combine a value into the current bucket for the given {@link NumerusRollingNumberEvent} type with its {@link NumerusRollingNumberReducer}: retain
+     * the min value, the last value, the bitwise OR or the sum or max of double values.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "reducer" type, see {@link NumerusRollingNumberReducerEvent}.
+     * 
+     * @param type
+     *            HystrixRollingNumberEvent defining which "reducer" to update
+     * @param value
+     *            long value to combine
+     */
+    public void updateRollingValue(NumerusRollingNumberEvent type, long value) {
+        int slot = schema.reducerSlot(type);
+        Bucket currentBucket = getCurrentBucketToWrite(false);
+        currentBucket.reduce(slot, schema.reducerFunctions[slot].encode(value));
+        moveIfRetired(currentBucket);
+    }
+
+    /**
+     * Combine a <code>double</code> value into the current bucket for the given {@link NumerusRollingNumberEvent} type, see
+     * {@link #updateRollingValue(NumerusRollingNumberEvent, long)}: add it to a {@link NumerusRollingNumberReducer#DOUBLE_SUM} or update a
+     * {@link NumerusRollingNumberReducer#DOUBLE_MAX} with it.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "reducer" type, see {@link NumerusRollingNumberReducerEvent}.
+     * 
+     * @param type
+     *            HystrixRollingNumberEvent defining which "reducer" to update
+     * @param value
+     *            double value to combine
+     */
+    public void updateRollingValue(NumerusRollingNumberEvent type, double value) {
+        int slot = schema.reducerSlot(type);
+        Bucket currentBucket = getCurrentBucketToWrite(false);
+        currentBucket.reduce(slot, schema.reducerFunctions[slot].encode(value));
+        moveIfRetired(currentBucket);
+    }
+
+    /**
+     * Add to the counter for the given {@link NumerusRollingNumberEvent} type in the bucket of the given time rather than the current bucket, for events
+     * recorded some time after they happened (taken off a queue or in batches for example).
+     * <p>
+     * An event in the current bucket is added the same way as {@link #add(NumerusRollingNumberEvent, long)} but without reading the clock. An event in an
+     * earlier bucket still in the window is added to that bucket and to the rolling sums, which takes the window over for the time it takes (as a rotation
+     * does) so it is much slower though still lock-free for the writers of the current bucket. An event before the window, or after both the current bucket
+     * and the current time, is dropped and counted, see {@link #getNumberOfDroppedEvents()}.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "counter" type <code>HystrixRollingNumberEvent.isCounter() == true</code>.
+     *
+     * @param type
+     *            HystrixRollingNumberEvent defining which counter to add to
+     * @param value
+     *            long value to be added
+     * @param timeInMilliseconds
+     *            time of the event, from the same {@link NumerusClock} as this rolling number
+     */
+    public void add(NumerusRollingNumberEvent type, long value, long timeInMilliseconds) {
+        addAt(schema.counterSlot(type), EventSchema.COUNTER, value, timeInMilliseconds);
+    }
+
+    /**
+     * Update the max for the given {@link NumerusRollingNumberEvent} type in the bucket of the given time, see
+     * {@link #add(NumerusRollingNumberEvent, long, long)}.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "max updater" type <code>HystrixRollingNumberEvent.isMaxUpdater() == true</code>.
+     *
+     * @param type
+     *            HystrixRollingNumberEvent defining which "max updater" to update
+     * @param value
+     *            long value to update the max with
+     * @param timeInMilliseconds
+     *            time of the event, from the same {@link NumerusClock} as this rolling number
+     */
+    public void updateRollingMax(NumerusRollingNumberEvent type, long value, long timeInMilliseconds) {
+        addAt(schema.maxUpdaterSlot(type), EventSchema.MAX_UPDATER, value, timeInMilliseconds);
+    }
+
+    /**
+     * Combine a value for the given {@link NumerusRollingNumberEvent} type into the bucket of the given time, see
+     * {@link #add(NumerusRollingNumberEvent, long, long)}. For a {@link NumerusRollingNumberReducer#LAST_VALUE} the value of a later bucket is still the
+     * rolling value.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "reducer" type, see {@link NumerusRollingNumberReducerEvent}.
+     *
+     * @param type
+     *            HystrixRollingNumberEvent defining which "reducer" to update
+     * @param value
+     *            long value to combine
+     * @param timeInMilliseconds
+     *            time of the event, from the same {@link NumerusClock} as this rolling number
+     */
+    public void updateRollingValue(NumerusRollingNumberEvent type, long value, long timeInMilliseconds) {
+        int slot = schema.reducerSlot(type);
+        addAt(slot, EventSchema.REDUCER, schema.reducerFunctions[slot].encode(value), timeInMilliseconds);
+    }
+
+    /**
+     * Combine a <code>double</code> value for the given {@link NumerusRollingNumberEvent} type into the bucket of the given time, see
+     * {@link #updateRollingValue(NumerusRollingNumberEvent, double)} and {@link #updateRollingValue(NumerusRollingNumberEvent, long, long)}.
+     *
+     * @param type
+     *            HystrixRollingNumberEvent defining which "reducer" to update
+     * @param value
+     *            double value to combine
+     * @param timeInMilliseconds
+     *            time of the event, from the same {@link NumerusClock} as this rolling number
+     */
+    public void updateRollingValue(NumerusRollingNumberEvent type, double value, long timeInMilliseconds) {
+        int slot = schema.reducerSlot(type);
+        addAt(slot, EventSchema.REDUCER, schema.reducerFunctions[slot].encode(value), timeInMilliseconds);
+    }
+
+    /**
+     * @return number of events given a time out of the window, which were dropped
+     */
+    public long getNumberOfDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Add to a counter (or update a max or reducer, with an encoded value) in the bucket of the given time.
+     * 
+     * @param kind
+     *            kind of type of the slot, see EventSchema
+     */
+    private void addAt(int slot, int kind, long value, long timeInMilliseconds) {
+        Bucket b = getBucketIfCurrent(timeInMilliseconds);
+        if (b != null) {
+            if (kind == EventSchema.COUNTER) {
+                add(b, slot, value);
+            } else {
+                b.update(kind, slot, value);
+                moveIfRetired(b);
+            }
+        } else if (!currentBuckets().addLate(slot, kind, value, timeInMilliseconds)) {
+            droppedEvents.incrementAndGet();
+        }
+    }
+
+    /**
+     * The bucket for the given time if that is the current bucket (or becomes it by moving the window forward to it), otherwise null.
+     * <p>
+     * The clock is only read when the time is after the current bucket, to check that it is not in the future.
+     */
+    private Bucket getBucketIfCurrent(long timeInMilliseconds) {
+        if (!used) {
+            used = true;
+        }
+        // as for getCurrentBucketToWrite, the properties are only read by getBucket when the window moves
+        BucketCircularArray buckets = sizeChange == null ? this.buckets : currentBuckets();
+        long epoch = timeInMilliseconds / buckets.bucketSize;
+        long state = buckets.state.get();
+        if (state == buckets.stable(epoch)) {
+            return buckets.bucketFor(epoch);
+        }
+        if (epoch <= buckets.epochOf(state) || timeInMilliseconds > time.getCurrentTimeInMillis()) {
+            return null;
+        }
+        Bucket b = getBucket(timeInMilliseconds, false, true);
+        // the window may have been moved past it in the meantime
+        return b.epoch == epoch ? b : null;
+    }
+
+    /**
+     * Load recorded events into the window in bulk, to rebuild the rolling state from a log of events after a restart for example.
+     * <p>
+     * The events are given by index in parallel arrays and must be sorted by time. They are added up by bucket in plain arrays and each bucket is then
+     * written once per type, rather than each event going through {@link #add(NumerusRollingNumberEvent, long, long)}. Events are added to what the window
+     * already holds, so a log can be loaded in chunks. As with that method events before the window go into the cumulative sum only and events after the
+     * current bucket are dropped and counted, see {@link #getNumberOfDroppedEvents()}.
+     * <p>
+     * The window is taken over for the time it takes (as a rotation does), writers of the current bucket are not held up. The closed buckets are not
+     * rolled up into a coarser tier, each tier of a {@link NumerusTieredRollingNumber} is loaded on its own.
+     *
+     * @param timestamps
+     *            time of each event in milliseconds, in increasing order
+     * @param types
+     *            <code>ordinal()</code> of the {@link NumerusRollingNumberEvent} type of each event, a counter, a max updater or a reducer
+     * @param values
+     *            value of each event, added to a counter, updating a max or combined into a reducer
+     * @param offset
+     *            index of the first event
+     * @param length
+     *            number of events
+     * @throws IndexOutOfBoundsException
+     *             if the events from offset to offset + length are not all in each of the arrays
+     * @throws IllegalArgumentException
+     *             if the events are not sorted by time or a type is not an ordinal of the {@link NumerusRollingNumberEvent}
+     * @throws IllegalStateException
+     *             if a type is neither a counter, a max updater nor a reducer
+     */
+    public void load(long[] timestamps, int[] types, long[] values, int offset, int length) {
+        // checked up front so that nothing is loaded (or flushed) when it throws
+        if (offset < 0 || length < 0 || length > timestamps.length - offset || length > types.length - offset || length > values.length - offset) {
+            throw new IndexOutOfBoundsException("The events from " + offset + " to " + offset + " + " + length + " are not all in the arrays");
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (types[i] < 0 || types[i] >= schema.length) {
+                throw new IllegalArgumentException("Unknown type: " + types[i] + " at " + i);
+            }
+            // throws if it is neither a counter, a max updater nor a reducer
+            schema.valueIndex(types[i]);
+            if (i > offset && timestamps[i] < timestamps[i - 1]) {
+                throw new IllegalArgumentException("The events must be sorted by time: " + timestamps[i] + " at " + i + " is before " + timestamps[i - 1]);
+            }
+        }
+        // move the window forward to now first so the events are loaded into the window they are read from
+        requestFlush();
+        getCurrentBucket();
+        currentBuckets().load(timestamps, types, values, offset, length);
     }
 
     /**
@@ -136,20 +583,15 @@ public class NumerusRollingNumber {
      * This does NOT reset the CumulativeSum values.
      */
     public void reset() {
-        // if we are resetting, that means the lastBucket won't have a chance to be captured in CumulativeSum, so let's do it here
-        Bucket lastBucket = buckets.peekLast();
-        if (lastBucket != null) {
-            cumulativeSum.addBucket(lastBucket);
-        }
-
-        // clear buckets so we start over again
+        // clear buckets so we start over again (this moves the values in the buckets into the CumulativeSum)
         buckets.clear();
     }
 
     /**
      * Get the cumulative sum of all buckets ever since the JVM started without rolling for the given {@link NumerusRollingNumberEvent} type.
      * <p>
-     * See {@link #getRollingSum(NumerusRollingNumberEvent)} for the rolling sum.
+     * See {@link #getRollingSum(NumerusRollingNumberEvent)} for the rolling sum. For a "max updater" type this is the max ever seen and for a "reducer"
+     * type all the values ever seen combined.
      * <p>
      * The {@link NumerusRollingNumberEvent} must be a "counter" type <code>HystrixRollingNumberEvent.isCounter() == true</code>.
      * 
@@ -157,10 +599,91 @@ public class NumerusRollingNumber {
      * @return cumulative sum of all increments and adds for the given {@link NumerusRollingNumberEvent} counter type
      */
     public long getCumulativeSum(NumerusRollingNumberEvent type) {
-        // this isn't 100% atomic since multiple threads can be affecting latestBucket & cumulativeSum independently
+        // this isn't 100% atomic since multiple threads can be affecting the buckets & cumulativeSum independently
         // but that's okay since the count is always a moving target and we're accepting a "point in time" best attempt
-        // we are however putting 'getValueOfLatestBucket' first since it can have side-affects on cumulativeSum whereas the inverse is not true
-        return getValueOfLatestBucket(type) + cumulativeSum.get(type);
+        // we are however putting 'getCurrentBucket' first since it can have side-affects on cumulativeSum whereas the inverse is not true
+        requestFlush();
+        getCurrentBucket();
+        // buckets are only moved into the cumulativeSum when they are recycled so add everything still held by the buckets
+        if (schema.isMaxUpdater(type)) {
+            return Math.max(buckets.getRetainedValue(type), cumulativeSum.get(type));
+        }
+        if (schema.isReducer(type)) {
+            return getReducer(type).decode(getCumulativeReducedValue(type));
+        }
+        return buckets.getRetainedValue(type) + cumulativeSum.get(type);
+    }
+
+    /**
+     * Get all the values ever seen combined for the given {@link NumerusRollingNumberEvent} type as a <code>double</code>, the sum of a
+     * {@link NumerusRollingNumberReducer#DOUBLE_SUM} or the max of a {@link NumerusRollingNumberReducer#DOUBLE_MAX}, see
+     * {@link #getCumulativeSum(NumerusRollingNumberEvent)}.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "reducer" type, see {@link NumerusRollingNumberReducerEvent}.
+     *
+     * @param type
+     * @return cumulative value of the given {@link NumerusRollingNumberEvent} reducer type
+     */
+    public double getCumulativeDoubleValue(NumerusRollingNumberEvent type) {
+        NumerusRollingNumberReducer reducer = getReducer(type);
+        requestFlush();
+        getCurrentBucket();
+        return reducer.decodeDouble(getCumulativeReducedValue(type));
+    }
+
+    private long getCumulativeReducedValue(NumerusRollingNumberEvent type) {
+        int slot = schema.reducerSlot(type);
+        // the cumulative sum holds the buckets recycled before the ones still held
+        return schema.reducerFunctions[slot].combine(cumulativeSum.values.reduced(slot), buckets.getRetainedValue(type));
+    }
+
+    /**
+     * Get the rolling and cumulative values of all the {@link NumerusRollingNumberEvent} types at once, indexed by <code>ordinal()</code>.
+     * <p>
+     * For "counter" types these are the same as {@link #getRollingSum(NumerusRollingNumberEvent)} and {@link #getCumulativeSum(NumerusRollingNumberEvent)},
+     * for "max updater" types the rolling value is the same as {@link #getRollingMaxValue(NumerusRollingNumberEvent)} and the cumulative value is the max
+     * ever seen, for "reducer" types the rolling value is the same as {@link #getRollingValue(NumerusRollingNumberEvent)} and the cumulative value all the
+     * values ever seen combined.
+     * <p>
+     * This is meant for publishing all the metrics periodically: it moves the window once and reads the buckets once for all types rather than once per type,
+     * and the arrays can be reused between calls.
+     * 
+     * @param rollingValues
+     *            array of at least <code>getValues().length</code> to copy the rolling values into, or null to skip them
+     * @param cumulativeValues
+     *            array of at least <code>getValues().length</code> to copy the cumulative values into, or null to skip them
+     */
+    public void getSnapshot(long[] rollingValues, long[] cumulativeValues) {
+        if ((rollingValues != null && rollingValues.length < schema.length) || (cumulativeValues != null && cumulativeValues.length < schema.length)) {
+            throw new IllegalArgumentException("The arrays must have room for all " + schema.length + " types of event.");
+        }
+        // as in getCumulativeSum 'getCurrentBucket' goes first since it can have side-affects on cumulativeSum
+        requestFlush();
+        Bucket lastBucket = getCurrentBucket();
+        if (rollingValues != null) {
+            if (lastBucket == null) {
+                Arrays.fill(rollingValues, 0, schema.length, 0);
+            } else {
+                buckets.getRollingValues(rollingValues);
+            }
+        }
+        if (cumulativeValues != null) {
+            buckets.getRetainedValues(cumulativeValues);
+            Bucket cumulative = cumulativeSum.values;
+            for (int s = cumulative.nextCounter(0); s < schema.counters.length; s = cumulative.nextCounter(s + 1)) {
+                cumulativeValues[schema.counterOrdinals[s]] += cumulative.sum(s);
+            }
+            for (int s = cumulative.nextMaxUpdater(0); s < schema.maxUpdaters.length; s = cumulative.nextMaxUpdater(s + 1)) {
+                int i = schema.maxUpdaterOrdinals[s];
+                cumulativeValues[i] = Math.max(cumulativeValues[i], cumulative.max(s));
+            }
+            // the retained values of the reducers are encoded
+            for (int s = 0; s < schema.reducers.length; s++) {
+                int i = schema.reducerOrdinals[s];
+                NumerusRollingNumberReducer reducer = schema.reducerFunctions[s];
+                cumulativeValues[i] = reducer.decode(reducer.combine(cumulative.reduced(s), cumulativeValues[i]));
+            }
+        }
     }
 
     /**
@@ -175,15 +698,12 @@ public class NumerusRollingNumber {
      *         value from the given {@link NumerusRollingNumberEvent} counter type
      */
     public long getRollingSum(NumerusRollingNumberEvent type, Boolean doNotBlock) {
+        requestFlush();
         Bucket lastBucket = getCurrentBucket(doNotBlock);
         if (lastBucket == null)
             return 0;
 
-        long sum = 0;
-        for (Bucket b : buckets) {
-            sum += b.getAdder(type).sum();
-        }
-        return sum;
+        return buckets.getRollingSum(type);
     }
 
     /**
@@ -197,15 +717,12 @@ public class NumerusRollingNumber {
      *         value from the given {@link NumerusRollingNumberEvent} counter type
      */
     public long getRollingSum(NumerusRollingNumberEvent type) {
+        requestFlush();
         Bucket lastBucket = getCurrentBucket();
         if (lastBucket == null)
             return 0;
 
-        long sum = 0;
-        for (Bucket b : buckets) {
-            sum += b.getAdder(type).sum();
-        }
-        return sum;
+        return buckets.getRollingSum(type);
     }
 
     /**
@@ -219,6 +736,7 @@ public class NumerusRollingNumber {
      *         value from latest bucket for given {@link NumerusRollingNumberEvent} counter type
      */
     public long getValueOfLatestBucket(NumerusRollingNumberEvent type) {
+        requestFlush();
         Bucket lastBucket = getCurrentBucket();
         if (lastBucket == null)
             return 0;
@@ -238,26 +756,88 @@ public class NumerusRollingNumber {
      * @return array of values from each of the rolling buckets for given {@link NumerusRollingNumberEvent} counter type
      */
     public long[] getValues(NumerusRollingNumberEvent type) {
+        requestFlush();
         Bucket lastBucket = getCurrentBucket();
         if (lastBucket == null)
             return new long[0];
 
-        // get buckets as an array (which is a copy of the current state at this point in time)
-        Bucket[] bucketArray = buckets.getArray();
-
         // we have bucket data so we'll return an array of values for all buckets
-        long values[] = new long[bucketArray.length];
-        int i = 0;
-        for (Bucket bucket : bucketArray) {
-            if (type.isCounter()) {
-                values[i++] = bucket.getAdder(type).sum();
-            } else if (type.isMaxUpdater()) {
-                values[i++] = bucket.getMaxUpdater(type).max();
-            }
+        long values[] = new long[buckets.size()];
+        int length = buckets.getValues(type, values);
+        if (length < values.length) {
+            // the window was reset while we were reading it
+            return Arrays.copyOf(values, length);
         }
         return values;
     }
 
+    /**
+     * Fill the given array with the values of the buckets in the rolling counter for the given {@link NumerusRollingNumberEvent} type.
+     * <p>
+     * This is the same as {@link #getValues(NumerusRollingNumberEvent)} without allocating a new array on each call. An array of length numberOfBuckets is
+     * always large enough, if it is smaller only the most recent buckets are copied.
+     * <p>
+     * Index 0 is the oldest bucket.
+     * 
+     * @param type
+     *            HystrixRollingNumberEvent defining which counter to retrieve values from
+     * @param values
+     *            array to copy the values into
+     * @return number of values copied into the array
+     */
+    public int getValues(NumerusRollingNumberEvent type, long[] values) {
+        requestFlush();
+        Bucket lastBucket = getCurrentBucket();
+        if (lastBucket == null)
+            return 0;
+
+        return buckets.getValues(type, values);
+    }
+
+    /**
+     * Get the sum of the most recent buckets covering the given number of milliseconds for the given {@link NumerusRollingNumberEvent} type, for example the
+     * last second of a 10 second window.
+     * <p>
+     * The span is rounded up to whole buckets, the current (partial) bucket being one of them, and capped at the window. This costs the same as
+     * {@link #getRollingSum(NumerusRollingNumberEvent)} whatever the span (see BucketCircularArray.getRollingSum).
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "counter" type <code>HystrixRollingNumberEvent.isCounter() == true</code>.
+     *
+     * @param type
+     *            HystrixRollingNumberEvent defining which counter to retrieve values from
+     * @param millis
+     *            number of milliseconds to sum over
+     * @return sum over the span for the given {@link NumerusRollingNumberEvent} counter type
+     */
+    public long getRollingSum(NumerusRollingNumberEvent type, long millis) {
+        requestFlush();
+        Bucket lastBucket = getCurrentBucket();
+        if (lastBucket == null)
+            return 0;
+
+        return buckets.getRollingSum(type, millis);
+    }
+
+    /**
+     * Get the max value of the most recent buckets covering the given number of milliseconds for the given {@link NumerusRollingNumberEvent} type, see
+     * {@link #getRollingSum(NumerusRollingNumberEvent, long)}.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "max updater" type <code>HystrixRollingNumberEvent.isMaxUpdater() == true</code>.
+     *
+     * @param type
+     *            HystrixRollingNumberEvent defining which "max updater" to retrieve values from
+     * @param millis
+     *            number of milliseconds to take the max over
+     * @return max value over the span for given {@link NumerusRollingNumberEvent} type
+     */
+    public long getRollingMaxValue(NumerusRollingNumberEvent type, long millis) {
+        Bucket lastBucket = getCurrentBucket();
+        if (lastBucket == null)
+            return 0;
+
+        return buckets.getRollingMax(type, millis);
+    }
+
     /**
      * Get the max value of values in all buckets for the given {@link NumerusRollingNumberEvent} type.
      * <p>
@@ -268,426 +848,1283 @@ public class NumerusRollingNumber {
      * @return max value for given {@link NumerusRollingNumberEvent} type during rolling window
      */
     public long getRollingMaxValue(NumerusRollingNumberEvent type) {
-        long values[] = getValues(type);
-        if (values.length == 0) {
+        Bucket lastBucket = getCurrentBucket();
+        if (lastBucket == null)
             return 0;
-        } else {
-            Arrays.sort(values);
-            return values[values.length - 1];
-        }
-    }
-
-    private ReentrantLock newBucketLock = new ReentrantLock();
 
-    /* package for testing */Bucket getCurrentBucket() {
-       return getCurrentBucket(false);
+        return buckets.getRollingMax(type);
     }
 
-    /* package for testing */Bucket getCurrentBucket(Boolean doNotBlock) {
-        long currentTime = time.getCurrentTimeInMillis();
-
-        /* a shortcut to try and get the most common result of immediately finding the current bucket */
+    /**
+     * Get the values of all buckets combined for the given {@link NumerusRollingNumberEvent} type: the min value, the most recent value or the bitwise OR
+     * of the values depending on its {@link NumerusRollingNumberReducer}, 0 if there is no value in the window.
+     * <p>
+     * Unlike the sums and maxes the combined values of the closed buckets are not kept as the window moves, this reads the buckets (as
+     * {@link #getRollingMaxValue(NumerusRollingNumberEvent, long)} does) so it may return stale data.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "reducer" type, see {@link NumerusRollingNumberReducerEvent}.
+     * 
+     * @param type
+     *            HystrixRollingNumberEvent defining which "reducer" to retrieve values from
+     * @return value for given {@link NumerusRollingNumberEvent} type during rolling window
+     */
+    public long getRollingValue(NumerusRollingNumberEvent type) {
+        return getReducer(type).decode(getReducedRollingValue(type));
+    }
 
-        /**
-         * Retrieve the latest bucket if the given time is BEFORE the end of the bucket window, otherwise it returns NULL.
-         * 
-         * NOTE: This is thread-safe because it's accessing 'buckets' which is a LinkedBlockingDeque
-         */
-        Bucket currentBucket = buckets.peekLast();
-        if (currentBucket != null && currentTime < currentBucket.windowStart + getBucketSizeInMilliseconds()) {
-            // if we're within the bucket 'window of time' return the current one
-            // NOTE: We do not worry if we are BEFORE the window in a weird case of where thread scheduling causes that to occur,
-            // we'll just use the latest as long as we're not AFTER the window
-            return currentBucket;
-        }
+    /**
+     * Get the values of the most recent buckets covering the given number of milliseconds combined for the given {@link NumerusRollingNumberEvent} type,
+     * see {@link #getRollingValue(NumerusRollingNumberEvent)} and {@link #getRollingSum(NumerusRollingNumberEvent, long)}.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "reducer" type, see {@link NumerusRollingNumberReducerEvent}.
+     *
+     * @param type
+     *            HystrixRollingNumberEvent defining which "reducer" to retrieve values from
+     * @param millis
+     *            number of milliseconds to combine the values over
+     * @return value over the span for given {@link NumerusRollingNumberEvent} type
+     */
+    public long getRollingValue(NumerusRollingNumberEvent type, long millis) {
+        NumerusRollingNumberReducer reducer = getReducer(type);
+        Bucket lastBucket = getCurrentBucket();
+        if (lastBucket == null)
+            return 0;
 
-        /* if we didn't find the current bucket above, then we have to create one */
+        return reducer.decode(buckets.getRollingValue(type, millis));
+    }
 
-        /**
-         * The following needs to be synchronized/locked even with a synchronized/thread-safe data structure such as LinkedBlockingDeque because
-         * the logic involves multiple steps to check existence, create an object then insert the object. The 'check' or 'insertion' themselves
-         * are thread-safe by themselves but not the aggregate algorithm, thus we put this entire block of logic inside synchronized.
-         * 
-         * I am using a tryLock if/then (http://download.oracle.com/javase/6/docs/api/java/util/concurrent/locks/Lock.html#tryLock())
-         * so that a single thread will get the lock and as soon as one thread gets the lock all others will go the 'else' block
-         * and just return the currentBucket until the newBucket is created. This should allow the throughput to be far higher
-         * and only slow down 1 thread instead of blocking all of them in each cycle of creating a new bucket based on some testing
-         * (and it makes sense that it should as well).
-         * 
-         * This means the timing won't be exact to the millisecond as to what data ends up in a bucket, but that's acceptable.
-         * It's not critical to have exact precision to the millisecond, as long as it's rolling, if we can instead reduce the impact synchronization.
-         * 
-         * More importantly though it means that the 'if' block within the lock needs to be careful about what it changes that can still
-         * be accessed concurrently in the 'else' block since we're not completely synchronizing access.
-         * 
-         * For example, we can't have a multi-step process to add a bucket, remove a bucket, then update the sum since the 'else' block of code
-         * can retrieve the sum while this is all happening. The trade-off is that we don't maintain the rolling sum and let readers just iterate
-         * bucket to calculate the sum themselves. This is an example of favoring write-performance instead of read-performance and how the tryLock
-         * versus a synchronized block needs to be accommodated.
-         */
-        if (newBucketLock.tryLock()) {
-            try {
-                if (buckets.peekLast() == null) {
-                    // the list is empty so create the first bucket
-                    Bucket newBucket = new Bucket(events, currentTime);
-                    buckets.addLast(newBucket);
-                    return newBucket;
-                } else {
-                    // We go into a loop so that it will create as many buckets as needed to catch up to the current time
-                    // as we want the buckets complete even if we don't have transactions during a period of time.
-                    for (int i = 0; i < numberOfBuckets.get(); i++) {
-                        // we have at least 1 bucket so retrieve it
-                        Bucket lastBucket = buckets.peekLast();
-                        if (currentTime < lastBucket.windowStart + getBucketSizeInMilliseconds()) {
-                            // if we're within the bucket 'window of time' return the current one
-                            // NOTE: We do not worry if we are BEFORE the window in a weird case of where thread scheduling causes that to occur,
-                            // we'll just use the latest as long as we're not AFTER the window
-                            return lastBucket;
-                        } else if (currentTime - (lastBucket.windowStart + getBucketSizeInMilliseconds()) > timeInMilliseconds.get()) {
-                            // the time passed is greater than the entire rolling counter so we want to clear it all and start from scratch
-                            reset();
-                            // recursively call getCurrentBucket which will create a new bucket and return it
-                            return getCurrentBucket();
-                        } else { // we're past the window so we need to create a new bucket
-                            // create a new bucket and add it as the new 'last'
-                            buckets.addLast(new Bucket(events, lastBucket.windowStart + getBucketSizeInMilliseconds()));
-                            // add the lastBucket values to the cumulativeSum
-                            cumulativeSum.addBucket(lastBucket);
-                        }
-                    }
-                    // we have finished the for-loop and created all of the buckets, so return the lastBucket now
-                    return buckets.peekLast();
-                }
-            } finally {
-                newBucketLock.unlock();
+    /**
+     * Get the values of all buckets combined for the given {@link NumerusRollingNumberEvent} type as a <code>double</code>: the sum of a
+     * {@link NumerusRollingNumberReducer#DOUBLE_SUM} or the max of a {@link NumerusRollingNumberReducer#DOUBLE_MAX}, 0 if there is no value in the
+     * window. See {@link #getRollingValue(NumerusRollingNumberEvent)}.
+     * <p>
+     * The {@link NumerusRollingNumberEvent} must be a "reducer" type, see {@link NumerusRollingNumberReducerEvent}.
+     *
+     * @param type
+     *            HystrixRollingNumberEvent defining which "reducer" to retrieve values from
+     * @return value for given {@link NumerusRollingNumberEvent} type during rolling window
+     */
+    public double getRollingDoubleValue(NumerusRollingNumberEvent type) {
+        return getReducer(type).decodeDouble(getReducedRollingValue(type));
+    }
+
+    /**
+     * Get the values of the most recent buckets covering the given number of milliseconds combined for the given {@link NumerusRollingNumberEvent} type
+     * as a <code>double</code>, see {@link #getRollingDoubleValue(NumerusRollingNumberEvent)} and
+     * {@link #getRollingValue(NumerusRollingNumberEvent, long)}.
+     *
+     * @param type
+     *            HystrixRollingNumberEvent defining which "reducer" to retrieve values from
+     * @param millis
+     *            number of milliseconds to combine the values over
+     * @return value over the span for given {@link NumerusRollingNumberEvent} type
+     */
+    public double getRollingDoubleValue(NumerusRollingNumberEvent type, long millis) {
+        NumerusRollingNumberReducer reducer = getReducer(type);
+        Bucket lastBucket = getCurrentBucket();
+        if (lastBucket == null)
+            return 0;
+
+        return reducer.decodeDouble(buckets.getRollingValue(type, millis));
+    }
+
+    /**
+     * @return the {@link NumerusRollingNumberReducer} of the given "reducer" type
+     */
+    /* package */NumerusRollingNumberReducer getReducer(NumerusRollingNumberEvent type) {
+        return schema.reducerFunctions[schema.reducerSlot(type)];
+    }
+
+    /**
+     * The encoded value of all buckets of a "reducer" type, see {@link #getRollingValue(NumerusRollingNumberEvent)}.
+     */
+    /* package */long getReducedRollingValue(NumerusRollingNumberEvent type) {
+        Bucket lastBucket = getCurrentBucket();
+        if (lastBucket == null)
+            return 0;
+
+        return buckets.getRollingValue(type);
+    }
+
+    /**
+     * The encoded value of the latest bucket of a "reducer" type, see {@link #getValueOfLatestBucket(NumerusRollingNumberEvent)}.
+     */
+    /* package */long getReducedValueOfLatestBucket(NumerusRollingNumberEvent type) {
+        int slot = schema.reducerSlot(type);
+        Bucket lastBucket = getCurrentBucket();
+        if (lastBucket == null)
+            return 0;
+
+        return lastBucket.reduced(slot);
+    }
+
+    /* package for testing */Bucket getCurrentBucket() {
+       return getCurrentBucket(false);
+    }
+
+    /* package for testing */Bucket getCurrentBucket(Boolean doNotBlock) {
+        if (!used) {
+            // only written once per bucket boundary rather than on every write
+            used = true;
+        }
+        return getBucket(time.getCurrentTimeInMillis(), doNotBlock, true);
+    }
+
+    /**
+     * The current bucket for a write. Unlike {@link #getCurrentBucket(Boolean)} this doesn't read timeInMilliseconds and numberOfBuckets to check the size
+     * of the buckets when they can't tell us they changed (see sizeChange) unless it moves the window forward, so the writes within a bucket only read the
+     * window state (and the change flag if there is one). A change of the properties is picked up by the writes at the next bucket boundary, or by the
+     * next read.
+     */
+    private Bucket getCurrentBucketToWrite(Boolean doNotBlock) {
+        if (!used) {
+            used = true;
+        }
+        return getBucket(time.getCurrentTimeInMillis(), doNotBlock, false);
+    }
+
+    /**
+     * Move the window forward if the rolling number was used since the last time, called by the {@link NumerusRotationScheduler} at each bucket boundary.
+     *
+     * @return time of the next bucket boundary
+     */
+    /* package */long rotateIfUsed() {
+        if (used) {
+            used = false;
+            getBucket(time.getCurrentTimeInMillis(), false, true);
+        }
+        return nextBoundary();
+    }
+
+    /**
+     * @return time of the next bucket boundary
+     */
+    /* package */long nextBoundary() {
+        int bucketSize = currentBuckets().bucketSize;
+        return (time.getCurrentTimeInMillis() / bucketSize + 1) * bucketSize;
+    }
+
+    /**
+     * The bucket for the given time, moving the window forward to it if it is past the window. A time before the window gets the current bucket.
+     * <p>
+     * Without checkSize the properties that can't tell us they changed are only read (by currentBuckets) once the bucket is not the current one.
+     */
+    private Bucket getBucket(long now, Boolean doNotBlock, boolean checkSize) {
+        /*
+         * Time is divided into fixed 'epochs' of bucketSize milliseconds and the bucket for an epoch always lives at the same index in the
+         * ring (epoch % length). That means every thread that reads the same time agrees on which bucket is current without any locking.
+         */
+        while (true) {
+            // read each time around as the buckets may have been replaced by a resize while we waited
+            BucketCircularArray buckets = checkSize || sizeChange != null ? currentBuckets() : this.buckets;
+            long epoch = now / buckets.bucketSize;
+            long state = buckets.state.get();
+
+            /* a shortcut to try and get the most common result of immediately finding the current bucket */
+            if (state == buckets.stable(epoch)) {
+                return buckets.bucketFor(epoch);
             }
-        } else {
-            currentBucket = buckets.peekLast();
-            if (currentBucket != null) {
-                // we didn't get the lock so just return the latest bucket while another thread creates the next one
-                return currentBucket;
-            } else {
-                // the rare scenario where multiple threads raced to create the very first bucket
-                // wait slightly and then use recursion while the other thread finishes creating a bucket
+
+            if (!checkSize) {
+                // the window is moving, which is when the writes check the size against properties that can't tell us they changed
+                checkSize = true;
+                continue;
+            }
+
+            long currentEpoch = buckets.epochOf(state);
+            if (buckets.isRotating(state)) {
+                /*
+                 * Another thread is moving the window forward.
+                 * 
+                 * The bucket for the epoch after the current one is always prepared ahead of time (see rotate) so in the normal case of
+                 * rolling into the next bucket we can start writing into it straight away instead of waiting for the rotation to finish.
+                 * 
+                 * Otherwise (a gap of more than 1 bucket) we wait for the rotation to finish rather than write into a bucket that doesn't
+                 * belong to this time. The rotating thread only resets a couple of buckets so this is very short.
+                 */
+                Bucket b = buckets.bucketFor(epoch);
+                if (b.epoch == epoch) {
+                    return b;
+                }
                 if (doNotBlock) {
                     // caller indicates doNotBlock
                     return null;
                 }
+                Thread.yield();
+                continue;
+            }
+
+            if (epoch < currentEpoch) {
+                // NOTE: We do not worry if we are BEFORE the window in a weird case of where thread scheduling causes that to occur,
+                // we'll just use the latest as long as we're not AFTER the window
+                return buckets.bucketFor(currentEpoch);
+            }
+
+            /*
+             * We're past the window (or there is no window yet) so the window needs to move forward.
+             * 
+             * The rotation is claimed by a compareAndSet of the window state from 'stable at currentEpoch' to 'rotating at currentEpoch'.
+             * Exactly one thread wins, prepares the buckets and then publishes the new epoch. Threads that lose the race loop around and
+             * pick up the winner's result.
+             */
+            if (buckets.state.compareAndSet(state, buckets.rotating(currentEpoch))) {
                 try {
-                    Thread.sleep(5);
-                } catch (Exception e) {
-                    // ignore
+                    buckets.rotate(currentEpoch, epoch);
+                } finally {
+                    buckets.state.set(buckets.stable(epoch));
                 }
-                return getCurrentBucket(false);
+                return buckets.bucketFor(epoch);
             }
         }
     }
 
-    /* package */static interface Time {
-        public long getCurrentTimeInMillis();
+    /**
+     * Roll the buckets of this rolling number up into the given coarser one as they close, see {@link NumerusTieredRollingNumber}.
+     */
+    /* package */void rollUpInto(NumerusRollingNumber coarser) {
+        if (coarser.schema != schema) {
+            throw new IllegalArgumentException("The rolling numbers must have the same type of events");
+        }
+        if (coarser.getBucketSizeInMilliseconds() % getBucketSizeInMilliseconds() != 0) {
+            throw new IllegalArgumentException("The buckets of a coarser rolling number must be a multiple of the finer ones. For example 1000 for 100 is ok, 1000 for 300 is not.");
+        }
+        rollUp = coarser;
     }
 
-    private static class ActualTime implements Time {
-
-        @Override
-        public long getCurrentTimeInMillis() {
-            return System.currentTimeMillis();
+    /**
+     * Add the values of a bucket of a finer rolling number that has just closed to the bucket of this one its start time falls in.
+     */
+    private void addClosedBucket(long startTime, Bucket closed) {
+        Bucket b = getBucket(startTime, false, true);
+        for (int s = closed.nextCounter(0); s < schema.counters.length; s = closed.nextCounter(s + 1)) {
+            long value = closed.sum(s);
+            if (value != 0) {
+                b.add(s, value);
+            }
         }
-
+        for (int s = closed.nextMaxUpdater(0); s < schema.maxUpdaters.length; s = closed.nextMaxUpdater(s + 1)) {
+            long value = closed.max(s);
+            if (value != 0) {
+                b.updateMax(s, value);
+            }
+        }
+        for (int s = closed.nextReducer(0); s < schema.reducers.length; s = closed.nextReducer(s + 1)) {
+            long value = closed.reduced(s);
+            if (value != 0) {
+                b.reduce(s, value);
+            }
+        }
+        moveIfRetired(b);
     }
 
     /**
      * Counters for a given 'bucket' of time.
      */
     /* package */static class Bucket {
-        final long windowStart;
-        final LongAdder[] adderForCounterType;
-        final LongMaxUpdater[] updaterForCounterType;
+        /*
+         * The epoch (start time / bucket size) this bucket currently holds the counters of.
+         * 
+         * Buckets are reused so this changes over time, it is set once the counters have been reset for the new epoch.
+         */
+        volatile long epoch;
+        /*
+         * The values of all types, the sums of the counters by counter slot followed by the maxes of the max updaters by max updater slot and the encoded
+         * values of the reducers by reducer slot (see EventSchema).
+         * 
+         * This is a single striped table for all types rather than a LongAdder/LongMaxUpdater per type, so a thread updating any of the types
+         * of the bucket works on the same padded row. It is on or off the heap depending on the NumerusBucketStorage.
+         */
+        final BucketValues values;
+        final EventSchema schema;
+        /*
+         * The counter values by counter slot as of when the bucket was closed (see BucketCircularArray.rotate), which is what was added to the rolling sum
+         * and so what has to be taken off it again when the bucket rolls out of the window.
+         * 
+         * Only accessed by the thread rotating the buckets.
+         */
+        final long[] closedValueForCounterType;
+        /*
+         * Set once the buckets this one belongs to have been replaced by a resize, the writes check it after writing (see NumerusRollingNumber.resize).
+         */
+        volatile boolean retired;
 
-        Bucket(NumerusRollingNumberEvent events, long startTime) {
-            this.windowStart = startTime;
+        Bucket(EventSchema schema, BucketValues values, long epoch) {
+            this.epoch = epoch;
+            this.schema = schema;
+            this.values = values;
+            this.closedValueForCounterType = new long[schema.counters.length];
+        }
 
-            /*
-             * We support both LongAdder and LongMaxUpdater in a bucket but don't want the memory allocation
-             * of all types for each so we only allocate the objects if the HystrixRollingNumberEvent matches
-             * the correct type - though we still have the allocation of empty arrays to the given length
-             * as we want to keep using the type.ordinal() value for fast random access.
-             */
+        long get(NumerusRollingNumberEvent type) {
+            if (schema.isCounter(type)) {
+                return sum(schema.counterSlot(type));
+            }
+            if (schema.isMaxUpdater(type)) {
+                return max(schema.maxUpdaterSlot(type));
+            }
+            if (schema.isReducer(type)) {
+                int slot = schema.reducerSlot(type);
+                return schema.reducerFunctions[slot].decode(reduced(slot));
+            }
+            throw new IllegalStateException("Unknown type of event: " + type.name());
+        }
 
-            // initialize the array of LongAdders
-            adderForCounterType = new LongAdder[events.getValues().length];
-            for (NumerusRollingNumberEvent type : events.getValues()) {
-                if (type.isCounter()) {
-                    adderForCounterType[type.ordinal()] = new LongAdder();
-                }
+        long sum(int counterSlot) {
+            return values.sum(counterSlot);
+        }
+
+        long max(int maxUpdaterSlot) {
+            return values.max(schema.counters.length + maxUpdaterSlot);
+        }
+
+        /**
+         * Same as {@link #sum} but resets the value to 0, see {@link BucketValues#sumThenReset}.
+         */
+        long sumThenReset(int counterSlot) {
+            return values.sumThenReset(counterSlot);
+        }
+
+        /**
+         * Same as {@link #max} but resets the value to 0, see {@link BucketValues#maxThenReset}.
+         */
+        long maxThenReset(int maxUpdaterSlot) {
+            return values.maxThenReset(schema.counters.length + maxUpdaterSlot);
+        }
+
+        void add(int counterSlot, long value) {
+            values.add(counterSlot, value);
+        }
+
+        void updateMax(int maxUpdaterSlot, long value) {
+            values.updateMax(schema.counters.length + maxUpdaterSlot, value);
+        }
+
+        /**
+         * The encoded value of a reducer, see {@link NumerusRollingNumberReducer}.
+         */
+        long reduced(int reducerSlot) {
+            return values.reduce(reducerIndex(reducerSlot), schema.reducerFunctions[reducerSlot].operator);
+        }
+
+        /**
+         * Same as {@link #reduced} but resets the value to 0 (no value), see {@link BucketValues#reduceThenReset}.
+         */
+        long reducedThenReset(int reducerSlot) {
+            return values.reduceThenReset(reducerIndex(reducerSlot), schema.reducerFunctions[reducerSlot].operator);
+        }
+
+        /**
+         * Combine an encoded value into a reducer.
+         */
+        void reduce(int reducerSlot, long encoded) {
+            NumerusRollingNumberReducer reducer = schema.reducerFunctions[reducerSlot];
+            if (reducer == NumerusRollingNumberReducer.LAST_VALUE) {
+                // "last" is only meaningful for a single value, not one per stripe
+                values.set(reducerIndex(reducerSlot), encoded);
+            } else {
+                values.accumulate(reducerIndex(reducerSlot), encoded, reducer.operator);
             }
+        }
 
-            updaterForCounterType = new LongMaxUpdater[events.getValues().length];
-            for (NumerusRollingNumberEvent type : events.getValues()) {
-                if (type.isMaxUpdater()) {
-                    updaterForCounterType[type.ordinal()] = new LongMaxUpdater();
-                    // initialize to 0 otherwise it is Long.MIN_VALUE
-                    updaterForCounterType[type.ordinal()].update(0);
-                }
+        /**
+         * Add to a counter, update a max or combine into a reducer depending on the kind of type of the slot (see EventSchema), for the values of the
+         * events given a time which don't go through the write buffer.
+         */
+        void update(int kind, int slot, long value) {
+            switch (kind) {
+            case EventSchema.COUNTER:
+                add(slot, value);
+                break;
+            case EventSchema.MAX_UPDATER:
+                updateMax(slot, value);
+                break;
+            default:
+                reduce(slot, value);
             }
         }
 
-        long get(NumerusRollingNumberEvent type) {
-            if (type.isCounter()) {
-                return adderForCounterType[type.ordinal()].sum();
+        /**
+         * Move the values of this bucket into the given one, leaving this one reset. Like {@link CumulativeSum#addBucket} a value written concurrently
+         * is either moved or left in this bucket.
+         */
+        void moveTo(Bucket to) {
+            for (int s = nextCounter(0); s < schema.counters.length; s = nextCounter(s + 1)) {
+                long value = sumThenReset(s);
+                if (value != 0) {
+                    to.add(s, value);
+                }
             }
-            if (type.isMaxUpdater()) {
-                return updaterForCounterType[type.ordinal()].max();
+            for (int s = nextMaxUpdater(0); s < schema.maxUpdaters.length; s = nextMaxUpdater(s + 1)) {
+                long value = maxThenReset(s);
+                if (value != 0) {
+                    to.updateMax(s, value);
+                }
+            }
+            for (int s = nextReducer(0); s < schema.reducers.length; s = nextReducer(s + 1)) {
+                long value = reducedThenReset(s);
+                if (value != 0) {
+                    to.reduce(s, value);
+                }
             }
-            throw new IllegalStateException("Unknown type of event: " + type.name());
         }
 
-        LongAdder getAdder(NumerusRollingNumberEvent type) {
-            if (!type.isCounter()) {
-                throw new IllegalStateException("Type is not a Counter: " + type.name());
-            }
-            return adderForCounterType[type.ordinal()];
+        private int reducerIndex(int reducerSlot) {
+            return schema.counters.length + schema.maxUpdaters.length + reducerSlot;
         }
 
-        LongMaxUpdater getMaxUpdater(NumerusRollingNumberEvent type) {
-            if (!type.isMaxUpdater()) {
-                throw new IllegalStateException("Type is not a MaxUpdater: " + type.name());
-            }
-            return updaterForCounterType[type.ordinal()];
+        /**
+         * Collapse the striping of the values if there was no contention since the last call, see {@link BucketValues#decay}.
+         */
+        void decay() {
+            values.decay(schema.operators);
+        }
+
+        /**
+         * The first counter slot from the given one that may have a value, or the number of counters if there is none (see {@link BucketValues#next}).
+         * <p>
+         * Loops over the counters of a bucket go through this so they only visit the values that were written to with sparse storage.
+         */
+        int nextCounter(int counterSlot) {
+            return Math.min(values.next(counterSlot), schema.counters.length);
+        }
+
+        /**
+         * The first max updater slot from the given one that may have a value, or the number of max updaters if there is none, see {@link #nextCounter}.
+         */
+        int nextMaxUpdater(int maxUpdaterSlot) {
+            return Math.min(values.next(schema.counters.length + maxUpdaterSlot), schema.counters.length + schema.maxUpdaters.length) - schema.counters.length;
+        }
+
+        /**
+         * The first reducer slot from the given one that may have a value, or the number of reducers if there is none, see {@link #nextCounter}.
+         */
+        int nextReducer(int reducerSlot) {
+            return values.next(reducerIndex(reducerSlot)) - schema.counters.length - schema.maxUpdaters.length;
         }
 
     }
 
     /**
-     * Cumulative counters (from start of JVM) from each Type
+     * Counter values buffered by a thread when writes are buffered, only ever accessed by that thread.
      */
-    /* package */static class CumulativeSum {
-        final LongAdder[] adderForCounterType;
-        final LongMaxUpdater[] updaterForCounterType;
-        final NumerusRollingNumberEvent event;
-
-        CumulativeSum(NumerusRollingNumberEvent event) {
-            this.event = event;
+    private static class WriteBuffer {
+        final long[] values; // by counter slot
+        /*
+         * The epoch and flush request the values were buffered since, the initial values make sure the first write flushes (which is a no-op)
+         * and sets them.
+         */
+        long epoch = Long.MIN_VALUE;
+        int flushRequests;
 
-            /*
-             * We support both LongAdder and LongMaxUpdater in a bucket but don't want the memory allocation
-             * of all types for each so we only allocate the objects if the HystrixRollingNumberEvent matches
-             * the correct type - though we still have the allocation of empty arrays to the given length
-             * as we want to keep using the type.ordinal() value for fast random access.
-             */
+        WriteBuffer(int length) {
+            this.values = new long[length];
+        }
 
-            // initialize the array of LongAdders
-            adderForCounterType = new LongAdder[event.getValues().length];
-            for (NumerusRollingNumberEvent type : event.getValues()) {
-                if (type.isCounter()) {
-                    adderForCounterType[type.ordinal()] = new LongAdder();
+        void flushTo(Bucket bucket) {
+            for (int s = 0; s < values.length; s++) {
+                if (values[s] != 0) {
+                    bucket.add(s, values[s]);
+                    values[s] = 0;
                 }
             }
+        }
 
-            updaterForCounterType = new LongMaxUpdater[event.getValues().length];
-            for (NumerusRollingNumberEvent type : event.getValues()) {
-                if (type.isMaxUpdater()) {
-                    updaterForCounterType[type.ordinal()] = new LongMaxUpdater();
-                    // initialize to 0 otherwise it is Long.MIN_VALUE
-                    updaterForCounterType[type.ordinal()].update(0);
-                }
-            }
+    }
+
+    /**
+     * Cumulative counters (from start of JVM) from each Type
+     */
+    /* package */static class CumulativeSum {
+        /*
+         * Counters then max updaters then reducers as in a Bucket, in the same NumerusBucketStorage so that with sparse storage only the types that were written to
+         * take up space here as well.
+         * 
+         * Written by the thread rotating the buckets (or clearing or resizing them), the values being thread-safe for the rare case of a resize
+         * overlapping a rotation of the new buckets.
+         */
+        final Bucket values;
+        final EventSchema schema;
+
+        CumulativeSum(EventSchema schema, NumerusBucketStorage storage) {
+            this.schema = schema;
+            this.values = new Bucket(schema, storage.allocate(1, schema.numberOfValues)[0], 0);
         }
 
+        /**
+         * Move the values of a bucket that is about to be recycled into the cumulative sum, leaving the bucket reset in place.
+         * <p>
+         * This keeps the bucket's striped values (and any rows they have inflated under contention) rather than allocating new ones on every rotation, the
+         * rows only being dropped when the bucket saw no contention this time around (see {@link BucketValues#decay}).
+         * <p>
+         * Values are taken with sumThenReset/maxThenReset so anything a straggling writer adds after this point stays in the bucket (to be moved the next
+         * time around) rather than being lost or counted twice.
+         */
         public void addBucket(Bucket lastBucket) {
-            for (NumerusRollingNumberEvent type : event.getValues()) {
-                if (type.isCounter()) {
-                    getAdder(type).add(lastBucket.getAdder(type).sum());
+            for (int s = lastBucket.nextCounter(0); s < schema.counters.length; s = lastBucket.nextCounter(s + 1)) {
+                long value = lastBucket.sumThenReset(s);
+                if (value != 0) {
+                    values.add(s, value);
+                }
+            }
+            for (int s = lastBucket.nextMaxUpdater(0); s < schema.maxUpdaters.length; s = lastBucket.nextMaxUpdater(s + 1)) {
+                long value = lastBucket.maxThenReset(s);
+                if (value != 0) {
+                    values.updateMax(s, value);
                 }
-                if (type.isMaxUpdater()) {
-                    getMaxUpdater(type).update(lastBucket.getMaxUpdater(type).max());
+            }
+            // buckets are recycled oldest first, which matters for the last value
+            for (int s = lastBucket.nextReducer(0); s < schema.reducers.length; s = lastBucket.nextReducer(s + 1)) {
+                long value = lastBucket.reducedThenReset(s);
+                if (value != 0) {
+                    values.reduce(s, value);
                 }
             }
+            // the bucket was current for one bucket of time since it was last recycled, if none of it was contended it goes back to a single stripe
+            lastBucket.decay();
         }
 
         long get(NumerusRollingNumberEvent type) {
-            if (type.isCounter()) {
-                return adderForCounterType[type.ordinal()].sum();
-            }
-            if (type.isMaxUpdater()) {
-                return updaterForCounterType[type.ordinal()].max();
+            return values.get(type);
+        }
+
+    }
+
+    /**
+     * Max of the values added over a sliding window of epochs.
+     * <p>
+     * This is a monotonic queue: values are kept in decreasing order from head to tail since a value that is smaller than one added after it can never be the
+     * max again. The head is therefore always the max and adding or evicting a value is amortized O(1) with no allocation.
+     * <p>
+     * Not thread-safe, it is only accessed by the thread rotating the buckets.
+     */
+    /* package */static class SlidingWindowMax {
+        private final long[] epochs;
+        private final long[] values;
+        private int head;
+        private int size;
+
+        SlidingWindowMax(int capacity) {
+            epochs = new long[capacity];
+            values = new long[capacity];
+        }
+
+        /**
+         * Add the value for an epoch, epochs must be added in increasing order.
+         */
+        void add(long epoch, long value) {
+            // drop the values from the tail that this one makes irrelevant
+            while (size > 0 && values[index(size - 1)] <= value) {
+                size--;
             }
-            throw new IllegalStateException("Unknown type of event: " + type.name());
+            int i = index(size);
+            epochs[i] = epoch;
+            values[i] = value;
+            size++;
         }
 
-        LongAdder getAdder(NumerusRollingNumberEvent type) {
-            if (!type.isCounter()) {
-                throw new IllegalStateException("Type is not a Counter: " + type.name());
+        /**
+         * Drop the values of epochs before the given one.
+         */
+        void evictBefore(long epoch) {
+            while (size > 0 && epochs[head] < epoch) {
+                head = (head + 1) % epochs.length;
+                size--;
             }
-            return adderForCounterType[type.ordinal()];
         }
 
-        LongMaxUpdater getMaxUpdater(NumerusRollingNumberEvent type) {
-            if (!type.isMaxUpdater()) {
-                throw new IllegalStateException("Type is not a MaxUpdater: " + type.name());
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * @return the max of the values in the window, 0 if there are none (the same a bucket starts at)
+         */
+        long max() {
+            if (size == 0) {
+                return 0;
             }
-            return updaterForCounterType[type.ordinal()];
+            return values[head];
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
         }
 
+        private int index(int i) {
+            return (head + i) % epochs.length;
+        }
     }
 
     /**
-     * This is a circular array acting as a FIFO queue.
+     * This is a circular array of buckets indexed by epoch (time / bucket size) acting as a rolling window.
      * <p>
      * It purposefully does NOT implement Deque or some other Collection interface as it only implements functionality necessary for this RollingNumber use case.
      * <p>
-     * Important Thread-Safety Note: This is ONLY thread-safe within the context of RollingNumber and the protection it gives in the <code>getCurrentBucket</code> method. It uses AtomicReference
-     * objects to ensure anything done outside of <code>getCurrentBucket</code> is thread-safe, and to ensure visibility of changes across threads (ie. volatility) but the addLast and removeFirst
-     * methods are NOT thread-safe for external access they depend upon the lock.tryLock() protection in <code>getCurrentBucket</code> which ensures only a single thread will access them at at time.
+     * The Bucket objects are allocated once up front and recycled in place (see {@link CumulativeSum#addBucket}) as the window rolls so that rotating buckets
+     * does not produce garbage and the LongAdder/LongMaxUpdater cells that were inflated under contention are kept. There is one more bucket than the window holds: the spare is the bucket for
+     * the next epoch, prepared ahead of time so writers can roll into it without waiting on the thread doing the rotation.
      * <p>
-     * benjchristensen => This implementation was chosen based on performance testing I did and documented at: http://benjchristensen.com/2011/10/08/atomiccirculararray/
+     * The window state (current epoch plus a 'rotating' flag) is a single AtomicLong. A rotation is claimed with a compareAndSet on it so only one thread
+     * ever recycles buckets at a time (see <code>getCurrentBucket</code>), while writers within the current epoch only do a volatile read and compare.
+     * <p>
+     * A bucket whose epoch doesn't match the epoch asked for holds a bucket of time we didn't see any traffic in (or one that has rolled out of the window) and is
+     * treated as empty. This way buckets never need to be created just to fill in gaps.
      */
     /* package */class BucketCircularArray implements Iterable<Bucket> {
-        private final AtomicReference<ListState> state;
-        private final int dataLength; // we don't resize, we always stay the same, so remember this
+        /*
+         * the epoch of the window before the first bucket or after a reset
+         */
+        static final long EMPTY = -1;
+
+        /*
+         * the window state: the current epoch shifted left by 1 with the lowest bit set while a rotation is in progress
+         */
+        final AtomicLong state = new AtomicLong(stable(EMPTY));
+        /*
+         * preallocated buckets, these are never replaced only reset and reused
+         * 
+         * the array is final and the elements never change so it is safely published to all threads once constructed
+         */
+        private final Bucket[] data;
+        private final int dataLength; // we don't resize, we are replaced by new buckets, so remember this
         private final int numBuckets;
+        private final int timeInMilliseconds;
+        private final int bucketSize;
+        /*
+         * set once these buckets have been replaced by new ones of a different size, see resize
+         */
+        private volatile boolean retired;
+        /*
+         * the epoch the window was started at after it was last empty (only used to report size)
+         */
+        private volatile long firstEpoch = EMPTY;
+        /*
+         * the sum of the closed buckets (all but the current one) in the window for each counter type
+         * 
+         * only written by the thread rotating the buckets, an AtomicLongArray so readers can check the state before and after reading it (see getRollingSum)
+         */
+        private final AtomicLongArray closedSumForCounterType;
+        /*
+         * the running total of the closed buckets for each counter type since the window was last cleared, unlike closedSumForCounterType the buckets are not
+         * taken off it again as they roll out of the window
+         */
+        private final AtomicLongArray closedTotalForCounterType;
+        /*
+         * closedTotalForCounterType as of when the bucket of each epoch became current, by counter slot then bucket index: the running total less this is the
+         * sum of the closed buckets from that epoch on (see getRollingSum(type, millis))
+         * 
+         * it is only recorded for the epochs before closedTotalUnchangedFrom of the counter slot, so a slot only has an array once its total has changed
+         * and a rotation doesn't write to the slots whose total it doesn't change (see addToClosedTotal)
+         * 
+         * only written by the thread rotating the buckets, read the same way as closedSumForCounterType
+         */
+        private final AtomicReferenceArray<AtomicLongArray> closedTotalBeforeBucket;
+        /*
+         * the first epoch from which closedTotalForCounterType has not changed, by counter slot: the total before the bucket of this epoch or a later one is
+         * the running total itself
+         */
+        private final AtomicLongArray closedTotalUnchangedFrom;
+        /*
+         * the max of the closed buckets in the window for each max updater type, published from closedMaxWindowForMaxType after each rotation
+         */
+        private final AtomicLongArray closedMaxForMaxUpdaterType;
+        /*
+         * sliding window max of the closed buckets for each max updater type (null for other types), only accessed by the thread rotating the buckets
+         */
+        private final SlidingWindowMax[] closedMaxWindowForMaxUpdaterType;
+        /*
+         * the slots of the max updater types that had a closed bucket added to their window since it was last found empty, so that a rotation only moves
+         * those windows forward rather than one for every max updater type of the schema (unordered, with a flag per slot so that each is listed once)
+         * 
+         * only accessed by the thread rotating the buckets
+         */
+        private final int[] activeMaxUpdaterSlots;
+        private final boolean[] isActiveMaxUpdaterSlot;
+        private int activeMaxUpdaterCount;
+        /*
+         * FIFO queue of the epochs that were closed and are still counted in closedSumForCounterType, oldest first
+         * 
+         * only accessed by the thread rotating the buckets, so that it evicts the buckets that were actually closed rather than walking every epoch
+         * that rolled out of the window (which after an idle gap would be up to numBuckets of them)
+         */
+        private final long[] closedEpochs;
+        private int closedEpochsHead;
+        private int closedEpochsCount;
+
+        BucketCircularArray(int timeInMilliseconds, int size) {
+            this.timeInMilliseconds = timeInMilliseconds;
+            this.bucketSize = timeInMilliseconds / size;
+            data = new Bucket[size + 1]; // + 1 for the spare bucket of the next epoch
+            BucketValues[] values = storage.allocate(data.length, schema.numberOfValues);
+            for (int i = 0; i < data.length; i++) {
+                data[i] = new Bucket(schema, values[i], EMPTY);
+            }
+            dataLength = data.length;
+            numBuckets = size;
+            closedSumForCounterType = new AtomicLongArray(schema.counters.length);
+            closedTotalForCounterType = new AtomicLongArray(schema.counters.length);
+            closedTotalBeforeBucket = new AtomicReferenceArray<AtomicLongArray>(schema.counters.length);
+            closedTotalUnchangedFrom = new AtomicLongArray(schema.counters.length);
+            closedMaxForMaxUpdaterType = new AtomicLongArray(schema.maxUpdaters.length);
+            closedMaxWindowForMaxUpdaterType = new SlidingWindowMax[schema.maxUpdaters.length];
+            for (int s = 0; s < closedMaxWindowForMaxUpdaterType.length; s++) {
+                // the closed buckets in the window plus the ones closing during a rotation
+                closedMaxWindowForMaxUpdaterType[s] = new SlidingWindowMax(size + 1);
+            }
+            activeMaxUpdaterSlots = new int[schema.maxUpdaters.length];
+            isActiveMaxUpdaterSlot = new boolean[schema.maxUpdaters.length];
+            // the closed buckets in the window plus the ones closing during a rotation
+            closedEpochs = new long[size + 1];
+        }
+
+        long stable(long epoch) {
+            return epoch << 1;
+        }
+
+        long rotating(long epoch) {
+            return (epoch << 1) | 1;
+        }
+
+        long epochOf(long state) {
+            return state >> 1;
+        }
+
+        boolean isRotating(long state) {
+            return (state & 1) != 0;
+        }
+
+        /**
+         * The bucket at the index of the given epoch, which may not (yet) hold the given epoch.
+         */
+        Bucket bucketFor(long epoch) {
+            return data[(int) (epoch % dataLength)];
+        }
+
+        /**
+         * The bucket holding the given epoch or null if there is none (no traffic during that epoch or it has rolled out of the window).
+         */
+        Bucket bucketAt(long epoch) {
+            if (epoch < 0) {
+                return null;
+            }
+            Bucket b = bucketFor(epoch);
+            if (b.epoch == epoch) {
+                return b;
+            } else {
+                return null;
+            }
+        }
+
+        long getCurrentEpoch() {
+            return epochOf(state.get());
+        }
 
         /**
-         * Immutable object that is atomically set every time the state of the BucketCircularArray changes
+         * Move the window from one epoch to a later one.
+         * <p>
+         * This must ONLY be called by the thread that won the compareAndSet of the window state in <code>getCurrentBucket</code>.
          * <p>
-         * This handles the compound operations
+         * Only the bucket for the new epoch and the spare after it are touched, the other buckets of epochs that were skipped over are just left behind and
+         * treated as empty (their epoch doesn't match) until they come around again.
+         * <p>
+         * The closed sums are moved forward at the same time: the buckets that just closed are added and the buckets that rolled out of the window are taken off.
          */
-        private class ListState {
-            /*
-             * this is an AtomicReferenceArray and not a normal Array because we're copying the reference
-             * between ListState objects and multiple threads could maintain references across these
-             * compound operations so I want the visibility/concurrency guarantees
-             */
-            private final AtomicReferenceArray<Bucket> data;
-            private final int size;
-            private final int tail;
-            private final int head;
-
-            private ListState(AtomicReferenceArray<Bucket> data, int head, int tail) {
-                this.head = head;
-                this.tail = tail;
-                if (head == 0 && tail == 0) {
-                    size = 0;
-                } else {
-                    this.size = (tail + dataLength - head) % dataLength;
+        void rotate(long fromEpoch, long toEpoch) {
+            if (fromEpoch == EMPTY || toEpoch - fromEpoch > numBuckets + 1) {
+                // everything that was in the window (including the spare) has rolled out of it, though not necessarily out of a coarser tier's
+                if (fromEpoch != EMPTY) {
+                    rollUp(fromEpoch);
+                    rollUp(fromEpoch + 1);
                 }
-                this.data = data;
+                clearClosed();
+            } else {
+                close(fromEpoch, true);
+                if (fromEpoch + 1 < toEpoch) {
+                    // the spare may have been written to during the previous rotation
+                    close(fromEpoch + 1, true);
+                }
+                // epochs from the start of the old window up to the start of the new one (only those with a bucket count, the spare being the last one that can)
+                long lastEvicted = Math.min(toEpoch - numBuckets, fromEpoch + 1);
+                while (closedEpochsCount > 0 && closedEpochs[closedEpochsHead] <= lastEvicted) {
+                    evict(closedEpochs[closedEpochsHead]);
+                    closedEpochsHead = (closedEpochsHead + 1) % closedEpochs.length;
+                    closedEpochsCount--;
+                }
+                evictClosedMaxBefore(toEpoch - numBuckets + 1);
             }
 
-            public Bucket tail() {
-                if (size == 0) {
-                    return null;
-                } else {
-                    // we want to get the last item, so size()-1
-                    return data.get(convert(size - 1));
+            // now that nothing refers to their epochs any more the buckets can be recycled
+            recycle(bucketFor(toEpoch), toEpoch);
+            // the spare's index last held the epoch before the start of the new window so it is not in use by anyone
+            recycle(bucketFor(toEpoch + 1), toEpoch + 1);
+
+            if (fromEpoch == EMPTY || toEpoch - fromEpoch > numBuckets) {
+                // the time passed is greater than the entire rolling counter so we start from scratch
+                firstEpoch = toEpoch;
+            }
+        }
+
+        /**
+         * Add a bucket that has closed to the closed sums, and to the next coarser tier if rollUp is set and there is one.
+         */
+        private void close(long epoch, boolean rollUp) {
+            Bucket b = bucketAt(epoch);
+            if (b == null) {
+                return;
+            }
+            closedEpochs[(closedEpochsHead + closedEpochsCount) % closedEpochs.length] = epoch;
+            closedEpochsCount++;
+            // slots that were never written to in this bucket have a closed value of 0 and are skipped by evict as well
+            for (int s = b.nextCounter(0); s < schema.counters.length; s = b.nextCounter(s + 1)) {
+                long value = b.sum(s);
+                b.closedValueForCounterType[s] = value;
+                if (value != 0) {
+                    closedSumForCounterType.addAndGet(s, value);
+                    addToClosedTotal(s, value, epoch);
                 }
             }
+            // leaving out a 0 makes no difference to the max of a window
+            for (int s = b.nextMaxUpdater(0); s < schema.maxUpdaters.length; s = b.nextMaxUpdater(s + 1)) {
+                addClosedMax(s, epoch, b.max(s));
+            }
+            if (rollUp) {
+                rollUp(epoch);
+            }
+        }
 
-            private Bucket[] getArray() {
-                /*
-                 * this isn't technically thread-safe since it requires multiple reads on something that can change
-                 * but since we never clear the data directly, only increment/decrement head/tail we would never get a NULL
-                 * just potentially return stale data which we are okay with doing
-                 */
-                ArrayList<Bucket> array = new ArrayList<Bucket>();
-                for (int i = 0; i < size; i++) {
-                    array.add(data.get(convert(i)));
+        /**
+         * Add to a counter (or update a max or reducer) in the bucket of the given time when it is not the current bucket, see
+         * {@link NumerusRollingNumber#add(NumerusRollingNumberEvent, long, long)}.
+         * <p>
+         * The window is claimed the same way as for a rotation so that the bucket (if it has closed) and the closed sums are updated together, and a bucket of
+         * time that had no traffic can be added to the window.
+         *
+         * @return false if the time is out of the window
+         */
+        boolean addLate(int slot, int kind, long value, long timeInMilliseconds) {
+            long epoch = timeInMilliseconds / bucketSize;
+            while (true) {
+                long current = state.get();
+                if (!isRotating(current) && state.compareAndSet(current, rotating(epochOf(current)))) {
+                    long currentEpoch = epochOf(current);
+                    try {
+                        if (currentEpoch == EMPTY || epoch > currentEpoch || epoch <= currentEpoch - numBuckets) {
+                            return false;
+                        }
+                        if (epoch == currentEpoch) {
+                            // the current bucket after all (the window was moved forward to it in the meantime)
+                            bucketFor(epoch).update(kind, slot, value);
+                        } else if (kind == EventSchema.REDUCER) {
+                            // the reducers of the closed buckets are read from the buckets, there is nothing else to update
+                            open(epoch).reduce(slot, value);
+                        } else if (kind == EventSchema.MAX_UPDATER) {
+                            open(epoch).updateMax(slot, value);
+                            // a max can't be taken off so the max of the closed buckets starts over
+                            SlidingWindowMax window = closedMaxWindowForMaxUpdaterType[slot];
+                            window.clear();
+                            for (int i = 0; i < closedEpochsCount; i++) {
+                                Bucket b = bucketAt(closedEpochs[(closedEpochsHead + i) % closedEpochs.length]);
+                                if (b != null) {
+                                    addClosedMax(slot, b.epoch, b.max(slot));
+                                }
+                            }
+                            closedMaxForMaxUpdaterType.set(slot, window.max());
+                        } else {
+                            Bucket b = open(epoch);
+                            b.add(slot, value);
+                            b.closedValueForCounterType[slot] += value;
+                            closedSumForCounterType.addAndGet(slot, value);
+                            addToClosedTotal(slot, value, epoch);
+                        }
+                    } finally {
+                        state.set(current);
+                    }
+                    // the bucket has already been rolled up if it closed
+                    NumerusRollingNumber coarser = rollUp;
+                    if (coarser != null && epoch != currentEpoch) {
+                        coarser.addAt(slot, kind, value, epoch * bucketSize);
+                    }
+                    return true;
+                }
+                if (retired) {
+                    return buckets.addLate(slot, kind, value, timeInMilliseconds);
+                }
+                Thread.yield();
+            }
+        }
+
+        /**
+         * Load events into the window, see {@link NumerusRollingNumber#load}. The window is claimed the same way as in {@link #addLate}.
+         */
+        void load(long[] timestamps, int[] types, long[] values, int offset, int length) {
+            while (true) {
+                long current = state.get();
+                if (!isRotating(current) && state.compareAndSet(current, rotating(epochOf(current)))) {
+                    try {
+                        load(epochOf(current), timestamps, types, values, offset, length);
+                    } finally {
+                        state.set(current);
+                    }
+                    return;
                 }
-                return array.toArray(new Bucket[array.size()]);
+                if (retired) {
+                    buckets.load(timestamps, types, values, offset, length);
+                    return;
+                }
+                Thread.yield();
             }
+        }
 
-            private ListState incrementTail() {
-                /* if incrementing results in growing larger than 'length' which is the max we should be at, then also increment head (equivalent of removeFirst but done atomically) */
-                if (size == numBuckets) {
-                    // increment tail and head
-                    return new ListState(data, (head + 1) % dataLength, (tail + 1) % dataLength);
+        private void load(long currentEpoch, long[] timestamps, int[] types, long[] values, int offset, int length) {
+            int counters = schema.counters.length;
+            int firstReducer = counters + schema.maxUpdaters.length;
+            // the values of the events of one epoch, counters then max updaters then encoded reducers as in a bucket
+            long[] run = new long[schema.numberOfValues];
+            int runLength = 0;
+            long runEpoch = EMPTY;
+            // the events have been checked to be sorted by time
+            for (int i = offset; i < offset + length; i++) {
+                long epoch = timestamps[i] / bucketSize;
+                if (epoch != runEpoch) {
+                    loadRun(currentEpoch, runEpoch, run, runLength);
+                    runEpoch = epoch;
+                    runLength = 0;
+                }
+                int index = schema.valueIndex(types[i]);
+                if (index < counters) {
+                    run[index] += values[i];
+                } else if (index < firstReducer) {
+                    run[index] = Math.max(run[index], values[i]);
                 } else {
-                    // increment only tail
-                    return new ListState(data, head, (tail + 1) % dataLength);
+                    // in order of time within the epoch, which matters for the last value
+                    NumerusRollingNumberReducer reducer = schema.reducerFunctions[index - firstReducer];
+                    run[index] = reducer.combine(run[index], reducer.encode(values[i]));
                 }
+                runLength++;
             }
+            loadRun(currentEpoch, runEpoch, run, runLength);
 
-            public ListState clear() {
-                return new ListState(new AtomicReferenceArray<Bucket>(dataLength), 0, 0);
+            // a max can't be taken off so the closed maxes are worked out again
+            for (int i = 0; i < activeMaxUpdaterCount; i++) {
+                closedMaxWindowForMaxUpdaterType[activeMaxUpdaterSlots[i]].clear();
             }
+            for (int i = 0; i < closedEpochsCount; i++) {
+                Bucket b = bucketAt(closedEpochs[(closedEpochsHead + i) % closedEpochs.length]);
+                if (b != null) {
+                    for (int s = b.nextMaxUpdater(0); s < schema.maxUpdaters.length; s = b.nextMaxUpdater(s + 1)) {
+                        addClosedMax(s, b.epoch, b.max(s));
+                    }
+                }
+            }
+            evictClosedMaxBefore(currentEpoch - numBuckets + 1);
+        }
 
-            public ListState addBucket(Bucket b) {
-                /*
-                 * We could in theory have 2 threads addBucket concurrently and this compound operation would interleave.
-                 * <p>
-                 * This should NOT happen since getCurrentBucket is supposed to be executed by a single thread.
-                 * <p>
-                 * If it does happen, it's not a huge deal as incrementTail() will be protected by compareAndSet and one of the two addBucket calls will succeed with one of the Buckets.
-                 * <p>
-                 * In either case, a single Bucket will be returned as "last" and data loss should not occur and everything keeps in sync for head/tail.
-                 * <p>
-                 * Also, it's fine to set it before incrementTail because nothing else should be referencing that index position until incrementTail occurs.
-                 */
-                data.set(tail, b);
-                return incrementTail();
+        /**
+         * Write the values of the events of one epoch to its bucket (or the cumulative sum if it is before the window) and reset them.
+         */
+        private void loadRun(long currentEpoch, long epoch, long[] run, int runLength) {
+            if (runLength == 0) {
+                return;
+            }
+            int counters = schema.counters.length;
+            int firstReducer = counters + schema.maxUpdaters.length;
+            if (currentEpoch == EMPTY || epoch > currentEpoch) {
+                droppedEvents.addAndGet(runLength);
+            } else if (epoch <= currentEpoch - numBuckets) {
+                for (int i = 0; i < run.length; i++) {
+                    if (run[i] != 0) {
+                        if (i < counters) {
+                            cumulativeSum.values.add(i, run[i]);
+                        } else if (i < firstReducer) {
+                            cumulativeSum.values.updateMax(i - counters, run[i]);
+                        } else {
+                            cumulativeSum.values.reduce(i - firstReducer, run[i]);
+                        }
+                    }
+                }
+            } else {
+                Bucket b = epoch == currentEpoch ? bucketFor(epoch) : open(epoch);
+                for (int i = 0; i < run.length; i++) {
+                    if (run[i] != 0) {
+                        if (i >= firstReducer) {
+                            b.reduce(i - firstReducer, run[i]);
+                        } else if (i >= counters) {
+                            b.updateMax(i - counters, run[i]);
+                        } else {
+                            b.add(i, run[i]);
+                            if (epoch != currentEpoch) {
+                                b.closedValueForCounterType[i] += run[i];
+                                closedSumForCounterType.addAndGet(i, run[i]);
+                                addToClosedTotal(i, run[i], epoch);
+                            }
+                        }
+                    }
+                }
+            }
+            Arrays.fill(run, 0);
+        }
+
+        /**
+         * The closed bucket of the given epoch in the window, creating it (as if it had been closed with nothing in it) if there was no traffic in that
+         * epoch.
+         */
+        private Bucket open(long epoch) {
+            Bucket b = bucketAt(epoch);
+            if (b != null) {
+                return b;
+            }
+            b = bucketFor(epoch);
+            // it holds an epoch that rolled out of the window and has been evicted
+            recycle(b, epoch);
+            Arrays.fill(b.closedValueForCounterType, 0);
+            // into the queue of closed epochs in order
+            int i = closedEpochsCount;
+            while (i > 0 && closedEpochs[(closedEpochsHead + i - 1) % closedEpochs.length] > epoch) {
+                closedEpochs[(closedEpochsHead + i) % closedEpochs.length] = closedEpochs[(closedEpochsHead + i - 1) % closedEpochs.length];
+                i--;
+            }
+            closedEpochs[(closedEpochsHead + i) % closedEpochs.length] = epoch;
+            closedEpochsCount++;
+            if (epoch < firstEpoch) {
+                firstEpoch = epoch;
             }
+            return b;
+        }
 
-            // The convert() method takes a logical index (as if head was
-            // always 0) and calculates the index within elementData
-            private int convert(int index) {
-                return (index + head) % dataLength;
+        /**
+         * Add the value of the closed bucket of the given epoch to the running total of the closed buckets for a counter type, it is in the total before
+         * every epoch after it.
+         * <p>
+         * The totals before the epochs from the last change of the total up to this epoch are recorded as the total before this change, those already
+         * recorded after this epoch (for a bucket closed late) are added to, and from the epoch after it on the total before an epoch is the running total
+         * itself. So only the types a rotation adds to are written to, once for each epoch since they were last added to (up to the window).
+         */
+        private void addToClosedTotal(int slot, long value, long epoch) {
+            long unchangedFrom = closedTotalUnchangedFrom.get(slot);
+            AtomicLongArray totals = closedTotalBeforeBucket.get(slot);
+            if (epoch >= unchangedFrom) {
+                if (totals == null) {
+                    totals = new AtomicLongArray(dataLength);
+                    closedTotalBeforeBucket.set(slot, totals);
+                }
+                long total = closedTotalForCounterType.get(slot);
+                for (long e = Math.max(unchangedFrom, epoch - dataLength + 1); e <= epoch; e++) {
+                    totals.lazySet((int) (e % dataLength), total);
+                }
+                closedTotalUnchangedFrom.set(slot, epoch + 1);
+            } else {
+                for (long e = epoch + 1; e < unchangedFrom; e++) {
+                    totals.addAndGet((int) (e % dataLength), value);
+                }
             }
+            closedTotalForCounterType.addAndGet(slot, value);
         }
 
-        BucketCircularArray(int size) {
-            AtomicReferenceArray<Bucket> _buckets = new AtomicReferenceArray<Bucket>(size + 1); // + 1 as extra room for the add/remove;
-            state = new AtomicReference<ListState>(new ListState(_buckets, 0, 0));
-            dataLength = _buckets.length();
-            numBuckets = size;
+        /**
+         * Add a bucket that has closed to the next coarser tier if there is one.
+         */
+        private void rollUp(long epoch) {
+            NumerusRollingNumber coarser = rollUp;
+            Bucket b = bucketAt(epoch);
+            if (coarser != null && b != null) {
+                coarser.addClosedBucket(epoch * bucketSize, b);
+            }
+        }
+
+        private void evict(long epoch) {
+            Bucket b = bucketAt(epoch);
+            if (b == null) {
+                return;
+            }
+            for (int s = b.nextCounter(0); s < schema.counters.length; s = b.nextCounter(s + 1)) {
+                long value = b.closedValueForCounterType[s];
+                if (value != 0) {
+                    closedSumForCounterType.addAndGet(s, -value);
+                }
+            }
+        }
+
+        private void clearClosed() {
+            closedEpochsHead = 0;
+            closedEpochsCount = 0;
+            for (int i = 0; i < closedSumForCounterType.length(); i++) {
+                closedSumForCounterType.set(i, 0);
+                closedTotalForCounterType.set(i, 0);
+                closedTotalUnchangedFrom.set(i, 0);
+            }
+            for (int i = 0; i < activeMaxUpdaterCount; i++) {
+                int s = activeMaxUpdaterSlots[i];
+                closedMaxWindowForMaxUpdaterType[s].clear();
+                closedMaxForMaxUpdaterType.set(s, 0);
+                isActiveMaxUpdaterSlot[s] = false;
+            }
+            activeMaxUpdaterCount = 0;
+        }
+
+        /**
+         * Add the max of a closed bucket to the window of the max updater type in the given slot, listing the slot as active.
+         */
+        private void addClosedMax(int slot, long epoch, long value) {
+            if (!isActiveMaxUpdaterSlot[slot]) {
+                isActiveMaxUpdaterSlot[slot] = true;
+                activeMaxUpdaterSlots[activeMaxUpdaterCount++] = slot;
+            }
+            closedMaxWindowForMaxUpdaterType[slot].add(epoch, value);
+        }
+
+        /**
+         * Drop the epochs before the given one from the windows of the active max updater types and publish their max, the slots whose window is now
+         * empty are no longer active.
+         */
+        private void evictClosedMaxBefore(long epoch) {
+            int i = 0;
+            while (i < activeMaxUpdaterCount) {
+                int s = activeMaxUpdaterSlots[i];
+                SlidingWindowMax window = closedMaxWindowForMaxUpdaterType[s];
+                window.evictBefore(epoch);
+                closedMaxForMaxUpdaterType.set(s, window.max());
+                if (window.isEmpty()) {
+                    isActiveMaxUpdaterSlot[s] = false;
+                    activeMaxUpdaterSlots[i] = activeMaxUpdaterSlots[--activeMaxUpdaterCount];
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        private void recycle(Bucket b, long epoch) {
+            if (b.epoch == epoch) {
+                // already prepared as the spare
+                return;
+            }
+            // move the values of the bucket to the cumulativeSum which resets it
+            cumulativeSum.addBucket(b);
+            b.epoch = epoch;
         }
 
         public void clear() {
             while (true) {
                 /*
-                 * it should be very hard to not succeed the first pass thru since this is typically is only called from
-                 * a single thread protected by a tryLock, but there is at least 1 other place (at time of writing this comment)
-                 * where reset can be called from (CircuitBreaker.markSuccess after circuit was tripped) so it can
-                 * in an edge-case conflict.
+                 * Claim the window the same way a rotation does so nothing is recycling buckets while we clear them.
                  * 
-                 * Instead of trying to determine if someone already successfully called clear() and we should skip
-                 * we will have both calls reset the circuit, even if that means losing data added in between the two
-                 * depending on thread scheduling.
-                 * 
-                 * The rare scenario in which that would occur, we'll accept the possible data loss while clearing it
-                 * since the code has stated its desire to clear() anyways.
+                 * This can conflict with a rotation or another clear() (CircuitBreaker.markSuccess after circuit was tripped for example) in which case
+                 * we just wait for the other thread and then clear. Data added concurrently may land in the cumulativeSum rather than the new window,
+                 * that is acceptable since the code has stated its desire to clear() anyways.
                  */
-                ListState current = state.get();
-                ListState newState = current.clear();
-                if (state.compareAndSet(current, newState)) {
+                long current = state.get();
+                if (!isRotating(current) && state.compareAndSet(current, rotating(epochOf(current)))) {
+                    try {
+                        // oldest first as a rotation would, for the last values
+                        int oldest = oldestIndex(epochOf(current));
+                        for (int i = 0; i < dataLength; i++) {
+                            Bucket b = data[(oldest + i) % dataLength];
+                            cumulativeSum.addBucket(b);
+                            b.epoch = EMPTY;
+                        }
+                        clearClosed();
+                        firstEpoch = EMPTY;
+                    } finally {
+                        state.set(stable(EMPTY));
+                    }
+                    return;
+                }
+                if (retired) {
+                    buckets.clear();
                     return;
                 }
+                Thread.yield();
             }
         }
 
         /**
-         * Returns an iterator on a copy of the internal array so that the iterator won't fail by buckets being added/removed concurrently.
+         * Start these (new, unused) buckets off with the data of the window of the given buckets, as of the given time, see {@link NumerusRollingNumber#resize}.
+         * <p>
+         * This must ONLY be called by the thread that claimed the window of the given buckets and before these buckets are published.
+         */
+        void rebucket(BucketCircularArray from, long now) {
+            long fromEpoch = epochOf(from.state.get());
+            if (fromEpoch == EMPTY) {
+                // nothing to move, start from EMPTY as well
+                return;
+            }
+            long toEpoch = now / bucketSize;
+            long windowStart = toEpoch - numBuckets + 1;
+            // the window of the old buckets including the spare, oldest first
+            for (long e = Math.max(fromEpoch - from.numBuckets + 1, 0); e <= fromEpoch + 1; e++) {
+                Bucket b = from.bucketAt(e);
+                if (b == null) {
+                    continue;
+                }
+                // the new epoch the old one starts in, clock skew aside that's at most the current one
+                long epoch = Math.min(e * from.bucketSize / bucketSize, toEpoch);
+                if (epoch < windowStart) {
+                    // left behind for the cumulative sum
+                    continue;
+                }
+                Bucket to = bucketFor(epoch);
+                to.epoch = epoch;
+                b.moveTo(to);
+            }
+            // then close the buckets before the current one as a rotation would have
+            for (long e = windowStart; e < toEpoch; e++) {
+                // already rolled up when they first closed
+                close(e, false);
+            }
+            evictClosedMaxBefore(windowStart);
+            bucketFor(toEpoch).epoch = toEpoch;
+            bucketFor(toEpoch + 1).epoch = toEpoch + 1;
+            firstEpoch = Math.max(windowStart, Math.min(from.firstEpoch * from.bucketSize / bucketSize, toEpoch));
+            state.set(stable(toEpoch));
+        }
+
+        /**
+         * Returns an iterator over the buckets in the window (skipping the buckets of time without traffic), oldest first.
+         * <p>
+         * It walks the epochs of the window as of when it was created directly rather than a copy. It won't fail by buckets being added/removed concurrently,
+         * but like the rest of the reads here it may return a bucket that has since been recycled.
          */
         public Iterator<Bucket> iterator() {
-            return Collections.unmodifiableList(Arrays.asList(getArray())).iterator();
+            long currentEpoch = getCurrentEpoch();
+            return new BucketIterator(currentEpoch - size() + 1, currentEpoch);
         }
 
-        public void addLast(Bucket o) {
-            ListState currentState = state.get();
-            // create new version of state (what we want it to become)
-            ListState newState = currentState.addBucket(o);
+        private class BucketIterator implements Iterator<Bucket> {
+            private long epoch;
+            private final long lastEpoch;
+            private Bucket next;
 
-            /*
-             * use compareAndSet to set in case multiple threads are attempting (which shouldn't be the case because since addLast will ONLY be called by a single thread at a time due to protection
-             * provided in <code>getCurrentBucket</code>)
-             */
-            if (state.compareAndSet(currentState, newState)) {
-                // we succeeded
-                return;
-            } else {
-                // we failed, someone else was adding or removing
-                // instead of trying again and risking multiple addLast concurrently (which shouldn't be the case)
-                // we'll just return and let the other thread 'win' and if the timing is off the next call to getCurrentBucket will fix things
-                return;
+            private BucketIterator(long firstEpoch, long lastEpoch) {
+                this.epoch = firstEpoch;
+                this.lastEpoch = lastEpoch;
+                advance();
+            }
+
+            private void advance() {
+                next = null;
+                while (next == null && epoch <= lastEpoch) {
+                    next = bucketAt(epoch++);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Bucket next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Bucket b = next;
+                advance();
+                return b;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
             }
         }
 
@@ -696,17 +2133,271 @@ public class NumerusRollingNumber {
         }
 
         public int size() {
-            // the size can also be worked out each time as:
-            // return (tail + data.length() - head) % data.length();
-            return state.get().size;
+            long currentEpoch = getCurrentEpoch();
+            if (currentEpoch == EMPTY) {
+                return 0;
+            }
+            return (int) Math.min(numBuckets, currentEpoch - firstEpoch + 1);
         }
 
         public Bucket peekLast() {
-            return state.get().tail();
+            return bucketAt(getCurrentEpoch());
+        }
+
+        /**
+         * The sum of the closed buckets plus the current bucket.
+         * <p>
+         * The state is read before and after so we retry if a rotation moved the closed sum while we were reading it (rotations are rare compared to reads
+         * so this almost never loops).
+         */
+        long getRollingSum(NumerusRollingNumberEvent type) {
+            int slot = schema.counterSlot(type);
+            while (true) {
+                long before = state.get();
+                if (isRotating(before)) {
+                    if (retired) {
+                        return buckets.getRollingSum(type);
+                    }
+                    Thread.yield();
+                    continue;
+                }
+                long currentEpoch = epochOf(before);
+                if (currentEpoch == EMPTY) {
+                    return 0;
+                }
+                long sum = closedSumForCounterType.get(slot) + bucketFor(currentEpoch).sum(slot);
+                if (state.get() == before) {
+                    return sum;
+                }
+            }
+        }
+
+        /**
+         * The sum of the most recent buckets covering the given number of milliseconds, read the same way as {@link #getRollingSum(NumerusRollingNumberEvent)}.
+         * <p>
+         * This is the current bucket plus the running total of the closed buckets less what it was when the first of the buckets asked for became current, so
+         * the cost doesn't depend on the number of buckets. Only if that bucket had no traffic (and so doesn't exist) are the following epochs looked at for
+         * the first one that did.
+         */
+        long getRollingSum(NumerusRollingNumberEvent type, long millis) {
+            int slot = schema.counterSlot(type);
+            while (true) {
+                long before = state.get();
+                if (isRotating(before)) {
+                    if (retired) {
+                        return buckets.getRollingSum(type, millis);
+                    }
+                    Thread.yield();
+                    continue;
+                }
+                long currentEpoch = epochOf(before);
+                if (currentEpoch == EMPTY) {
+                    return 0;
+                }
+                long epoch = currentEpoch - numberOfBucketsFor(millis) + 1;
+                // the current bucket is always there
+                while (bucketAt(epoch) == null) {
+                    epoch++;
+                }
+                long closedTotal = closedTotalForCounterType.get(slot);
+                long closedTotalBefore = epoch < closedTotalUnchangedFrom.get(slot) ? closedTotalBeforeBucket.get(slot).get((int) (epoch % dataLength)) : closedTotal;
+                long sum = closedTotal - closedTotalBefore + bucketFor(currentEpoch).sum(slot);
+                if (state.get() == before) {
+                    return sum;
+                }
+            }
+        }
+
+        /**
+         * The max of the most recent buckets covering the given number of milliseconds.
+         * <p>
+         * A max can't be taken off a running max the way a sum can so this reads the buckets, like {@link #getValues} it may return stale data.
+         */
+        long getRollingMax(NumerusRollingNumberEvent type, long millis) {
+            int slot = schema.maxUpdaterSlot(type);
+            long currentEpoch = getCurrentEpoch();
+            long max = 0;
+            for (long epoch = currentEpoch - numberOfBucketsFor(millis) + 1; epoch <= currentEpoch; epoch++) {
+                Bucket b = bucketAt(epoch);
+                if (b != null) {
+                    max = Math.max(max, b.max(slot));
+                }
+            }
+            return max;
+        }
+
+        /**
+         * The encoded value of a reducer over the window, read from the buckets the same way as {@link #getRollingMax(NumerusRollingNumberEvent, long)}.
+         */
+        long getRollingValue(NumerusRollingNumberEvent type) {
+            return getRollingValue(schema.reducerSlot(type), getCurrentEpoch(), numBuckets);
+        }
+
+        /**
+         * The encoded value of a reducer over the most recent buckets covering the given number of milliseconds, see {@link #getRollingValue}.
+         */
+        long getRollingValue(NumerusRollingNumberEvent type, long millis) {
+            return getRollingValue(schema.reducerSlot(type), getCurrentEpoch(), numberOfBucketsFor(millis));
+        }
+
+        private long getRollingValue(int slot, long currentEpoch, int numberOfBuckets) {
+            NumerusRollingNumberReducer reducer = schema.reducerFunctions[slot];
+            long value = 0;
+            // oldest first, which matters for the last value
+            for (long epoch = currentEpoch - numberOfBuckets + 1; epoch <= currentEpoch; epoch++) {
+                Bucket b = bucketAt(epoch);
+                if (b != null) {
+                    value = reducer.combine(value, b.reduced(slot));
+                }
+            }
+            return value;
+        }
+
+        /**
+         * The number of buckets covering the given number of milliseconds, at least 1 and at most the window.
+         */
+        private int numberOfBucketsFor(long millis) {
+            return (int) Math.max(1, Math.min(numBuckets, (millis + bucketSize - 1) / bucketSize));
+        }
+
+        /**
+         * The max of the closed buckets and the current bucket, read the same way as {@link #getRollingSum}.
+         */
+        long getRollingMax(NumerusRollingNumberEvent type) {
+            int slot = schema.maxUpdaterSlot(type);
+            while (true) {
+                long before = state.get();
+                if (isRotating(before)) {
+                    if (retired) {
+                        return buckets.getRollingMax(type);
+                    }
+                    Thread.yield();
+                    continue;
+                }
+                long currentEpoch = epochOf(before);
+                if (currentEpoch == EMPTY) {
+                    return 0;
+                }
+                long max = Math.max(closedMaxForMaxUpdaterType.get(slot), bucketFor(currentEpoch).max(slot));
+                if (state.get() == before) {
+                    return max;
+                }
+            }
         }
 
-        private Bucket[] getArray() {
-            return state.get().getArray();
+        /**
+         * The rolling value of every type, the sum for counters, the max for max updaters and the combined value for reducers, read the same way as
+         * {@link #getRollingSum} but all from the same window.
+         */
+        void getRollingValues(long[] values) {
+            while (true) {
+                long before = state.get();
+                if (isRotating(before)) {
+                    if (retired) {
+                        buckets.getRollingValues(values);
+                        return;
+                    }
+                    Thread.yield();
+                    continue;
+                }
+                long currentEpoch = epochOf(before);
+                // the types that are none of counters, max updaters and reducers are left at 0
+                Arrays.fill(values, 0, schema.length, 0);
+                if (currentEpoch == EMPTY) {
+                    return;
+                }
+                Bucket current = bucketFor(currentEpoch);
+                for (int s = 0; s < schema.counters.length; s++) {
+                    values[schema.counterOrdinals[s]] = closedSumForCounterType.get(s) + current.sum(s);
+                }
+                for (int s = 0; s < schema.maxUpdaters.length; s++) {
+                    values[schema.maxUpdaterOrdinals[s]] = Math.max(closedMaxForMaxUpdaterType.get(s), current.max(s));
+                }
+                for (int s = 0; s < schema.reducers.length; s++) {
+                    values[schema.reducerOrdinals[s]] = schema.reducerFunctions[s].decode(getRollingValue(s, currentEpoch, numBuckets));
+                }
+                if (state.get() == before) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * The values of every type of all buckets still held, see {@link #getRetainedValue}, in a single pass over the buckets. The values of the reducers
+         * are left encoded.
+         */
+        void getRetainedValues(long[] values) {
+            Arrays.fill(values, 0, schema.length, 0);
+            int oldest = oldestIndex(getCurrentEpoch());
+            for (int n = 0; n < dataLength; n++) {
+                Bucket b = data[(oldest + n) % dataLength];
+                for (int s = b.nextCounter(0); s < schema.counters.length; s = b.nextCounter(s + 1)) {
+                    values[schema.counterOrdinals[s]] += b.sum(s);
+                }
+                for (int s = b.nextMaxUpdater(0); s < schema.maxUpdaters.length; s = b.nextMaxUpdater(s + 1)) {
+                    int i = schema.maxUpdaterOrdinals[s];
+                    values[i] = Math.max(values[i], b.max(s));
+                }
+                for (int s = b.nextReducer(0); s < schema.reducers.length; s = b.nextReducer(s + 1)) {
+                    int i = schema.reducerOrdinals[s];
+                    values[i] = schema.reducerFunctions[s].combine(values[i], b.reduced(s));
+                }
+            }
+        }
+
+        /**
+         * The value for the given type of all buckets still held, whether or not they are in the window, as these have not been added to the cumulativeSum yet.
+         * The value of a reducer is left encoded.
+         */
+        long getRetainedValue(NumerusRollingNumberEvent type) {
+            long value = 0;
+            if (schema.isReducer(type)) {
+                int slot = schema.reducerSlot(type);
+                NumerusRollingNumberReducer reducer = schema.reducerFunctions[slot];
+                int oldest = oldestIndex(getCurrentEpoch());
+                for (int i = 0; i < dataLength; i++) {
+                    value = reducer.combine(value, data[(oldest + i) % dataLength].reduced(slot));
+                }
+            } else if (schema.isMaxUpdater(type)) {
+                int slot = schema.maxUpdaterSlot(type);
+                for (Bucket b : data) {
+                    value = Math.max(value, b.max(slot));
+                }
+            } else {
+                int slot = schema.counterSlot(type);
+                for (Bucket b : data) {
+                    value += b.sum(slot);
+                }
+            }
+            return value;
+        }
+
+        /**
+         * The index to walk all the buckets from, oldest first, for the reducers whose last value depends on the order.
+         * <p>
+         * It is the index of the first bucket of the window, after which come the rest of the window and the spare. Buckets left behind by a gap in traffic
+         * (see {@link #rotate}) are visited in the order the rotations would recycle them into the cumulativeSum.
+         */
+        private int oldestIndex(long currentEpoch) {
+            return currentEpoch == EMPTY ? 0 : (int) ((currentEpoch + 2) % dataLength);
+        }
+
+        /**
+         * Copy the values for the given type of the buckets in the window into the array, oldest first with 0 for the buckets of time without traffic.
+         * <p>
+         * This isn't technically thread-safe since the window can move while we read it but buckets are only recycled once they're out of the window,
+         * so at worst we return stale data which we are okay with doing.
+         * 
+         * @return number of values copied, the most recent buckets are copied if the array is smaller than the window
+         */
+        int getValues(NumerusRollingNumberEvent type, long[] values) {
+            long currentEpoch = getCurrentEpoch();
+            int length = Math.min(size(), values.length);
+            for (int i = 0; i < length; i++) {
+                Bucket b = bucketAt(currentEpoch - length + 1 + i);
+                values[i] = b == null ? 0 : b.get(type);
+            }
+            return length;
         }
 
     }
@@ -22,6 +22,7 @@ package com.netflix.numerus;
  * <ul>
  * <li>Counter: <code>isCounter() == true</code></li>
  * <li>MaxUpdater: <code>isMaxUpdater() == true</code></li>
+ * <li>Reducer: see {@link NumerusRollingNumberReducerEvent}</li>
  * </ul>
  * <p>
  * The Counter type events can be used with {@link NumerusRollingNumber#increment}, {@link NumerusRollingNumber#add}, {@link NumerusRollingNumber#getRollingSum} and others.
@@ -0,0 +1,201 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+/**
+ * How the values of a "reducer" type of {@link NumerusRollingNumberEvent} are combined, within a bucket and over the window (see
+ * {@link NumerusRollingNumberReducerEvent}).
+ * <p>
+ * A reducer with no value in the window (or bucket) reads as 0, like a max updater. For {@link #MIN} a value of <code>Long.MAX_VALUE</code> and for
+ * {@link #LAST_VALUE} a value of <code>Long.MIN_VALUE</code> are the same as no value.
+ * <p>
+ * {@link #DOUBLE_SUM} and {@link #DOUBLE_MAX} hold <code>double</code> values, written with
+ * {@link NumerusRollingNumber#updateRollingValue(NumerusRollingNumberEvent, double)} and read with
+ * {@link NumerusRollingNumber#getRollingDoubleValue(NumerusRollingNumberEvent)}. A <code>long</code> written to them is converted to a
+ * <code>double</code> and read back as a <code>long</code> rounded toward 0, the other reducers do the reverse.
+ */
+public enum NumerusRollingNumberReducer {
+
+    /**
+     * The smallest value.
+     */
+    MIN {
+        @Override
+        long encode(long value) {
+            return Long.MAX_VALUE - value;
+        }
+
+        @Override
+        long decode(long encoded) {
+            return encoded == 0 ? 0 : Long.MAX_VALUE - encoded;
+        }
+
+        @Override
+        long combine(long left, long right) {
+            // the larger of the two unsigned, see encode
+            return left + Long.MIN_VALUE > right + Long.MIN_VALUE ? left : right;
+        }
+    },
+
+    /**
+     * The most recent value, a gauge. Within a bucket this is the last value written (which is not striped: it is a single write rather than a CAS, so
+     * it is just as cheap under contention), over the window it is that of the most recent bucket with a value.
+     */
+    LAST_VALUE {
+        @Override
+        long encode(long value) {
+            return value ^ Long.MIN_VALUE;
+        }
+
+        @Override
+        long decode(long encoded) {
+            return encoded == 0 ? 0 : encoded ^ Long.MIN_VALUE;
+        }
+
+        @Override
+        long combine(long left, long right) {
+            return right != 0 ? right : left;
+        }
+    },
+
+    /**
+     * The bitwise OR of the values, for flags.
+     */
+    BITWISE_OR {
+        @Override
+        long encode(long value) {
+            return value;
+        }
+
+        @Override
+        long decode(long encoded) {
+            return encoded;
+        }
+
+        @Override
+        long combine(long left, long right) {
+            return left | right;
+        }
+    },
+
+    /**
+     * The sum of <code>double</code> values, for byte counts, costs or CPU seconds that would lose precision as a counter. Unlike a counter the sum over
+     * the window is added up from the buckets when it is read.
+     * <p>
+     * The values are added with plain <code>double</code> addition in the buckets, over the window and into the cumulative sum, not with compensated
+     * summation as {@link DoubleAdder#compensatedSum()} is, so adding values of very different magnitudes can lose the low bits of the smaller ones.
+     */
+    DOUBLE_SUM {
+        @Override
+        long encode(long value) {
+            return encode((double) value);
+        }
+
+        @Override
+        long encode(double value) {
+            return Double.doubleToRawLongBits(value);
+        }
+
+        @Override
+        double decodeDouble(long encoded) {
+            return Double.longBitsToDouble(encoded);
+        }
+
+        @Override
+        long combine(long left, long right) {
+            return Double.doubleToRawLongBits(Double.longBitsToDouble(left) + Double.longBitsToDouble(right));
+        }
+    },
+
+    /**
+     * The largest <code>double</code> value. Unlike a max updater, whose values are at least 0, the max of negative values is kept.
+     */
+    DOUBLE_MAX {
+        @Override
+        long encode(long value) {
+            return encode((double) value);
+        }
+
+        @Override
+        long encode(double value) {
+            // the bits ordered as signed longs (the magnitude of negative values reversed), then as unsigned ones
+            long bits = Double.doubleToLongBits(value);
+            return bits ^ ((bits >> 63) & Long.MAX_VALUE) ^ Long.MIN_VALUE;
+        }
+
+        @Override
+        double decodeDouble(long encoded) {
+            if (encoded == 0) {
+                return 0;
+            }
+            long bits = encoded ^ Long.MIN_VALUE;
+            return Double.longBitsToDouble(bits ^ ((bits >> 63) & Long.MAX_VALUE));
+        }
+
+        @Override
+        long combine(long left, long right) {
+            return MIN.combine(left, right);
+        }
+    };
+
+    /*
+     * The values are stored encoded so that 0 is the identity of combine, which lets them go into the same storage as the counters and max updaters whose
+     * values start at (and are reset to) 0. MIN is turned into a max of unsigned values by reversing the order, LAST_VALUE moves the value 0 out of the way
+     * of "no value". DOUBLE_SUM keeps the bits of the double (0 being 0.0), DOUBLE_MAX turns them into unsigned values in the same order as the doubles,
+     * whose max is then the same as that of MIN.
+     */
+
+    /**
+     * combine as a function, for the storage of the values
+     */
+    final LongBinaryOperator operator = new LongBinaryOperator() {
+
+        @Override
+        public long applyAsLong(long left, long right) {
+            return combine(left, right);
+        }
+
+    };
+
+    abstract long encode(long value);
+
+    /**
+     * Decode a value as a <code>long</code>, rounded toward 0 for the double reducers.
+     */
+    long decode(long encoded) {
+        return (long) decodeDouble(encoded);
+    }
+
+    /**
+     * Encode a <code>double</code> value, rounded toward 0 for the reducers of <code>long</code> values.
+     */
+    long encode(double value) {
+        return encode((long) value);
+    }
+
+    /**
+     * Decode a value as a <code>double</code>.
+     */
+    double decodeDouble(long encoded) {
+        return decode(encoded);
+    }
+
+    /**
+     * Combine two encoded values, the older one first.
+     */
+    abstract long combine(long left, long right);
+
+}
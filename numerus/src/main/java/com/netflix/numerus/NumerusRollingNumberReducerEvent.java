@@ -0,0 +1,34 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+/**
+ * A {@link NumerusRollingNumberEvent} that can also have "reducer" types, whose values are combined by a {@link NumerusRollingNumberReducer} rather than
+ * summed or maxed:
+ * <ul>
+ * <li>Reducer: <code>isCounter() == false</code>, <code>isMaxUpdater() == false</code> and <code>getReducer() != null</code></li>
+ * </ul>
+ * <p>
+ * The Reducer type events can be used with {@link NumerusRollingNumber#updateRollingValue} and {@link NumerusRollingNumber#getRollingValue}.
+ */
+public interface NumerusRollingNumberReducerEvent extends NumerusRollingNumberEvent {
+
+    /**
+     * @return how the values of this type are combined, or null if it is not a reducer
+     */
+    public NumerusRollingNumberReducer getReducer();
+
+}
@@ -15,12 +15,12 @@
  */
 package com.netflix.numerus;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.ReentrantLock;
@@ -39,13 +39,34 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class NumerusRollingPercentile {
 
-    private static final Time ACTUAL_TIME = new ActualTime();
-    private final Time time;
-    /* package for testing */final BucketCircularArray buckets;
+    private final NumerusClock time;
+    /*
+     * Replaced by new buckets when timeInMilliseconds or numberOfBuckets change, see resize.
+     */
+    /* package for testing */volatile BucketCircularArray buckets;
     private final NumerusProperty<Integer> timeInMilliseconds;
     private final NumerusProperty<Integer> numberOfBuckets;
     private final NumerusProperty<Integer> bucketDataLength;
     private final NumerusProperty<Boolean> enabled;
+    /*
+     * Set when timeInMilliseconds or numberOfBuckets change when they both tell us (see NumerusProperty.IntProperty), otherwise null, see
+     * NumerusRollingNumber.sizeChange.
+     */
+    private final PropertyChangeFlag sizeChange;
+
+    /*
+     * Reused to pass the buckets to each new PercentileSnapshot, only accessed while holding newBucketLock.
+     */
+    private Bucket[] snapshotBuckets;
+
+    /*
+     * Set by every use and cleared by the NumerusRotationScheduler, which only rotates the buckets of the instances that were used.
+     */
+    private volatile boolean used;
+    /*
+     * The number of values given a time that was out of the window, see addValueAt.
+     */
+    private final AtomicLong droppedValues = new AtomicLong();
 
     /*
      * This will get flipped each time a new bucket is created.
@@ -55,7 +76,7 @@ public class NumerusRollingPercentile {
     /**
      * 
      * @param timeInMilliseconds
-     *            {@code NumerusProperty<Integer>} for nummber of milliseconds of data that should be tracked
+     *            {@code NumerusProperty<Integer>} for number of milliseconds of data that should be tracked
      *            <p>
      *            Example: 60000 for 1 minute
      * @param numberOfBuckets
@@ -72,22 +93,37 @@ public class NumerusRollingPercentile {
      *            If 'false' methods will do nothing.
      */
     public NumerusRollingPercentile(NumerusProperty<Integer> timeInMilliseconds, NumerusProperty<Integer> numberOfBuckets, NumerusProperty<Integer> bucketDataLength, NumerusProperty<Boolean> enabled) {
-        this(ACTUAL_TIME, timeInMilliseconds, numberOfBuckets, bucketDataLength, enabled);
+        this(NumerusClock.Factory.systemClock(), timeInMilliseconds, numberOfBuckets, bucketDataLength, enabled);
 
     }
 
-    /* package for testing */NumerusRollingPercentile(Time time, NumerusProperty<Integer> timeInMilliseconds, NumerusProperty<Integer> numberOfBuckets, NumerusProperty<Integer> bucketDataLength, NumerusProperty<Boolean> enabled) {
+    /**
+     * 
+     * @param time
+     *            {@link NumerusClock} to read the time from, see {@link NumerusClock.Factory} for the provided clocks
+     * @param timeInMilliseconds
+     *            {@code NumerusProperty<Integer>} for number of milliseconds of data that should be tracked
+     * @param numberOfBuckets
+     *            {@code NumerusProperty<Integer>} for number of buckets that the time window should be divided into
+     * @param bucketDataLength
+     *            {@code NumerusProperty<Integer>} for number of values stored in each bucket
+     * @param enabled
+     *            {@code NumerusProperty<Boolean>} whether data should be tracked and percentiles calculated.
+     */
+    public NumerusRollingPercentile(NumerusClock time, NumerusProperty<Integer> timeInMilliseconds, NumerusProperty<Integer> numberOfBuckets, NumerusProperty<Integer> bucketDataLength, NumerusProperty<Boolean> enabled) {
         this.time = time;
         this.timeInMilliseconds = timeInMilliseconds;
         this.numberOfBuckets = numberOfBuckets;
         this.bucketDataLength = bucketDataLength;
         this.enabled = enabled;
+        this.sizeChange = PropertyChangeFlag.of(timeInMilliseconds, numberOfBuckets);
 
         if (this.timeInMilliseconds.get() % this.numberOfBuckets.get() != 0) {
             throw new IllegalArgumentException("The timeInMilliseconds must divide equally into numberOfBuckets. For example 1000/10 is ok, 1000/11 is not.");
         }
 
-        buckets = new BucketCircularArray(this.numberOfBuckets.get());
+        buckets = new BucketCircularArray(this.timeInMilliseconds.get(), this.numberOfBuckets.get());
+        snapshotBuckets = new Bucket[this.numberOfBuckets.get()];
     }
 
     /**
@@ -98,14 +134,173 @@ public class NumerusRollingPercentile {
      */
     public void addValue(int... value) {
         /* no-op if disabled */
-        if (!enabled.get())
+        if (!NumerusProperty.Factory.booleanValue(enabled))
             return;
 
+        markUsed();
         for (int v : value) {
-            getCurrentBucket().data.addValue(v);
+            getCurrentBucket(false).data.addValue(v);
         }
     }
 
+    /**
+     * Add a value to the bucket of the given time rather than the current bucket, for values recorded some time after they happened (taken off a queue or
+     * in batches for example).
+     * <p>
+     * A value in the current bucket is added the same way as {@link #addValue} but without reading the clock. A value in an earlier bucket still in the
+     * window is added to that bucket (adding the bucket if there were no values in that bucket of time) while holding the lock used to create new buckets,
+     * and is in the percentiles from the next snapshot on. A value before the window, or after both the current bucket and the current time, is dropped
+     * and counted, see {@link #getNumberOfDroppedValues()}.
+     * <p>
+     * This is not an overload of <code>addValue</code> as <code>addValue(int, long)</code> would be picked over <code>addValue(int...)</code> for two values.
+     *
+     * @param value
+     *            Value to be stored such as execution latency in milliseconds
+     * @param timeInMilliseconds
+     *            time of the value, from the same {@link NumerusClock} as this rolling percentile
+     */
+    public void addValueAt(int value, long timeInMilliseconds) {
+        /* no-op if disabled */
+        if (!NumerusProperty.Factory.booleanValue(enabled))
+            return;
+
+        markUsed();
+        BucketCircularArray buckets = this.buckets;
+        Bucket last = buckets.peekLast();
+        if (last != null && timeInMilliseconds >= last.windowStart && timeInMilliseconds < last.windowStart + buckets.bucketSize && !mayHaveChangedSize(buckets, false)) {
+            last.data.addValue(value);
+            return;
+        }
+        if (timeInMilliseconds > time.getCurrentTimeInMillis()) {
+            droppedValues.incrementAndGet();
+            return;
+        }
+        last = getCurrentBucket();
+        if (timeInMilliseconds >= last.windowStart && timeInMilliseconds < last.windowStart + this.buckets.bucketSize) {
+            last.data.addValue(value);
+            return;
+        }
+
+        newBucketLock.lock();
+        try {
+            buckets = this.buckets;
+            // the bucket another thread was creating when we got the current one is there now
+            Bucket b = bucketFor(buckets, buckets.peekLast(), timeInMilliseconds);
+            if (b == null) {
+                droppedValues.incrementAndGet();
+            } else {
+                b.data.addValue(value);
+            }
+        } finally {
+            newBucketLock.unlock();
+        }
+    }
+
+    /**
+     * Load recorded values into the window in bulk, to rebuild the percentiles from a log of values after a restart for example.
+     * <p>
+     * The values are given by index in parallel arrays and must be sorted by time. The values of each bucket of time are copied into its bucket at once
+     * rather than each going through {@link #addValueAt}, and added to what the window already holds so a log can be loaded in chunks. As with that method
+     * values out of the window are dropped and counted, see {@link #getNumberOfDroppedValues()}.
+     * <p>
+     * The snapshot is created again afterwards so the percentiles include the values loaded into the buckets before the current one straight away.
+     *
+     * @param timestamps
+     *            time of each value in milliseconds, in increasing order
+     * @param values
+     *            values such as execution latency in milliseconds
+     * @param offset
+     *            index of the first value
+     * @param length
+     *            number of values
+     * @throws IndexOutOfBoundsException
+     *             if the values from offset to offset + length are not all in both arrays
+     * @throws IllegalArgumentException
+     *             if the values are not sorted by time
+     */
+    public void load(long[] timestamps, int[] values, int offset, int length) {
+        /* no-op if disabled */
+        if (!NumerusProperty.Factory.booleanValue(enabled))
+            return;
+
+        // checked up front so that nothing is loaded when it throws
+        if (offset < 0 || length < 0 || length > timestamps.length - offset || length > values.length - offset) {
+            throw new IndexOutOfBoundsException("The values from " + offset + " to " + offset + " + " + length + " are not all in the arrays");
+        }
+        for (int i = offset + 1; i < offset + length; i++) {
+            if (timestamps[i] < timestamps[i - 1]) {
+                throw new IllegalArgumentException("The values must be sorted by time: " + timestamps[i] + " at " + i + " is before " + timestamps[i - 1]);
+            }
+        }
+        markUsed();
+        // move the buckets forward to now first so the values are loaded into the window they are read from
+        getCurrentBucket();
+        newBucketLock.lock();
+        try {
+            BucketCircularArray buckets = this.buckets;
+            Bucket last = buckets.peekLast();
+            int runStart = offset;
+            for (int i = offset; i <= offset + length; i++) {
+                if (i < offset + length) {
+                    if (i == runStart || timestamps[i] < bucketEnd(buckets, last, timestamps[runStart])) {
+                        continue;
+                    }
+                }
+                // the values from runStart up to i are in the same bucket of time
+                Bucket b = bucketFor(buckets, last, timestamps[runStart]);
+                if (b == null) {
+                    droppedValues.addAndGet(i - runStart);
+                } else {
+                    b.data.addValues(values, runStart, i - runStart);
+                }
+                runStart = i;
+            }
+            if (last != null) {
+                Bucket[] window = new Bucket[buckets.numBuckets];
+                int count = buckets.getBuckets(window, last.windowStart - buckets.timeInMilliseconds);
+                currentPercentileSnapshot = new PercentileSnapshot(window, count - 1);
+            }
+        } finally {
+            newBucketLock.unlock();
+        }
+    }
+
+    /*
+     * the end of the bucket of time the given time is in, on the grid of the last bucket
+     */
+    private static long bucketEnd(BucketCircularArray buckets, Bucket last, long timeInMilliseconds) {
+        if (last == null || timeInMilliseconds >= last.windowStart + buckets.bucketSize) {
+            return Long.MAX_VALUE;
+        }
+        return last.windowStart - (last.windowStart - timeInMilliseconds + buckets.bucketSize - 1) / buckets.bucketSize * buckets.bucketSize + buckets.bucketSize;
+    }
+
+    /*
+     * the bucket for the given time, added if it is in the window without a bucket, or null if it is out of the window
+     * 
+     * must be called while holding newBucketLock
+     */
+    private Bucket bucketFor(BucketCircularArray buckets, Bucket last, long timeInMilliseconds) {
+        if (last == null || timeInMilliseconds >= last.windowStart + buckets.bucketSize) {
+            return null;
+        }
+        if (timeInMilliseconds >= last.windowStart) {
+            return last;
+        }
+        long windowStart = last.windowStart - (last.windowStart - timeInMilliseconds + buckets.bucketSize - 1) / buckets.bucketSize * buckets.bucketSize;
+        if (windowStart <= last.windowStart - buckets.timeInMilliseconds) {
+            return null;
+        }
+        return buckets.getOrInsert(windowStart, bucketDataLength.get());
+    }
+
+    /**
+     * @return number of values given a time out of the window, which were dropped
+     */
+    public long getNumberOfDroppedValues() {
+        return droppedValues.get();
+    }
+
     /**
      * Compute a percentile from the underlying rolling buckets of values.
      * <p>
@@ -119,9 +314,10 @@ public class NumerusRollingPercentile {
      */
     public int getPercentile(double percentile) {
         /* no-op if disabled */
-        if (!enabled.get())
+        if (!NumerusProperty.Factory.booleanValue(enabled))
             return -1;
 
+        markUsed();
         // force logic to move buckets forward in case other requests aren't making it happen
         getCurrentBucket();
         // fetch the current snapshot
@@ -135,9 +331,10 @@ public class NumerusRollingPercentile {
      */
     public int getMean() {
         /* no-op if disabled */
-        if (!enabled.get())
+        if (!NumerusProperty.Factory.booleanValue(enabled))
             return -1;
 
+        markUsed();
         // force logic to move buckets forward in case other requests aren't making it happen
         getCurrentBucket();
         // fetch the current snapshot
@@ -155,13 +352,113 @@ public class NumerusRollingPercentile {
         return currentPercentileSnapshot;
     }
 
-    private int getBucketSizeInMilliseconds() {
-        return timeInMilliseconds.get() / numberOfBuckets.get();
+    /*
+     * whether the size of the buckets may no longer be the one given by timeInMilliseconds and numberOfBuckets, the properties that can't tell us they
+     * changed only being read with checkSize (the writes leave it to when they move to a new bucket, as NumerusRollingNumber does)
+     */
+    private boolean mayHaveChangedSize(BucketCircularArray buckets, boolean checkSize) {
+        return sizeChange == null ? checkSize && !isSizeUnchanged(buckets) : sizeChange.isSet();
+    }
+
+    /*
+     * whether the buckets are still of the size given by timeInMilliseconds and numberOfBuckets, values that don't divide equally are ignored (the current
+     * buckets are kept) until they do again
+     */
+    private boolean isSizeUnchanged(BucketCircularArray buckets) {
+        int time = NumerusProperty.Factory.intValue(timeInMilliseconds);
+        int size = NumerusProperty.Factory.intValue(numberOfBuckets);
+        return (time == buckets.timeInMilliseconds && size == buckets.numBuckets) || size <= 0 || time < size || time % size != 0;
+    }
+
+    /**
+     * Replace the buckets by buckets of the size given by timeInMilliseconds and numberOfBuckets, carrying over the values of the buckets still in the
+     * window.
+     * <p>
+     * The buckets are laid out again on the new size working back from the start of the current bucket: the old buckets starting within the same new bucket
+     * have their values merged into it (sampled down to bucketDataLength like any bucket that overflows) and an old bucket bigger than the new size goes whole
+     * into the new bucket it starts in. The current bucket is kept as it is since writers may still be adding to it.
+     * <p>
+     * Must be called while holding newBucketLock.
+     */
+    private void resize(long currentTime) {
+        BucketCircularArray from = buckets;
+        int time = NumerusProperty.Factory.intValue(timeInMilliseconds);
+        int size = NumerusProperty.Factory.intValue(numberOfBuckets);
+        BucketCircularArray to = new BucketCircularArray(time, size);
+        int bucketSize = to.bucketSize;
+
+        Bucket last = from.peekLast();
+        if (last != null) {
+            Bucket[] old = new Bucket[from.numBuckets];
+            int count = from.getBuckets(old, currentTime - time);
+            Bucket merged = null;
+            for (int i = 0; i < count - 1; i++) {
+                // the start of the new bucket (counting back from the current one) that the old one starts in
+                long windowStart = last.windowStart - (last.windowStart - old[i].windowStart + bucketSize - 1) / bucketSize * bucketSize;
+                if (merged == null || merged.windowStart != windowStart) {
+                    if (merged != null) {
+                        to.addLast(merged);
+                    }
+                    merged = new Bucket(windowStart, bucketDataLength.get());
+                }
+                PercentileBucketData data = old[i].data;
+                int length = data.length();
+                for (int v = 0; v < length; v++) {
+                    merged.data.addValue(data.list.get(v));
+                }
+            }
+            if (merged != null) {
+                to.addLast(merged);
+            }
+            if (count > 0 && old[count - 1] == last) {
+                to.addLast(last);
+            }
+        }
+        snapshotBuckets = new Bucket[size];
+        buckets = to;
     }
 
     private ReentrantLock newBucketLock = new ReentrantLock();
 
+    private void markUsed() {
+        if (!used) {
+            // only written once per bucket boundary rather than on every write
+            used = true;
+        }
+    }
+
+    /**
+     * Move the buckets forward (which creates the new snapshot) if the rolling percentile was used since the last time, called by the
+     * {@link NumerusRotationScheduler} at each bucket boundary.
+     *
+     * @return time of the next bucket boundary
+     */
+    /* package */long rotateIfUsed() {
+        if (used && NumerusProperty.Factory.booleanValue(enabled)) {
+            used = false;
+            getCurrentBucket();
+        }
+        return nextBoundary();
+    }
+
+    /**
+     * @return time of the next bucket boundary
+     */
+    /* package */long nextBoundary() {
+        long now = time.getCurrentTimeInMillis();
+        BucketCircularArray buckets = this.buckets;
+        Bucket last = buckets.peekLast();
+        if (last == null || now < last.windowStart) {
+            return now + buckets.bucketSize;
+        }
+        return last.windowStart + ((now - last.windowStart) / buckets.bucketSize + 1) * buckets.bucketSize;
+    }
+
     private Bucket getCurrentBucket() {
+        return getCurrentBucket(true);
+    }
+
+    private Bucket getCurrentBucket(boolean checkSize) {
         long currentTime = time.getCurrentTimeInMillis();
 
         /* a shortcut to try and get the most common result of immediately finding the current bucket */
@@ -171,8 +468,9 @@ public class NumerusRollingPercentile {
          * 
          * NOTE: This is thread-safe because it's accessing 'buckets' which is a LinkedBlockingDeque
          */
+        BucketCircularArray buckets = this.buckets;
         Bucket currentBucket = buckets.peekLast();
-        if (currentBucket != null && currentTime < currentBucket.windowStart + getBucketSizeInMilliseconds()) {
+        if (currentBucket != null && currentTime < currentBucket.windowStart + buckets.bucketSize && !mayHaveChangedSize(buckets, checkSize)) {
             // if we're within the bucket 'window of time' return the current one
             // NOTE: We do not worry if we are BEFORE the window in a weird case of where thread scheduling causes that to occur,
             // we'll just use the latest as long as we're not AFTER the window
@@ -205,37 +503,45 @@ public class NumerusRollingPercentile {
          */
         if (newBucketLock.tryLock()) {
             try {
+                if ((sizeChange == null || sizeChange.getAndClear()) && !isSizeUnchanged(this.buckets)) {
+                    resize(currentTime);
+                }
+                buckets = this.buckets;
                 if (buckets.peekLast() == null) {
                     // the list is empty so create the first bucket
                     Bucket newBucket = new Bucket(currentTime, bucketDataLength.get());
                     buckets.addLast(newBucket);
                     return newBucket;
                 } else {
-                    // We go into a loop so that it will create as many buckets as needed to catch up to the current time
-                    // as we want the buckets complete even if we don't have transactions during a period of time.
-                    for (int i = 0; i < numberOfBuckets.get(); i++) {
-                        // we have at least 1 bucket so retrieve it
-                        Bucket lastBucket = buckets.peekLast();
-                        if (currentTime < lastBucket.windowStart + getBucketSizeInMilliseconds()) {
-                            // if we're within the bucket 'window of time' return the current one
-                            // NOTE: We do not worry if we are BEFORE the window in a weird case of where thread scheduling causes that to occur,
-                            // we'll just use the latest as long as we're not AFTER the window
-                            return lastBucket;
-                        } else if (currentTime - (lastBucket.windowStart + getBucketSizeInMilliseconds()) > timeInMilliseconds.get()) {
-                            // the time passed is greater than the entire rolling counter so we want to clear it all and start from scratch
-                            reset();
-                            // recursively call getCurrentBucket which will create a new bucket and return it
-                            return getCurrentBucket();
-                        } else { // we're past the window so we need to create a new bucket
-                            Bucket[] allBuckets = buckets.getArray();
-                            // create a new bucket and add it as the new 'last' (once this is done other threads will start using it on subsequent retrievals)
-                            buckets.addLast(new Bucket(lastBucket.windowStart + getBucketSizeInMilliseconds(), bucketDataLength.get()));
-                            // we created a new bucket so let's re-generate the PercentileSnapshot (not including the new bucket)
-                            currentPercentileSnapshot = new PercentileSnapshot(allBuckets);
-                        }
+                    // we have at least 1 bucket so retrieve it
+                    Bucket lastBucket = buckets.peekLast();
+                    int bucketSize = buckets.bucketSize;
+                    if (currentTime < lastBucket.windowStart + bucketSize) {
+                        // if we're within the bucket 'window of time' return the current one
+                        // NOTE: We do not worry if we are BEFORE the window in a weird case of where thread scheduling causes that to occur,
+                        // we'll just use the latest as long as we're not AFTER the window
+                        return lastBucket;
+                    } else if (currentTime - (lastBucket.windowStart + bucketSize) > buckets.timeInMilliseconds) {
+                        // the time passed is greater than the entire rolling counter so we want to clear it all and start from scratch
+                        reset();
+                        // recursively call getCurrentBucket which will create a new bucket and return it
+                        return getCurrentBucket();
+                    } else { // we're past the window so we need to create a new bucket
+                        /*
+                         * Rather than creating a bucket for each bucket of time that passed without any values (and a snapshot for each) we work
+                         * out the start of the current bucket directly, the buckets of time in between are simply not stored.
+                         * 
+                         * The buckets that are not part of the window any more are dropped by their start time rather than by count.
+                         */
+                        long windowStart = lastBucket.windowStart + (currentTime - lastBucket.windowStart) / bucketSize * bucketSize;
+                        // the snapshot is of the window that ends where the new bucket starts
+                        int numberOfSnapshotBuckets = buckets.getBuckets(snapshotBuckets, windowStart - buckets.timeInMilliseconds);
+                        // create a new bucket and add it as the new 'last' (once this is done other threads will start using it on subsequent retrievals)
+                        buckets.addLast(new Bucket(windowStart, bucketDataLength.get()), windowStart - buckets.timeInMilliseconds + bucketSize);
+                        // we created a new bucket so let's re-generate the PercentileSnapshot (not including the new bucket)
+                        currentPercentileSnapshot = new PercentileSnapshot(snapshotBuckets, numberOfSnapshotBuckets);
+                        return buckets.peekLast();
                     }
-                    // we have finished the for-loop and created all of the buckets, so return the lastBucket now
-                    return buckets.peekLast();
                 }
             } finally {
                 newBucketLock.unlock();
@@ -263,7 +569,7 @@ public class NumerusRollingPercentile {
      */
     public void reset() {
         /* no-op if disabled */
-        if (!enabled.get())
+        if (!NumerusProperty.Factory.booleanValue(enabled))
             return;
 
         // clear buckets so we start over again
@@ -290,6 +596,19 @@ public class NumerusRollingPercentile {
             }
         }
 
+        /**
+         * Add the given number of values from the given offset at once, with the same sampling as {@link #addValue} when there are more than fit.
+         * <p>
+         * Their positions are taken with a single increment of the index and the values are then written with ordered writes.
+         */
+        public void addValues(int[] values, int offset, int count) {
+            int start = index.getAndAdd(count);
+            // the values that would be overwritten by the ones after them are skipped
+            for (int i = Math.max(0, count - length); i < count; i++) {
+                list.lazySet((start + i) % length, values[offset + i]);
+            }
+        }
+
         public int length() {
             if (index.get() > list.length()) {
                 return list.length();
@@ -305,18 +624,18 @@ public class NumerusRollingPercentile {
         private final int length;
         private int mean;
 
-        /* package for testing */PercentileSnapshot(Bucket[] buckets) {
+        /* package for testing */PercentileSnapshot(Bucket[] buckets, int numberOfBuckets) {
             int lengthFromBuckets = 0;
             // we need to calculate it dynamically as it could have been changed by properties (rare, but possible)
             // also this way we capture the actual index size rather than the max so size the int[] to only what we need
-            for (Bucket bd : buckets) {
-                lengthFromBuckets += bd.data.length;
+            for (int b = 0; b < numberOfBuckets; b++) {
+                lengthFromBuckets += buckets[b].data.length;
             }
             data = new int[lengthFromBuckets];
             int index = 0;
             int sum = 0;
-            for (Bucket bd : buckets) {
-                PercentileBucketData pbd = bd.data;
+            for (int b = 0; b < numberOfBuckets; b++) {
+                PercentileBucketData pbd = buckets[b].data;
                 int length = pbd.length();
                 for (int i = 0; i < length; i++) {
                     int v = pbd.list.get(i);
@@ -412,8 +731,10 @@ public class NumerusRollingPercentile {
      */
     /* package for testing */class BucketCircularArray implements Iterable<Bucket> {
         private final AtomicReference<ListState> state;
-        private final int dataLength; // we don't resize, we always stay the same, so remember this
+        private final int dataLength; // we don't resize, we are replaced by new buckets, so remember this
         private final int numBuckets;
+        private final int timeInMilliseconds;
+        private final int bucketSize;
 
         /**
          * Immutable object that is atomically set every time the state of the BucketCircularArray changes
@@ -451,17 +772,37 @@ public class NumerusRollingPercentile {
                 }
             }
 
-            private Bucket[] getArray() {
+            private int getBuckets(Bucket[] array, long windowStart) {
                 /*
                  * this isn't technically thread-safe since it requires multiple reads on something that can change
                  * but since we never clear the data directly, only increment/decrement head/tail we would never get a NULL
                  * just potentially return stale data which we are okay with doing
                  */
-                ArrayList<Bucket> array = new ArrayList<Bucket>();
-                for (int i = 0; i < size; i++) {
-                    array.add(data.get(convert(i)));
+                int first = countBefore(windowStart);
+                int length = Math.min(size - first, array.length);
+                for (int i = 0; i < length; i++) {
+                    array[i] = data.get(convert(size - length + i));
+                }
+                return length;
+            }
+
+            /*
+             * the number of buckets from the head that start before the given time
+             */
+            private int countBefore(long windowStart) {
+                int count = 0;
+                while (count < size && data.get(convert(count)).windowStart < windowStart) {
+                    count++;
+                }
+                return count;
+            }
+
+            private ListState removeFirstBefore(long windowStart) {
+                int count = countBefore(windowStart);
+                if (count == 0) {
+                    return this;
                 }
-                return array.toArray(new Bucket[array.size()]);
+                return new ListState(data, (head + count) % dataLength, tail);
             }
 
             private ListState incrementTail() {
@@ -502,7 +843,9 @@ public class NumerusRollingPercentile {
             }
         }
 
-        BucketCircularArray(int size) {
+        BucketCircularArray(int timeInMilliseconds, int size) {
+            this.timeInMilliseconds = timeInMilliseconds;
+            this.bucketSize = timeInMilliseconds / size;
             AtomicReferenceArray<Bucket> _buckets = new AtomicReferenceArray<Bucket>(size + 1); // + 1 as extra room for the add/remove;
             state = new AtomicReference<ListState>(new ListState(_buckets, 0, 0));
             dataLength = _buckets.length();
@@ -533,10 +876,32 @@ public class NumerusRollingPercentile {
         }
 
         /**
-         * Returns an iterator on a copy of the internal array so that the iterator won't fail by buckets being added/removed concurrently.
+         * Returns an iterator on the state as of when it was created so that the iterator won't fail by buckets being added/removed concurrently.
          */
         public Iterator<Bucket> iterator() {
-            return Collections.unmodifiableList(Arrays.asList(getArray())).iterator();
+            final ListState current = state.get();
+            return new Iterator<Bucket>() {
+                private int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < current.size;
+                }
+
+                @Override
+                public Bucket next() {
+                    if (index >= current.size) {
+                        throw new NoSuchElementException();
+                    }
+                    return current.data.get(current.convert(index++));
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+            };
         }
 
         public void addLast(Bucket o) {
@@ -559,6 +924,49 @@ public class NumerusRollingPercentile {
             }
         }
 
+        /**
+         * Same as {@link #addLast(Bucket)} but also removes the buckets that start before the given time (the oldest ones) in the same state change.
+         * <p>
+         * As buckets of time without values are not stored this is how buckets roll out of the window by time rather than by count.
+         */
+        public void addLast(Bucket o, long firstWindowStart) {
+            ListState currentState = state.get();
+            // as in addLast(Bucket) if we fail someone else was adding or removing and we let them 'win'
+            state.compareAndSet(currentState, currentState.removeFirstBefore(firstWindowStart).addBucket(o));
+        }
+
+        /**
+         * The bucket starting at the given time, which is added in order among the others (in a new state) if there is none.
+         * <p>
+         * As with addLast this is only called while holding the lock of <code>getCurrentBucket</code>, and only for a time in the window before the last bucket.
+         */
+        Bucket getOrInsert(long windowStart, int bucketDataLength) {
+            ListState currentState = state.get();
+            Bucket[] all = new Bucket[currentState.size + 1];
+            int count = currentState.getBuckets(all, Long.MIN_VALUE);
+            int i = 0;
+            while (i < count && all[i].windowStart < windowStart) {
+                i++;
+            }
+            if (i < count && all[i].windowStart == windowStart) {
+                return all[i];
+            }
+            // there is room for it as the window has a bucket of time without a bucket
+            Bucket b = new Bucket(windowStart, bucketDataLength);
+            System.arraycopy(all, i, all, i + 1, count - i);
+            all[i] = b;
+            AtomicReferenceArray<Bucket> data = new AtomicReferenceArray<Bucket>(dataLength);
+            for (int j = 0; j <= count; j++) {
+                data.set(j, all[j]);
+            }
+            // if we fail we were cleared by a reset (which doesn't hold the lock) and the value is dropped with the rest of the window
+            state.compareAndSet(currentState, new ListState(data, 0, count + 1));
+            return b;
+        }
+
+        /**
+         * The number of buckets in the window, the buckets of time that passed without anything touching the rolling percentile are not included.
+         */
         public int size() {
             // the size can also be worked out each time as:
             // return (tail + data.length() - head) % data.length();
@@ -569,8 +977,13 @@ public class NumerusRollingPercentile {
             return state.get().tail();
         }
 
-        private Bucket[] getArray() {
-            return state.get().getArray();
+        /**
+         * Copy the buckets that start at or after the given time into the given array, oldest first, without allocating.
+         * 
+         * @return number of buckets copied, the most recent buckets are copied if the array is smaller than the number of buckets
+         */
+        int getBuckets(Bucket[] array, long windowStart) {
+            return state.get().getBuckets(array, windowStart);
         }
 
     }
@@ -589,17 +1002,4 @@ public class NumerusRollingPercentile {
 
     }
 
-    /* package for testing */static interface Time {
-        public long getCurrentTimeInMillis();
-    }
-
-    private static class ActualTime implements Time {
-
-        @Override
-        public long getCurrentTimeInMillis() {
-            return System.currentTimeMillis();
-        }
-
-    }
-
 }
\ No newline at end of file
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Moves the buckets of the registered {@link NumerusRollingNumber}s and {@link NumerusRollingPercentile}s forward at each of their bucket boundaries on a
+ * single background thread, so that the work of a rotation (and the sort of a new percentile snapshot) is done there rather than by whichever request
+ * thread is the first to notice the bucket has expired.
+ * <p>
+ * Registering is optional: an instance still moves itself forward if the scheduler falls behind (or was never started) so a request always gets the right
+ * bucket, it is just that with the scheduler keeping up a write almost always finds the current bucket with a volatile read and compare of the window
+ * state, plus a volatile read of a flag when the window size properties tell the instance when they change (see {@link NumerusProperty.IntProperty}).
+ * Properties that can't are read by the writes when they move to a new bucket and by the reads on every use.
+ * <p>
+ * Instances that were not used (written to or read) since their last rotation are skipped, they catch up in constant time when they are next used. The
+ * scheduler only holds weak references to the instances, they are dropped once garbage collected.
+ * <p>
+ * The boundaries are kept in a hashed timer wheel: a ring of slots of one tick each, an instance going into the slot of its next boundary (with the number of
+ * turns of the wheel to wait for when it is further away than one turn). Each tick only visits the instances in one slot.
+ */
+public class NumerusRotationScheduler {
+
+    private static final int DEFAULT_TICK_IN_MILLISECONDS = 10;
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+
+    private static class DefaultHolder {
+        static final NumerusRotationScheduler INSTANCE = new NumerusRotationScheduler(NumerusClock.Factory.systemClock(), DEFAULT_TICK_IN_MILLISECONDS,
+                DEFAULT_TICKS_PER_WHEEL, true);
+    }
+
+    /**
+     * An instance to rotate, scheduled in a slot of the wheel.
+     */
+    /* package */static abstract class Entry {
+        long deadlineTick;
+
+        /**
+         * Rotate the instance (if it was used) and return the time of its next boundary, or -1 if it is gone.
+         */
+        abstract long rotate();
+    }
+
+    private final NumerusClock clock;
+    private final int tickInMilliseconds;
+    private final ArrayList<Entry>[] wheel;
+    private final int mask;
+    /* the entries registered since the last tick, moved into the wheel by the scheduler thread */
+    private final ConcurrentLinkedQueue<Entry> registered = new ConcurrentLinkedQueue<Entry>();
+    /* the last tick processed, only accessed by the scheduler thread */
+    private long lastTick = -1;
+    private final Thread thread;
+    private volatile boolean shutdown;
+
+    /**
+     * The scheduler shared by default, with a tick of 10ms on the system clock. Its thread starts with the first instance registered.
+     */
+    public static NumerusRotationScheduler getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * @param clock
+     *            {@link NumerusClock} the instances registered use
+     * @param tickInMilliseconds
+     *            granularity of the boundaries, a rotation happens up to one tick after its boundary
+     * @param ticksPerWheel
+     *            number of slots of the wheel, a power of 2
+     */
+    public NumerusRotationScheduler(NumerusClock clock, int tickInMilliseconds, int ticksPerWheel) {
+        this(clock, tickInMilliseconds, ticksPerWheel, true);
+    }
+
+    /* package for testing */@SuppressWarnings({ "unchecked", "rawtypes" })
+    NumerusRotationScheduler(NumerusClock clock, int tickInMilliseconds, int ticksPerWheel, boolean startThread) {
+        if (tickInMilliseconds <= 0) {
+            throw new IllegalArgumentException("The tick must be at least 1ms: " + tickInMilliseconds);
+        }
+        if (ticksPerWheel <= 0 || Integer.bitCount(ticksPerWheel) != 1) {
+            throw new IllegalArgumentException("The number of ticks per wheel must be a power of 2: " + ticksPerWheel);
+        }
+        this.clock = clock;
+        this.tickInMilliseconds = tickInMilliseconds;
+        this.wheel = new ArrayList[ticksPerWheel];
+        for (int i = 0; i < ticksPerWheel; i++) {
+            wheel[i] = new ArrayList<Entry>();
+        }
+        this.mask = ticksPerWheel - 1;
+        if (startThread) {
+            thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    runUntilShutdown();
+                }
+
+            }, "NumerusRotationScheduler");
+            thread.setDaemon(true);
+        } else {
+            thread = null;
+        }
+    }
+
+    /**
+     * Rotate the buckets of the given rolling number at each of its bucket boundaries from now on.
+     */
+    public void register(NumerusRollingNumber number) {
+        final WeakReference<NumerusRollingNumber> reference = new WeakReference<NumerusRollingNumber>(number);
+        register(new Entry() {
+
+            @Override
+            long rotate() {
+                NumerusRollingNumber number = reference.get();
+                return number == null ? -1 : number.rotateIfUsed();
+            }
+
+        }, number.nextBoundary());
+    }
+
+    /**
+     * Rotate the buckets of the given rolling percentile at each of its bucket boundaries from now on.
+     */
+    public void register(NumerusRollingPercentile percentile) {
+        final WeakReference<NumerusRollingPercentile> reference = new WeakReference<NumerusRollingPercentile>(percentile);
+        register(new Entry() {
+
+            @Override
+            long rotate() {
+                NumerusRollingPercentile percentile = reference.get();
+                return percentile == null ? -1 : percentile.rotateIfUsed();
+            }
+
+        }, percentile.nextBoundary());
+    }
+
+    private void register(Entry entry, long deadline) {
+        entry.deadlineTick = tickOf(deadline);
+        registered.add(entry);
+        if (thread != null && thread.getState() == Thread.State.NEW) {
+            synchronized (this) {
+                if (thread.getState() == Thread.State.NEW) {
+                    thread.start();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the thread of the scheduler, the instances registered go back to moving themselves forward.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void runUntilShutdown() {
+        while (!shutdown) {
+            long now = clock.getCurrentTimeInMillis();
+            runOnce(now);
+            try {
+                // until the start of the next tick
+                Thread.sleep(tickInMilliseconds - now % tickInMilliseconds);
+            } catch (InterruptedException e) {
+                // shutdown
+            }
+        }
+    }
+
+    /**
+     * Rotate the instances of the ticks from the last one processed up to the one of the given time.
+     * <p>
+     * Only called by the scheduler thread (or by the tests when it is not started).
+     */
+    /* package for testing */void runOnce(long now) {
+        long tick = now / tickInMilliseconds;
+        if (lastTick < 0) {
+            lastTick = tick - 1;
+        }
+        Entry e;
+        while ((e = registered.poll()) != null) {
+            // a boundary that has already passed is due in the first tick not processed yet
+            e.deadlineTick = Math.max(e.deadlineTick, lastTick + 1);
+            schedule(e);
+        }
+        // a slot is only visited once however far behind we are
+        long from = Math.max(lastTick + 1, tick - mask);
+        ArrayList<Entry> due = new ArrayList<Entry>();
+        for (long t = from; t <= tick; t++) {
+            ArrayList<Entry> slot = wheel[(int) (t & mask)];
+            for (int i = slot.size() - 1; i >= 0; i--) {
+                Entry entry = slot.get(i);
+                if (entry.deadlineTick <= tick) {
+                    // remove by swapping with the last one as the order within a slot doesn't matter
+                    slot.set(i, slot.get(slot.size() - 1));
+                    slot.remove(slot.size() - 1);
+                    due.add(entry);
+                }
+            }
+        }
+        lastTick = tick;
+        for (Entry entry : due) {
+            long deadline;
+            try {
+                deadline = entry.rotate();
+            } catch (RuntimeException ex) {
+                // don't let one instance stop the others from rotating, try it again next tick
+                deadline = now + tickInMilliseconds;
+            }
+            if (deadline >= 0) {
+                entry.deadlineTick = Math.max(tickOf(deadline), tick + 1);
+                schedule(entry);
+            }
+        }
+    }
+
+    private void schedule(Entry entry) {
+        wheel[(int) (entry.deadlineTick & mask)].add(entry);
+    }
+
+    private long tickOf(long time) {
+        // the first tick starting at or after the boundary, the start of the tick it falls in would be too early
+        return (time + tickInMilliseconds - 1) / tickInMilliseconds;
+    }
+
+}
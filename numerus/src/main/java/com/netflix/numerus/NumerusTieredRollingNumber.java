@@ -0,0 +1,175 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+/**
+ * A rolling number over several windows at once (for example 10 seconds, 1 minute and 1 hour) built from a {@link NumerusRollingNumber} per window, the
+ * "tiers", from the finest to the coarsest.
+ * <p>
+ * Only the finest tier is written to. As its buckets close they are rolled up into the bucket of the next tier that their start time falls in, whose buckets
+ * are rolled up into the next one as they close and so on. A write therefore costs the same as with a single rolling number and a long window only needs
+ * as many buckets as its own resolution calls for.
+ * <p>
+ * The values of a tier are those of its window plus those of the current bucket of each finer tier, which have not been rolled up yet. Like the other
+ * reads of the rolling numbers they are not an atomic snapshot: a bucket that closes while they are read may be missed or counted twice.
+ * <p>
+ * The bucket size of each tier must be a multiple of that of the tier before it so that a bucket only ever rolls up into one bucket.
+ */
+public class NumerusTieredRollingNumber {
+
+    private final NumerusRollingNumber[] tiers;
+
+    /**
+     * @param tiers
+     *            the rolling numbers of each window from the finest to the coarsest, with the same type of events and not written to by anything else
+     */
+    public NumerusTieredRollingNumber(NumerusRollingNumber... tiers) {
+        if (tiers.length == 0) {
+            throw new IllegalArgumentException("At least one tier is needed");
+        }
+        this.tiers = tiers.clone();
+        for (int i = 1; i < tiers.length; i++) {
+            tiers[i - 1].rollUpInto(tiers[i]);
+        }
+    }
+
+    /**
+     * @return number of tiers
+     */
+    public int getNumberOfTiers() {
+        return tiers.length;
+    }
+
+    /**
+     * Increment the counter of the given type, see {@link NumerusRollingNumber#increment(NumerusRollingNumberEvent)}.
+     */
+    public void increment(NumerusRollingNumberEvent type) {
+        tiers[0].increment(type);
+    }
+
+    /**
+     * Add to the counter of the given type, see {@link NumerusRollingNumber#add(NumerusRollingNumberEvent, long)}.
+     */
+    public void add(NumerusRollingNumberEvent type, long value) {
+        tiers[0].add(type, value);
+    }
+
+    /**
+     * Update the max of the given type, see {@link NumerusRollingNumber#updateRollingMax(NumerusRollingNumberEvent, long)}.
+     */
+    public void updateRollingMax(NumerusRollingNumberEvent type, long value) {
+        tiers[0].updateRollingMax(type, value);
+    }
+
+    /**
+     * Combine a value into the reducer of the given type, see {@link NumerusRollingNumber#updateRollingValue(NumerusRollingNumberEvent, long)}.
+     */
+    public void updateRollingValue(NumerusRollingNumberEvent type, long value) {
+        tiers[0].updateRollingValue(type, value);
+    }
+
+    /**
+     * Combine a <code>double</code> value into the reducer of the given type, see
+     * {@link NumerusRollingNumber#updateRollingValue(NumerusRollingNumberEvent, double)}.
+     */
+    public void updateRollingValue(NumerusRollingNumberEvent type, double value) {
+        tiers[0].updateRollingValue(type, value);
+    }
+
+    /**
+     * Get the sum over the window of the given tier for the given counter type.
+     *
+     * @param tier
+     *            index of the tier, 0 being the finest
+     */
+    public long getRollingSum(int tier, NumerusRollingNumberEvent type) {
+        // from the finest up, reading the current bucket of a tier moves it forward which rolls up the buckets that closed into the next one
+        long sum = 0;
+        for (int i = 0; i < tier; i++) {
+            sum += tiers[i].getValueOfLatestBucket(type);
+        }
+        return sum + tiers[tier].getRollingSum(type);
+    }
+
+    /**
+     * Get the max over the window of the given tier for the given max updater type, read the same way as {@link #getRollingSum}.
+     *
+     * @param tier
+     *            index of the tier, 0 being the finest
+     */
+    public long getRollingMaxValue(int tier, NumerusRollingNumberEvent type) {
+        long max = 0;
+        for (int i = 0; i < tier; i++) {
+            max = Math.max(max, tiers[i].getValueOfLatestBucket(type));
+        }
+        return Math.max(max, tiers[tier].getRollingMaxValue(type));
+    }
+
+    /**
+     * Get the combined value over the window of the given tier for the given reducer type, read the same way as {@link #getRollingSum}.
+     *
+     * @param tier
+     *            index of the tier, 0 being the finest
+     */
+    public long getRollingValue(int tier, NumerusRollingNumberEvent type) {
+        return tiers[0].getReducer(type).decode(getReducedRollingValue(tier, type));
+    }
+
+    /**
+     * Get the combined value over the window of the given tier for the given reducer type as a <code>double</code>, see
+     * {@link NumerusRollingNumber#getRollingDoubleValue(NumerusRollingNumberEvent)}.
+     *
+     * @param tier
+     *            index of the tier, 0 being the finest
+     */
+    public double getRollingDoubleValue(int tier, NumerusRollingNumberEvent type) {
+        return tiers[0].getReducer(type).decodeDouble(getReducedRollingValue(tier, type));
+    }
+
+    private long getReducedRollingValue(int tier, NumerusRollingNumberEvent type) {
+        NumerusRollingNumberReducer reducer = tiers[0].getReducer(type);
+        // read from the finest up, but combined with the finer (more recent) values last as the order matters for the last value
+        long finer = 0;
+        for (int i = 0; i < tier; i++) {
+            finer = reducer.combine(tiers[i].getReducedValueOfLatestBucket(type), finer);
+        }
+        return reducer.combine(tiers[tier].getReducedRollingValue(type), finer);
+    }
+
+    /**
+     * Get the cumulative sum (or max) of the given type since the start, see {@link NumerusRollingNumber#getCumulativeSum}.
+     */
+    public long getCumulativeSum(NumerusRollingNumberEvent type) {
+        return tiers[0].getCumulativeSum(type);
+    }
+
+    /**
+     * Get the cumulative value of the given double reducer type since the start, see {@link NumerusRollingNumber#getCumulativeDoubleValue}.
+     */
+    public double getCumulativeDoubleValue(NumerusRollingNumberEvent type) {
+        return tiers[0].getCumulativeDoubleValue(type);
+    }
+
+    /**
+     * Force a reset of all tiers so that statistics start being gathered from scratch, see {@link NumerusRollingNumber#reset()}.
+     */
+    public void reset() {
+        for (NumerusRollingNumber tier : tiers) {
+            tier.reset();
+        }
+    }
+
+}
@@ -0,0 +1,258 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link BucketValues} in memory outside of the heap, a slice of a direct {@link ByteBuffer} shared by the buckets allocated together (see
+ * {@link #allocate}): all the buckets of a {@link NumerusRollingNumber} share one, which is allocated again when they are resized, and its cumulative sum
+ * has one of its own.
+ * <p>
+ * The values have a fixed number of stripes (rows) rather than a table that grows under contention like {@link StripedLongArray}, as the whole slab is
+ * allocated up front. Each thread updates the row its Striped64 probe maps to and moves to another row when it collides with other threads.
+ * <p>
+ * The slab is freed with the direct ByteBuffer once the buckets are unreachable.
+ */
+/* package */final class OffHeapStripedLongArray implements BucketValues {
+    /*
+     * Layout of the slab: [bucket][row][value], each row rounded up to a multiple of CACHE_LINE bytes and starting on a cache line boundary
+     * (the slab is over-allocated by a cache line so the start of the first row can be aligned).
+     */
+    static final int CACHE_LINE = 64;
+
+    /*
+     * referenced so the memory is not freed while the buckets are in use
+     */
+    private final ByteBuffer slab;
+    private final long address;
+    private final int length;
+    private final int stripes;
+    private final long rowSize;
+
+    private OffHeapStripedLongArray(ByteBuffer slab, long address, int length, int stripes, long rowSize) {
+        this.slab = slab;
+        this.address = address;
+        this.length = length;
+        this.stripes = stripes;
+        this.rowSize = rowSize;
+    }
+
+    /**
+     * Allocate a single slab for the values of the given number of buckets.
+     *
+     * @param count
+     *            number of buckets
+     * @param length
+     *            number of values of each bucket
+     * @param stripes
+     *            number of rows of each bucket, a power of 2
+     */
+    static OffHeapStripedLongArray[] allocate(int count, int length, int stripes) {
+        checkSupported();
+        if (stripes <= 0 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("The number of stripes must be a power of 2: " + stripes);
+        }
+        long rowSize = (((long) length * 8 + CACHE_LINE - 1) / CACHE_LINE) * CACHE_LINE;
+        long bucketSize = rowSize * stripes;
+        long slabSize = bucketSize * count + CACHE_LINE;
+        if (slabSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many values to allocate off-heap: " + slabSize + " bytes");
+        }
+        // direct buffers are zeroed
+        ByteBuffer slab = ByteBuffer.allocateDirect((int) slabSize);
+        long start = UNSAFE.getLong(slab, ADDRESS_OFFSET);
+        long aligned = (start + CACHE_LINE - 1) & ~(long) (CACHE_LINE - 1);
+
+        OffHeapStripedLongArray[] values = new OffHeapStripedLongArray[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new OffHeapStripedLongArray(slab, aligned + i * bucketSize, length, stripes, rowSize);
+        }
+        return values;
+    }
+
+    @Override
+    public void add(int i, long x) {
+        long offset = offset(i);
+        if (stripes == 1) {
+            long v;
+            do {
+                v = UNSAFE.getLongVolatile(null, offset);
+            } while (!UNSAFE.compareAndSwapLong(null, offset, v, v + x));
+            return;
+        }
+        int h = Striped64.getProbe();
+        long v;
+        long a;
+        while (!UNSAFE.compareAndSwapLong(null, a = offset + (h & (stripes - 1)) * rowSize, v = UNSAFE.getLongVolatile(null, a), v + x)) {
+            // move a thread that collided with another onto a different row, as Striped64 does
+            h = Striped64.advanceProbe(h);
+        }
+    }
+
+    @Override
+    public void updateMax(int i, long x) {
+        long offset = offset(i);
+        int h = stripes > 1 ? Striped64.getProbe() : 0;
+        long v;
+        long a;
+        while ((v = UNSAFE.getLongVolatile(null, a = offset + (h & (stripes - 1)) * rowSize)) < x && !UNSAFE.compareAndSwapLong(null, a, v, x)) {
+            if (stripes > 1) {
+                h = Striped64.advanceProbe(h);
+            }
+        }
+    }
+
+    @Override
+    public void accumulate(int i, long x, LongBinaryOperator fn) {
+        long offset = offset(i);
+        int h = stripes > 1 ? Striped64.getProbe() : 0;
+        long v;
+        long n;
+        long a;
+        while ((n = fn.applyAsLong(v = UNSAFE.getLongVolatile(null, a = offset + (h & (stripes - 1)) * rowSize), x)) != v
+                && !UNSAFE.compareAndSwapLong(null, a, v, n)) {
+            if (stripes > 1) {
+                h = Striped64.advanceProbe(h);
+            }
+        }
+    }
+
+    @Override
+    public void set(int i, long x) {
+        UNSAFE.putLongVolatile(null, offset(i), x);
+    }
+
+    @Override
+    public long sum(int i) {
+        long offset = offset(i);
+        long sum = 0;
+        for (int r = 0; r < stripes; r++) {
+            sum += UNSAFE.getLongVolatile(null, offset + r * rowSize);
+        }
+        return sum;
+    }
+
+    @Override
+    public long max(int i) {
+        long offset = offset(i);
+        long max = 0;
+        for (int r = 0; r < stripes; r++) {
+            max = Math.max(max, UNSAFE.getLongVolatile(null, offset + r * rowSize));
+        }
+        return max;
+    }
+
+    @Override
+    public long reduce(int i, LongBinaryOperator fn) {
+        long offset = offset(i);
+        long result = 0;
+        for (int r = 0; r < stripes; r++) {
+            result = fn.applyAsLong(result, UNSAFE.getLongVolatile(null, offset + r * rowSize));
+        }
+        return result;
+    }
+
+    @Override
+    public long sumThenReset(int i) {
+        long offset = offset(i);
+        long sum = 0;
+        for (int r = 0; r < stripes; r++) {
+            sum += getAndReset(offset + r * rowSize);
+        }
+        return sum;
+    }
+
+    @Override
+    public long maxThenReset(int i) {
+        long offset = offset(i);
+        long max = 0;
+        for (int r = 0; r < stripes; r++) {
+            max = Math.max(max, getAndReset(offset + r * rowSize));
+        }
+        return max;
+    }
+
+    @Override
+    public long reduceThenReset(int i, LongBinaryOperator fn) {
+        long offset = offset(i);
+        long result = 0;
+        for (int r = 0; r < stripes; r++) {
+            result = fn.applyAsLong(result, getAndReset(offset + r * rowSize));
+        }
+        return result;
+    }
+
+    @Override
+    public int next(int from) {
+        // every value is allocated
+        return from;
+    }
+
+    @Override
+    public void decay(LongBinaryOperator[] operators) {
+        // the stripes are allocated up front, there is nothing to give back
+    }
+
+    private static long getAndReset(long a) {
+        long v;
+        do {
+            v = UNSAFE.getLongVolatile(null, a);
+        } while (v != 0 && !UNSAFE.compareAndSwapLong(null, a, v, 0));
+        return v;
+    }
+
+    /*
+     * the address of value i in the first row, bounds checked as this is raw memory
+     */
+    private long offset(int i) {
+        if (i < 0 || i >= length)
+            throw new ArrayIndexOutOfBoundsException(i);
+        return address + ((long) i << 3);
+    }
+
+    /**
+     * Throws an UnsupportedOperationException if the address of direct buffers can't be read on this JVM, which off-heap storage needs.
+     */
+    static void checkSupported() {
+        if (ADDRESS_OFFSET < 0) {
+            throw new UnsupportedOperationException("Off-heap storage is not supported on this JVM, the address of direct buffers is not accessible",
+                    UNSUPPORTED);
+        }
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    /** -1 if the field is not accessible, see checkSupported */
+    private static final long ADDRESS_OFFSET;
+    private static final Exception UNSUPPORTED;
+    static {
+        UNSAFE = Striped64.getUnsafe();
+        long addressOffset = -1;
+        Exception unsupported = null;
+        try {
+            addressOffset = UNSAFE.objectFieldOffset
+                    (Buffer.class.getDeclaredField("address"));
+        } catch (Exception e) {
+            // a JVM that hides the field (or Unsafe access to it), the rest of the library works without it
+            unsupported = e;
+        }
+        ADDRESS_OFFSET = addressOffset;
+        UNSUPPORTED = unsupported;
+    }
+
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import com.netflix.numerus.NumerusProperty.ChangeListener;
+import com.netflix.numerus.NumerusProperty.IntProperty;
+
+/**
+ * Set when any of the properties it listens to changes, so that what is worked out from them only needs to be worked out again after a change rather than
+ * on every use.
+ * <p>
+ * It is this small object rather than the user of the properties that the properties hold on to as a listener.
+ */
+/* package */final class PropertyChangeFlag implements ChangeListener {
+
+    private volatile boolean changed;
+
+    private PropertyChangeFlag() {
+    }
+
+    /**
+     * A flag listening to the given properties, or null if any of them can't tell us when it changes (and so has to be read to find out).
+     */
+    static PropertyChangeFlag of(NumerusProperty<?>... properties) {
+        for (NumerusProperty<?> property : properties) {
+            if (!(property instanceof IntProperty)) {
+                return null;
+            }
+        }
+        PropertyChangeFlag flag = new PropertyChangeFlag();
+        for (NumerusProperty<?> property : properties) {
+            ((IntProperty) property).addListener(flag);
+        }
+        return flag;
+    }
+
+    @Override
+    public void propertyChanged() {
+        changed = true;
+    }
+
+    /**
+     * Whether any of the properties changed since the flag was last cleared.
+     */
+    boolean isSet() {
+        return changed;
+    }
+
+    /**
+     * Whether any of the properties changed since the flag was last cleared, clearing it. Call this before reading the properties so that a change made
+     * after reading them is not missed.
+     */
+    boolean getAndClear() {
+        if (!changed) {
+            return false;
+        }
+        changed = false;
+        return true;
+    }
+
+}
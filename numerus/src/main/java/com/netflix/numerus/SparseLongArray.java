@@ -0,0 +1,205 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * {@link BucketValues} on the heap where each value is allocated the first time it is written to, as a {@link LongAdder} (by {@link #add}), a
+ * {@link LongMaxUpdater} (by {@link #updateMax}) or a {@link LongAccumulator} (by {@link #accumulate} and {@link #set}). A value that was never written to
+ * is read as 0.
+ * <p>
+ * This is for event types with a large number of types of which only a few are used by any one rolling number: memory goes with the number of types written
+ * to (plus a reference per type) rather than with the number of types. A bit per value records which ones are allocated so that {@link #next} skips the
+ * others 64 at a time, which keeps the work of rotating a bucket in line with the number of types written to as well.
+ * <p>
+ * Once allocated a value stays allocated (and is reset to 0 when the bucket is reused), so the types written to in a bucket build up over time.
+ */
+/* package */final class SparseLongArray implements BucketValues {
+
+    private final int length;
+    /** bound on the number of cells of each value */
+    private final int maxCells;
+    private final AtomicReferenceArray<Striped64> values;
+    /** bit i set once values[i] is allocated */
+    private final AtomicLongArray allocated;
+
+    SparseLongArray(int length) {
+        this(length, Striped64.NCPU);
+    }
+
+    SparseLongArray(int length, int maxCells) {
+        this.length = length;
+        this.maxCells = maxCells;
+        this.values = new AtomicReferenceArray<Striped64>(length);
+        this.allocated = new AtomicLongArray((length + 63) >>> 6);
+    }
+
+    @Override
+    public void add(int i, long x) {
+        Striped64 v = values.get(i);
+        if (v == null) {
+            v = allocate(i, new LongAdder(maxCells));
+        }
+        ((LongAdder) v).add(x);
+    }
+
+    @Override
+    public void updateMax(int i, long x) {
+        Striped64 v = values.get(i);
+        if (v == null) {
+            v = allocate(i, new LongMaxUpdater(maxCells));
+        }
+        ((LongMaxUpdater) v).update(x);
+    }
+
+    @Override
+    public void accumulate(int i, long x, LongBinaryOperator fn) {
+        Striped64 v = values.get(i);
+        if (v == null) {
+            v = allocate(i, new LongAccumulator(fn, 0, maxCells));
+        }
+        ((LongAccumulator) v).accumulate(x);
+    }
+
+    /**
+     * Sets the value at index i, as a LongAccumulator that is never striped and whose function replaces the value.
+     */
+    @Override
+    public void set(int i, long x) {
+        Striped64 v = values.get(i);
+        if (v == null) {
+            v = allocate(i, new LongAccumulator(REPLACE, 0, 1));
+        }
+        ((LongAccumulator) v).accumulate(x);
+    }
+
+    private static final LongBinaryOperator REPLACE = new LongBinaryOperator() {
+
+        @Override
+        public long applyAsLong(long left, long right) {
+            return right;
+        }
+
+    };
+
+    /**
+     * Publishes the given value at index i unless another thread got there first, returning the one published.
+     * <p>
+     * The bit goes first so that {@link #next} reports a value as soon as anyone can write to it: otherwise a write to a value published but not reported
+     * yet would be skipped by the reset of a bucket being recycled, and counted in the next epoch of the bucket. A bit set before its value is published is
+     * harmless as a missing value is read as 0.
+     */
+    private Striped64 allocate(int i, Striped64 value) {
+        int word = i >>> 6;
+        long bit = 1L << i;
+        long bits;
+        do {
+            bits = allocated.get(word);
+        } while ((bits & bit) == 0 && !allocated.compareAndSet(word, bits, bits | bit));
+        if (!values.compareAndSet(i, null, value)) {
+            return values.get(i);
+        }
+        return value;
+    }
+
+    @Override
+    public long sum(int i) {
+        Striped64 v = values.get(i);
+        return v == null ? 0 : ((LongAdder) v).sum();
+    }
+
+    /**
+     * Returns the max at index i, at least 0 as with the other storage: a LongMaxUpdater starts at <code>Long.MIN_VALUE</code> and keeps negative
+     * updates until it is reset (to 0, see Striped64.drain).
+     */
+    @Override
+    public long max(int i) {
+        Striped64 v = values.get(i);
+        return v == null ? 0 : Math.max(0, ((LongMaxUpdater) v).max());
+    }
+
+    /**
+     * Returns the value at index i combined with the function of its LongAccumulator, which is the same as the one given.
+     */
+    @Override
+    public long reduce(int i, LongBinaryOperator fn) {
+        Striped64 v = values.get(i);
+        return v == null ? 0 : ((LongAccumulator) v).get();
+    }
+
+    /**
+     * Equivalent to {@link #sum} followed by resetting the value at index i to 0, without losing an update made concurrently (see Striped64.drain).
+     */
+    @Override
+    public long sumThenReset(int i) {
+        Striped64 v = values.get(i);
+        return v == null ? 0 : v.drain();
+    }
+
+    /**
+     * Equivalent to {@link #max} followed by resetting the value at index i to 0, see {@link #sumThenReset}.
+     */
+    @Override
+    public long maxThenReset(int i) {
+        Striped64 v = values.get(i);
+        return v == null ? 0 : v.drain();
+    }
+
+    /**
+     * Equivalent to {@link #reduce} followed by resetting the value at index i to 0, see {@link #sumThenReset}.
+     */
+    @Override
+    public long reduceThenReset(int i, LongBinaryOperator fn) {
+        Striped64 v = values.get(i);
+        return v == null ? 0 : v.drain();
+    }
+
+    /**
+     * Decays the cells of each value allocated, see Striped64.decay.
+     */
+    @Override
+    public void decay(LongBinaryOperator[] operators) {
+        for (int i = next(0); i < length; i = next(i + 1)) {
+            Striped64 v = values.get(i);
+            // null while it is being allocated, see allocate
+            if (v != null) {
+                v.decay();
+            }
+        }
+    }
+
+    /**
+     * Returns the first index from the given one whose value is allocated, or the number of values if there is none.
+     */
+    @Override
+    public int next(int from) {
+        if (from >= length) {
+            return length;
+        }
+        int word = from >>> 6;
+        long bits = allocated.get(word) & (-1L << from);
+        while (bits == 0) {
+            if (++word == allocated.length()) {
+                return length;
+            }
+            bits = allocated.get(word);
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+}
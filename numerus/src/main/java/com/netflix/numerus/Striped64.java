@@ -24,7 +24,6 @@ package com.netflix.numerus;
  * From http://gee.cs.oswego.edu/cgi-bin/viewcvs.cgi/jsr166/src/jsr166e/
  */
 
-import java.util.Random;
 
 /**
  * A package-local class holding common representation and mechanics
@@ -64,7 +63,13 @@ abstract class Striped64 extends Number {
      * retries, there is increased contention and reduced locality,
      * which is still better than alternatives.
      * 
-     * Per-thread hash codes are initialized to random values.
+     * (Numerus) Threads probe the table with a hash of their id rather
+     * than a hash code held in a ThreadLocal, so a thread updating the
+     * cells costs neither a HashCode object nor a ThreadLocal lookup,
+     * which matters with very many (short-lived or virtual) threads. The
+     * rehash on a collision is recorded as a "salt" in a small static
+     * table indexed by the hash of the id, shared by the threads that
+     * index to the same entry (see getProbe).
      * Contention and/or table collisions are indicated by failed
      * CASes when performing an update operation (see method
      * retryUpdate). Upon a collision, if the table size is less than
@@ -93,6 +98,20 @@ abstract class Striped64 extends Number {
      * under the assumption that for long-running instances, observed
      * contention levels will recur, so the cells will eventually be
      * needed again; and for short-lived ones, it does not matter.
+     * 
+     * (Numerus) Instead the owner may call decay periodically (a
+     * NumerusRollingNumber does so each time a bucket is recycled),
+     * which drops the whole table when there was no contention since
+     * the previous call, folding the cells into base. Writers may
+     * still hold the dropped table, so each cell is marked "retired"
+     * before it is drained and a writer whose CAS on a cell succeeds
+     * checks the mark and drains the cell again itself if it is set.
+     * Either the CAS came before the drain (and was drained) or the
+     * writer sees the mark, so nothing is lost.
+     * 
+     * The table size is also capped by maxCells (the number of CPUs
+     * unless given), for the case where the CPUs available to the
+     * process are fewer than the CPUs of the machine.
      */
 
     private static final long serialVersionUID = -3403386352761423917L;
@@ -109,6 +128,8 @@ abstract class Striped64 extends Number {
         volatile long p0, p1, p2, p3, p4, p5, p6;
         volatile long value;
         volatile long q0, q1, q2, q3, q4, q5, q6;
+        /** Set once the cell has been dropped from the table, see decay */
+        volatile boolean retired;
 
         Cell(long x) {
             value = x;
@@ -134,39 +155,64 @@ abstract class Striped64 extends Number {
 
     }
 
+    /** Number of CPUS, to place bound on table size */
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+
     /**
-     * Holder for the thread-local hash code. The code is initially
-     * random, but may be set to a different value upon collisions.
+     * Number of probe salts, a power of 2 well above the number of
+     * threads that contend at any one time.
      */
-    static final class HashCode {
-        static final Random rng = new Random();
-        int code;
+    static final int PROBE_SALTS = Integer.highestOneBit(Math.max(NCPU, 16) * 16 - 1) << 1;
 
-        HashCode() {
-            int h = rng.nextInt(); // Avoid zero to allow xorShift rehash
-            code = (h == 0) ? 1 : h;
-        }
+    /**
+     * The salts the hash of a thread's id is xored with to give its
+     * probe, initially 0 and changed upon collisions. Shared across all
+     * instances because adjustments due to collisions in one table are
+     * likely to be appropriate for others. Plain ints: a lost or stale
+     * salt only means a thread tries a slot it would have moved off.
+     */
+    static final int[] probeSalts = new int[PROBE_SALTS];
+
+    /**
+     * Returns the hash code of the current thread used to pick a cell,
+     * never zero (to allow xorShift rehash).
+     */
+    static int getProbe() {
+        int h = idHash();
+        h ^= probeSalts[h & (PROBE_SALTS - 1)];
+        return (h == 0) ? 1 : h;
     }
 
     /**
-     * The corresponding ThreadLocal class
+     * Records the given hash code as the probe of the current thread
+     * (and of the threads sharing its salt), after rehashing it upon
+     * a collision.
      */
-    static final class ThreadHashCode extends ThreadLocal<HashCode> {
-        public HashCode initialValue() {
-            return new HashCode();
-        }
+    static void setProbe(int h) {
+        int id = idHash();
+        probeSalts[id & (PROBE_SALTS - 1)] = h ^ id;
     }
 
     /**
-     * Static per-thread hash codes. Shared across all instances to
-     * reduce ThreadLocal pollution and because adjustments due to
-     * collisions in one table are likely to be appropriate for
-     * others.
+     * Rehashes the given hash code with Marsaglia XorShift and records
+     * it, see setProbe.
      */
-    static final ThreadHashCode threadHashCode = new ThreadHashCode();
+    static int advanceProbe(int h) {
+        h ^= h << 13;
+        h ^= h >>> 17;
+        h ^= h << 5;
+        setProbe(h);
+        return h;
+    }
 
-    /** Number of CPUS, to place bound on table size */
-    static final int NCPU = Runtime.getRuntime().availableProcessors();
+    /**
+     * Fibonacci hash of the current thread's id, thread ids being handed
+     * out in sequence. The same bits pick the salt and (after the xor)
+     * the cell, the salt being what moves a thread to another cell.
+     */
+    private static int idHash() {
+        return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32);
+    }
 
     /**
      * Table of cells. When non-null, size is a power of 2.
@@ -184,10 +230,35 @@ abstract class Striped64 extends Number {
      */
     transient volatile int busy;
 
+    /**
+     * Set by retryUpdate, cleared by decay. Volatile so that decay sees
+     * the contention since its last run. One set between decay's read
+     * and its clear can still be missed, which at worst drops a table
+     * that is then expanded again.
+     */
+    transient volatile boolean contended;
+
+    /**
+     * Bound on the table size in place of NCPU: the table grows up to
+     * the nearest power of two greater than or equal to it, and is
+     * never created if it is 1.
+     */
+    final int maxCells;
+
     /**
      * Package-private default constructor
      */
     Striped64() {
+        this(NCPU);
+    }
+
+    /**
+     * Package-private constructor with the maximum number of cells
+     */
+    Striped64(int maxCells) {
+        if (maxCells <= 0)
+            throw new IllegalArgumentException("The maximum number of cells must be at least 1: " + maxCells);
+        this.maxCells = maxCells;
     }
 
     /**
@@ -217,6 +288,12 @@ abstract class Striped64 extends Number {
      */
     abstract long fn(long currentValue, long newValue);
 
+    /**
+     * The value of base and of new cells after a reset, which fn leaves
+     * any value unchanged with.
+     */
+    abstract long identity();
+
     /**
      * Handles cases of updates involving initialization, resizing,
      * creating new Cells, and/or contention. See above for
@@ -226,13 +303,13 @@ abstract class Striped64 extends Number {
      * 
      * @param x
      *            the value
-     * @param hc
-     *            the hash code holder
+     * @param h
+     *            the probe of the current thread
      * @param wasUncontended
      *            false if CAS failed before call
      */
-    final void retryUpdate(long x, HashCode hc, boolean wasUncontended) {
-        int h = hc.code;
+    final void retryUpdate(long x, int h, boolean wasUncontended) {
+        contended = true;
         boolean collide = false;                // True if last slot nonempty
         for (;;) {
             Cell[] as;
@@ -266,9 +343,12 @@ abstract class Striped64 extends Number {
                 }
                 else if (!wasUncontended)       // CAS already known to fail
                     wasUncontended = true;      // Continue after rehash
-                else if (a.cas(v = a.value, fn(v, x)))
+                else if (a.cas(v = a.value, fn(v, x))) {
+                    if (a.retired)
+                        drainRetired(a);
                     break;
-                else if (n >= NCPU || cells != as)
+                }
+                else if (n >= maxCells || cells != as)
                     collide = false;            // At max size or stale
                 else if (!collide)
                     collide = true;
@@ -290,7 +370,7 @@ abstract class Striped64 extends Number {
                 h ^= h >>> 17;
                 h ^= h << 5;
             }
-            else if (busy == 0 && cells == as && casBusy()) {
+            else if (maxCells > 1 && busy == 0 && cells == as && casBusy()) {
                 boolean init = false;
                 try {                           // Initialize table
                     if (cells == as) {
@@ -308,7 +388,7 @@ abstract class Striped64 extends Number {
             else if (casBase(v = base, fn(v, x)))
                 break;                          // Fall back on using base
         }
-        hc.code = h;                            // Record index for next time
+        setProbe(h);                            // Record index for next time
     }
 
     /**
@@ -327,6 +407,81 @@ abstract class Striped64 extends Number {
         }
     }
 
+    /**
+     * Drops the table of cells if there was no contention since the
+     * last call, folding the cells into base. (Numerus addition)
+     * 
+     * @return true if the table was dropped
+     */
+    final boolean decay() {
+        boolean wasContended = contended;
+        contended = false;
+        Cell[] as = cells;
+        if (wasContended || as == null || busy != 0 || !casBusy())
+            return false;
+        try {
+            if (cells != as)
+                return false;
+            cells = null;
+        } finally {
+            busy = 0;
+        }
+        for (int i = 0; i < as.length; ++i) {
+            Cell a = as[i];
+            if (a != null) {
+                a.retired = true;
+                drainRetired(a);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the value of a cell dropped from the table into base,
+     * called by decay and by writers that updated a retired cell.
+     */
+    final void drainRetired(Cell a) {
+        long id = identity();
+        long v, b;
+        do {
+            v = a.value;
+        } while (v != id && !a.cas(v, id));
+        if (v != id) {
+            do {
+                b = base;
+            } while (!casBase(b, fn(b, v)));
+        }
+    }
+
+    /**
+     * Sets base and all cells to 0 one at a time with a CAS, returning the
+     * values they had combined with fn (starting from 0), so that an update
+     * made concurrently is either included in the result or left in place.
+     * (Numerus addition, unlike sumThenReset nothing is lost.)
+     */
+    final long drain() {
+        long result = 0;
+        long v;
+        do {
+            v = base;
+        } while (v != 0 && !casBase(v, 0));
+        result = fn(result, v);
+        Cell[] as = cells;
+        if (as != null) {
+            int n = as.length;
+            for (int i = 0; i < n; ++i) {
+                Cell a = as[i];
+                if (a != null) {
+                    do {
+                        v = a.value;
+                    } while (v != 0 && !a.cas(v, 0));
+                    result = fn(result, v);
+                }
+            }
+        }
+        return result;
+    }
+
     // Unsafe mechanics
     private static final sun.misc.Unsafe UNSAFE;
     private static final long baseOffset;
@@ -351,7 +506,7 @@ abstract class Striped64 extends Number {
      * 
      * @return a sun.misc.Unsafe
      */
-    private static sun.misc.Unsafe getUnsafe() {
+    static sun.misc.Unsafe getUnsafe() {
         try {
             return sun.misc.Unsafe.getUnsafe();
         } catch (SecurityException se) {
@@ -0,0 +1,409 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+/**
+ * {@link BucketValues} on the heap, striped the same way as {@link Striped64}.
+ * <p>
+ * Where a {@link LongAdder} per value has a table of cells per value, this has a single table of rows, each row being a padded <code>long[]</code> holding
+ * all of the values. A thread always updates the same row whichever value it updates, so a bucket of N counters is one contention domain with one table
+ * rather than N of them, and reading a value is a scan down a column of the rows.
+ * <p>
+ * Values start at 0, which is also the floor for the max values (as with the LongMaxUpdaters of a bucket that are initialized to 0).
+ */
+/* package */final class StripedLongArray implements BucketValues {
+    /*
+     * This follows Striped64, with rows in place of Cells:
+     *
+     * The table starts with a single row, which plays the part of the "base" field. Upon first contention (a failed CAS on it) the table is expanded to 2 rows
+     * and is doubled upon further contention until reaching the nearest power of two greater than or equal to the number of CPUS. Rows other than the first
+     * are only created once a thread hashes to them. A single spinlock ("busy") is used for resizing the table and populating it with new rows.
+     *
+     * Threads use the probe of Striped64 (shared with the LongAdders) to pick a row, and rehash on collisions.
+     *
+     * The table is bounded by maxRows (the number of CPUs unless given) rather than NCPU. When there was no contention since the last call to decay it
+     * collapses back to the first row, marking the other rows retired (in their padding) before draining them into it. A writer whose CAS on a row succeeds
+     * checks the mark and drains its value into the first row itself if it is set, as with the retired cells of Striped64.
+     *
+     * Rows are padded at both ends so the values of different rows (and of whatever is allocated next to them) never share a cache line. The padding is
+     * 128 bytes since some processors prefetch cache lines in pairs.
+     */
+
+    /** Number of longs of padding on each side of the values of a row */
+    static final int PAD = 16;
+
+    /** Number of CPUS, to place bound on table size */
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    /** Index in a row (in the padding) of the mark set once it is dropped from the table */
+    static final int RETIRED = PAD - 1;
+
+    /** Number of values in each row */
+    final int length;
+
+    /** Bound on the table size in place of NCPU */
+    final int maxRows;
+
+    /**
+     * Table of rows. The size is a power of 2 and the first row is always present.
+     */
+    volatile long[][] rows;
+
+    /**
+     * Spinlock (locked via CAS) used when resizing and/or creating rows.
+     */
+    volatile int busy;
+
+    /**
+     * Set by retryUpdate, cleared by decay, volatile as in Striped64.
+     */
+    volatile boolean contended;
+
+    StripedLongArray(int length) {
+        this(length, NCPU);
+    }
+
+    /**
+     * @param maxRows
+     *            bound on the number of rows, the table grows up to the nearest power of two greater than or equal to it under contention
+     */
+    StripedLongArray(int length, int maxRows) {
+        if (maxRows <= 0) {
+            throw new IllegalArgumentException("The maximum number of stripes must be at least 1: " + maxRows);
+        }
+        this.length = length;
+        this.maxRows = maxRows;
+        this.rows = new long[][] { newRow() };
+    }
+
+    private long[] newRow() {
+        return new long[PAD + length + PAD];
+    }
+
+    /**
+     * Adds the given value to the value at index i.
+     */
+    @Override
+    public void add(int i, long x) {
+        long[][] rs = rows;
+        long offset = offset(i);
+        long v;
+        if (rs.length == 1) {
+            long[] r = rs[0];
+            if (UNSAFE.compareAndSwapLong(r, offset, v = UNSAFE.getLongVolatile(r, offset), v + x))
+                return;
+            retryUpdate(i, x, SUM, Striped64.getProbe(), false);
+            return;
+        }
+        int h = Striped64.getProbe();
+        long[] r = rs[(rs.length - 1) & h];
+        boolean uncontended = true;
+        if (r == null || !(uncontended = UNSAFE.compareAndSwapLong(r, offset, v = UNSAFE.getLongVolatile(r, offset), v + x)))
+            retryUpdate(i, x, SUM, h, uncontended);
+        else if (isRetired(r))
+            drainRetired(r, offset, SUM);
+    }
+
+    /**
+     * Updates the value at index i to the given value if it is greater.
+     */
+    @Override
+    public void updateMax(int i, long x) {
+        long[][] rs = rows;
+        long offset = offset(i);
+        long v;
+        if (rs.length == 1) {
+            long[] r = rs[0];
+            if ((v = UNSAFE.getLongVolatile(r, offset)) >= x || UNSAFE.compareAndSwapLong(r, offset, v, x))
+                return;
+            retryUpdate(i, x, MAX, Striped64.getProbe(), false);
+            return;
+        }
+        int h = Striped64.getProbe();
+        long[] r = rs[(rs.length - 1) & h];
+        boolean uncontended = true;
+        if (r == null || ((v = UNSAFE.getLongVolatile(r, offset)) < x && !(uncontended = UNSAFE.compareAndSwapLong(r, offset, v, x))))
+            retryUpdate(i, x, MAX, h, uncontended);
+        else if (isRetired(r))
+            drainRetired(r, offset, MAX);
+    }
+
+    /**
+     * Updates the value at index i to the given function of it and the given value.
+     */
+    @Override
+    public void accumulate(int i, long x, LongBinaryOperator fn) {
+        long[][] rs = rows;
+        long offset = offset(i);
+        long v, n;
+        if (rs.length == 1) {
+            long[] r = rs[0];
+            if ((n = fn.applyAsLong(v = UNSAFE.getLongVolatile(r, offset), x)) == v || UNSAFE.compareAndSwapLong(r, offset, v, n))
+                return;
+            retryUpdate(i, x, fn, Striped64.getProbe(), false);
+            return;
+        }
+        int h = Striped64.getProbe();
+        long[] r = rs[(rs.length - 1) & h];
+        boolean uncontended = true;
+        if (r == null || ((n = fn.applyAsLong(v = UNSAFE.getLongVolatile(r, offset), x)) != v && !(uncontended = UNSAFE.compareAndSwapLong(r, offset, v, n))))
+            retryUpdate(i, x, fn, h, uncontended);
+        else if (isRetired(r))
+            drainRetired(r, offset, fn);
+    }
+
+    /**
+     * Sets the value at index i in the first row, which is never retired.
+     */
+    @Override
+    public void set(int i, long x) {
+        UNSAFE.putLongVolatile(rows[0], offset(i), x);
+    }
+
+    /**
+     * Handles updates involving resizing, creating new rows and/or contention, see Striped64.retryUpdate.
+     */
+    private void retryUpdate(int i, long x, LongBinaryOperator fn, int h, boolean wasUncontended) {
+        long offset = offset(i);
+        contended = true;
+        boolean collide = false;                // True if last row nonempty
+        for (;;) {
+            long[][] rs = rows;
+            int n = rs.length;
+            long[] r = rs[(n - 1) & h];
+            long v, nv;
+            if (r == null) {
+                if (busy == 0 && casBusy()) {   // Try to attach a new row
+                    try {                       // Recheck under lock
+                        if (rows == rs && rs[(n - 1) & h] == null)
+                            rs[(n - 1) & h] = newRow();
+                    } finally {
+                        busy = 0;
+                    }
+                    continue;                   // Retry on the new row
+                }
+                collide = false;
+            }
+            else if (!wasUncontended)           // CAS already known to fail
+                wasUncontended = true;          // Continue after rehash
+            else if ((nv = fn.applyAsLong(v = UNSAFE.getLongVolatile(r, offset), x)) == v)
+                break;                          // Nothing to change (a max that is already higher)
+            else if (UNSAFE.compareAndSwapLong(r, offset, v, nv)) {
+                if (isRetired(r))
+                    drainRetired(r, offset, fn);
+                break;
+            }
+            else if (n >= maxRows || rows != rs)
+                collide = false;                // At max size or stale
+            else if (!collide)
+                collide = true;
+            else if (busy == 0 && casBusy()) {
+                try {
+                    if (rows == rs) {           // Expand table unless stale
+                        long[][] ns = new long[n << 1][];
+                        System.arraycopy(rs, 0, ns, 0, n);
+                        rows = ns;
+                    }
+                } finally {
+                    busy = 0;
+                }
+                collide = false;
+                continue;                       // Retry with expanded table
+            }
+            h ^= h << 13;                       // Rehash
+            h ^= h >>> 17;
+            h ^= h << 5;
+        }
+        Striped64.setProbe(h);                  // Record index for next time
+    }
+
+    /**
+     * Collapses the table back to its first row if there was no contention since the last call, folding the values of the other rows into it.
+     */
+    @Override
+    public void decay(LongBinaryOperator[] operators) {
+        boolean wasContended = contended;
+        contended = false;
+        long[][] rs = rows;
+        if (wasContended || rs.length == 1 || busy != 0 || !casBusy())
+            return;
+        try {
+            if (rows != rs)
+                return;
+            rows = new long[][] { rs[0] };
+        } finally {
+            busy = 0;
+        }
+        for (int j = 1; j < rs.length; j++) {
+            long[] r = rs[j];
+            if (r != null) {
+                UNSAFE.putLongVolatile(r, RETIRED_OFFSET, 1L);
+                for (int i = 0; i < length; i++) {
+                    drainRetired(r, offset(i), operators[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the value at index i over all rows. As with LongAdder.sum() this is not an atomic snapshot when there are concurrent updates.
+     */
+    @Override
+    public long sum(int i) {
+        long offset = offset(i);
+        long sum = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                sum += UNSAFE.getLongVolatile(r, offset);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the max of the value at index i over all rows.
+     */
+    @Override
+    public long max(int i) {
+        long offset = offset(i);
+        long max = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                max = Math.max(max, UNSAFE.getLongVolatile(r, offset));
+        }
+        return max;
+    }
+
+    /**
+     * Returns the value at index i combined with the given function over all rows.
+     */
+    @Override
+    public long reduce(int i, LongBinaryOperator fn) {
+        long offset = offset(i);
+        long result = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                result = fn.applyAsLong(result, UNSAFE.getLongVolatile(r, offset));
+        }
+        return result;
+    }
+
+    /**
+     * Equivalent to {@link #sum} followed by resetting the value at index i to 0, except that each row is reset atomically with reading it so an update
+     * made concurrently is either included in the sum or left in place, never lost.
+     */
+    @Override
+    public long sumThenReset(int i) {
+        long offset = offset(i);
+        long sum = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                sum += getAndReset(r, offset);
+        }
+        return sum;
+    }
+
+    /**
+     * Equivalent to {@link #max} followed by resetting the value at index i to 0, see {@link #sumThenReset}.
+     */
+    @Override
+    public long maxThenReset(int i) {
+        long offset = offset(i);
+        long max = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                max = Math.max(max, getAndReset(r, offset));
+        }
+        return max;
+    }
+
+    /**
+     * Equivalent to {@link #reduce} followed by resetting the value at index i to 0, see {@link #sumThenReset}.
+     */
+    @Override
+    public long reduceThenReset(int i, LongBinaryOperator fn) {
+        long offset = offset(i);
+        long result = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                result = fn.applyAsLong(result, getAndReset(r, offset));
+        }
+        return result;
+    }
+
+    @Override
+    public int next(int from) {
+        // every value is allocated
+        return from;
+    }
+
+    private static boolean isRetired(long[] r) {
+        return UNSAFE.getLongVolatile(r, RETIRED_OFFSET) != 0;
+    }
+
+    /**
+     * Moves a value of a row dropped from the table into the first row, called by decay and by writers that updated a retired row.
+     */
+    private void drainRetired(long[] r, long offset, LongBinaryOperator fn) {
+        long x = getAndReset(r, offset);
+        if (x == 0)
+            return;
+        long[] first = rows[0];
+        long v;
+        while (!UNSAFE.compareAndSwapLong(first, offset, v = UNSAFE.getLongVolatile(first, offset), fn.applyAsLong(v, x))) {
+        }
+    }
+
+    private static long getAndReset(long[] r, long offset) {
+        long v;
+        do {
+            v = UNSAFE.getLongVolatile(r, offset);
+        } while (v != 0 && !UNSAFE.compareAndSwapLong(r, offset, v, 0));
+        return v;
+    }
+
+    private long offset(int i) {
+        if (i < 0 || i >= length)
+            throw new ArrayIndexOutOfBoundsException(i);
+        return LONG_ARRAY_BASE + ((long) (PAD + i) << LONG_ARRAY_SHIFT);
+    }
+
+    /**
+     * CASes the busy field from 0 to 1 to acquire lock.
+     */
+    private boolean casBusy() {
+        return UNSAFE.compareAndSwapInt(this, busyOffset, 0, 1);
+    }
+
+    // Unsafe mechanics
+    private static final sun.misc.Unsafe UNSAFE;
+    private static final long busyOffset;
+    private static final long LONG_ARRAY_BASE;
+    private static final int LONG_ARRAY_SHIFT;
+    private static final long RETIRED_OFFSET;
+    static {
+        try {
+            UNSAFE = Striped64.getUnsafe();
+            busyOffset = UNSAFE.objectFieldOffset
+                    (StripedLongArray.class.getDeclaredField("busy"));
+            LONG_ARRAY_BASE = UNSAFE.arrayBaseOffset(long[].class);
+            LONG_ARRAY_SHIFT = 31 - Integer.numberOfLeadingZeros(UNSAFE.arrayIndexScale(long[].class));
+            RETIRED_OFFSET = LONG_ARRAY_BASE + ((long) RETIRED << LONG_ARRAY_SHIFT);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * {@link BucketValues} in memory outside of the heap, a slice of a direct {@link ByteBuffer} shared by the buckets allocated together (see
+ * {@link #allocate}): all the buckets of a {@link NumerusRollingNumber} share one, which is allocated again when they are resized, and its cumulative sum
+ * has one of its own.
+ * <p>
+ * The values have a fixed number of stripes (rows) rather than a table that grows under contention like {@link StripedLongArray}, as the whole slab is
+ * allocated up front. Each thread updates the row its Striped64 probe maps to and moves to another row when it collides with other threads.
+ * <p>
+ * The slab is freed with the direct ByteBuffer once the buckets are unreachable.
+ * <p>
+ * This is the Java 9+ version of the class, picked over the one in src/main/java from the multi-release jar. It is the same but for the values being
+ * accessed through a byte buffer view VarHandle on an aligned slice of the slab, rather than through sun.misc.Unsafe at the address of the slab, with the
+ * same (volatile) access modes. It doesn't need access to the address so off-heap storage is always supported.
+ */
+/* package */final class OffHeapStripedLongArray implements BucketValues {
+    /*
+     * Layout of the slab: [bucket][row][value], each row rounded up to a multiple of CACHE_LINE bytes and starting on a cache line boundary
+     * (the slab is over-allocated by a cache line so that a slice of it starting on a cache line boundary holds all the rows).
+     */
+    static final int CACHE_LINE = 64;
+
+    /*
+     * the aligned slice of the slab, which references the slab so the memory is not freed while the buckets are in use
+     */
+    private final ByteBuffer slab;
+    /*
+     * index in the slice of the first row
+     */
+    private final int start;
+    private final int length;
+    private final int stripes;
+    private final int rowSize;
+
+    private OffHeapStripedLongArray(ByteBuffer slab, int start, int length, int stripes, int rowSize) {
+        this.slab = slab;
+        this.start = start;
+        this.length = length;
+        this.stripes = stripes;
+        this.rowSize = rowSize;
+    }
+
+    /**
+     * Allocate a single slab for the values of the given number of buckets.
+     *
+     * @param count
+     *            number of buckets
+     * @param length
+     *            number of values of each bucket
+     * @param stripes
+     *            number of rows of each bucket, a power of 2
+     */
+    static OffHeapStripedLongArray[] allocate(int count, int length, int stripes) {
+        if (stripes <= 0 || Integer.bitCount(stripes) != 1) {
+            throw new IllegalArgumentException("The number of stripes must be a power of 2: " + stripes);
+        }
+        long rowSize = (((long) length * 8 + CACHE_LINE - 1) / CACHE_LINE) * CACHE_LINE;
+        long bucketSize = rowSize * stripes;
+        long slabSize = bucketSize * count + CACHE_LINE;
+        if (slabSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many values to allocate off-heap: " + slabSize + " bytes");
+        }
+        // direct buffers are zeroed
+        ByteBuffer slab = ByteBuffer.allocateDirect((int) slabSize).alignedSlice(CACHE_LINE);
+
+        OffHeapStripedLongArray[] values = new OffHeapStripedLongArray[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new OffHeapStripedLongArray(slab, (int) (i * bucketSize), length, stripes, (int) rowSize);
+        }
+        return values;
+    }
+
+    @Override
+    public void add(int i, long x) {
+        int index = index(i);
+        if (stripes == 1) {
+            long v;
+            do {
+                v = (long) LONGS.getVolatile(slab, index);
+            } while (!LONGS.compareAndSet(slab, index, v, v + x));
+            return;
+        }
+        int h = Striped64.getProbe();
+        long v;
+        int a;
+        while (!LONGS.compareAndSet(slab, a = index + (h & (stripes - 1)) * rowSize, v = (long) LONGS.getVolatile(slab, a), v + x)) {
+            // move a thread that collided with another onto a different row, as Striped64 does
+            h = Striped64.advanceProbe(h);
+        }
+    }
+
+    @Override
+    public void updateMax(int i, long x) {
+        int index = index(i);
+        int h = stripes > 1 ? Striped64.getProbe() : 0;
+        long v;
+        int a;
+        while ((v = (long) LONGS.getVolatile(slab, a = index + (h & (stripes - 1)) * rowSize)) < x && !LONGS.compareAndSet(slab, a, v, x)) {
+            if (stripes > 1) {
+                h = Striped64.advanceProbe(h);
+            }
+        }
+    }
+
+    @Override
+    public void accumulate(int i, long x, LongBinaryOperator fn) {
+        int index = index(i);
+        int h = stripes > 1 ? Striped64.getProbe() : 0;
+        long v;
+        long n;
+        int a;
+        while ((n = fn.applyAsLong(v = (long) LONGS.getVolatile(slab, a = index + (h & (stripes - 1)) * rowSize), x)) != v
+                && !LONGS.compareAndSet(slab, a, v, n)) {
+            if (stripes > 1) {
+                h = Striped64.advanceProbe(h);
+            }
+        }
+    }
+
+    @Override
+    public void set(int i, long x) {
+        LONGS.setVolatile(slab, index(i), x);
+    }
+
+    @Override
+    public long sum(int i) {
+        int index = index(i);
+        long sum = 0;
+        for (int r = 0; r < stripes; r++) {
+            sum += (long) LONGS.getVolatile(slab, index + r * rowSize);
+        }
+        return sum;
+    }
+
+    @Override
+    public long max(int i) {
+        int index = index(i);
+        long max = 0;
+        for (int r = 0; r < stripes; r++) {
+            max = Math.max(max, (long) LONGS.getVolatile(slab, index + r * rowSize));
+        }
+        return max;
+    }
+
+    @Override
+    public long reduce(int i, LongBinaryOperator fn) {
+        int index = index(i);
+        long result = 0;
+        for (int r = 0; r < stripes; r++) {
+            result = fn.applyAsLong(result, (long) LONGS.getVolatile(slab, index + r * rowSize));
+        }
+        return result;
+    }
+
+    @Override
+    public long sumThenReset(int i) {
+        int index = index(i);
+        long sum = 0;
+        for (int r = 0; r < stripes; r++) {
+            sum += getAndReset(index + r * rowSize);
+        }
+        return sum;
+    }
+
+    @Override
+    public long maxThenReset(int i) {
+        int index = index(i);
+        long max = 0;
+        for (int r = 0; r < stripes; r++) {
+            max = Math.max(max, getAndReset(index + r * rowSize));
+        }
+        return max;
+    }
+
+    @Override
+    public long reduceThenReset(int i, LongBinaryOperator fn) {
+        int index = index(i);
+        long result = 0;
+        for (int r = 0; r < stripes; r++) {
+            result = fn.applyAsLong(result, getAndReset(index + r * rowSize));
+        }
+        return result;
+    }
+
+    @Override
+    public int next(int from) {
+        // every value is allocated
+        return from;
+    }
+
+    @Override
+    public void decay(LongBinaryOperator[] operators) {
+        // the stripes are allocated up front, there is nothing to give back
+    }
+
+    private long getAndReset(int a) {
+        long v;
+        do {
+            v = (long) LONGS.getVolatile(slab, a);
+        } while (v != 0 && !LONGS.compareAndSet(slab, a, v, 0L));
+        return v;
+    }
+
+    /*
+     * the index in the slice of value i in the first row, bounds checked as the slice holds the other buckets as well
+     */
+    private int index(int i) {
+        if (i < 0 || i >= length)
+            throw new ArrayIndexOutOfBoundsException(i);
+        return start + (i << 3);
+    }
+
+    /**
+     * Off-heap storage is always supported on Java 9 and later, see the Java 6 version.
+     */
+    static void checkSupported() {
+    }
+
+    // VarHandle mechanics
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+}
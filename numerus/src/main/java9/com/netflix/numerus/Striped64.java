@@ -0,0 +1,508 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.netflix.numerus;
+
+/*
+ * Written by Doug Lea with assistance from members of JCP JSR-166
+ * Expert Group and released to the public domain, as explained at
+ * http://creativecommons.org/publicdomain/zero/1.0/
+ * 
+ * From http://gee.cs.oswego.edu/cgi-bin/viewcvs.cgi/jsr166/src/jsr166e/
+ */
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * A package-local class holding common representation and mechanics
+ * for classes supporting dynamic striping on 64bit values. The class
+ * extends Number so that concrete subclasses must publicly do so.
+ * <p>
+ * (Numerus) This is the Java 9+ version of the class, picked over the
+ * one in src/main/java from the multi-release jar. It is the same but
+ * for the CASes going through VarHandles rather than sun.misc.Unsafe.
+ * They are full (volatile) CASes as with Unsafe, not the release-only
+ * weak CAS of the jdk's own Striped64: an adder reads the retired flag
+ * of a cell after its CAS, which a release CAS doesn't order. LongAdder and
+ * LongMaxUpdater only go through the methods here and need no version
+ * of their own. The striped arrays of the buckets (StripedLongArray and
+ * OffHeapStripedLongArray) have Java 9+ versions of their own, so there
+ * is no getUnsafe here and nothing uses sun.misc.Unsafe on Java 9+.
+ */
+abstract class Striped64 extends Number {
+    /*
+     * This class maintains a lazily-initialized table of atomically
+     * updated variables, plus an extra "base" field. The table size
+     * is a power of two. Indexing uses masked per-thread hash codes.
+     * Nearly all declarations in this class are package-private,
+     * accessed directly by subclasses.
+     * 
+     * Table entries are of class Cell; a variant of AtomicLong padded
+     * to reduce cache contention on most processors. Padding is
+     * overkill for most Atomics because they are usually irregularly
+     * scattered in memory and thus don't interfere much with each
+     * other. But Atomic objects residing in arrays will tend to be
+     * placed adjacent to each other, and so will most often share
+     * cache lines (with a huge negative performance impact) without
+     * this precaution.
+     * 
+     * In part because Cells are relatively large, we avoid creating
+     * them until they are needed. When there is no contention, all
+     * updates are made to the base field. Upon first contention (a
+     * failed CAS on base update), the table is initialized to size 2.
+     * The table size is doubled upon further contention until
+     * reaching the nearest power of two greater than or equal to the
+     * number of CPUS. Table slots remain empty (null) until they are
+     * needed.
+     * 
+     * A single spinlock ("busy") is used for initializing and
+     * resizing the table, as well as populating slots with new Cells.
+     * There is no need for a blocking lock: When the lock is not
+     * available, threads try other slots (or the base). During these
+     * retries, there is increased contention and reduced locality,
+     * which is still better than alternatives.
+     * 
+     * (Numerus) Threads probe the table with a hash of their id rather
+     * than a hash code held in a ThreadLocal, so a thread updating the
+     * cells costs neither a HashCode object nor a ThreadLocal lookup,
+     * which matters with very many (short-lived or virtual) threads. The
+     * rehash on a collision is recorded as a "salt" in a small static
+     * table indexed by the hash of the id, shared by the threads that
+     * index to the same entry (see getProbe).
+     * Contention and/or table collisions are indicated by failed
+     * CASes when performing an update operation (see method
+     * retryUpdate). Upon a collision, if the table size is less than
+     * the capacity, it is doubled in size unless some other thread
+     * holds the lock. If a hashed slot is empty, and lock is
+     * available, a new Cell is created. Otherwise, if the slot
+     * exists, a CAS is tried. Retries proceed by "double hashing",
+     * using a secondary hash (Marsaglia XorShift) to try to find a
+     * free slot.
+     * 
+     * The table size is capped because, when there are more threads
+     * than CPUs, supposing that each thread were bound to a CPU,
+     * there would exist a perfect hash function mapping threads to
+     * slots that eliminates collisions. When we reach capacity, we
+     * search for this mapping by randomly varying the hash codes of
+     * colliding threads. Because search is random, and collisions
+     * only become known via CAS failures, convergence can be slow,
+     * and because threads are typically not bound to CPUS forever,
+     * may not occur at all. However, despite these limitations,
+     * observed contention rates are typically low in these cases.
+     * 
+     * It is possible for a Cell to become unused when threads that
+     * once hashed to it terminate, as well as in the case where
+     * doubling the table causes no thread to hash to it under
+     * expanded mask. We do not try to detect or remove such cells,
+     * under the assumption that for long-running instances, observed
+     * contention levels will recur, so the cells will eventually be
+     * needed again; and for short-lived ones, it does not matter.
+     * 
+     * (Numerus) Instead the owner may call decay periodically (a
+     * NumerusRollingNumber does so each time a bucket is recycled),
+     * which drops the whole table when there was no contention since
+     * the previous call, folding the cells into base. Writers may
+     * still hold the dropped table, so each cell is marked "retired"
+     * before it is drained and a writer whose CAS on a cell succeeds
+     * checks the mark and drains the cell again itself if it is set.
+     * Either the CAS came before the drain (and was drained) or the
+     * writer sees the mark, so nothing is lost.
+     * 
+     * The table size is also capped by maxCells (the number of CPUs
+     * unless given), for the case where the CPUs available to the
+     * process are fewer than the CPUs of the machine.
+     */
+
+    private static final long serialVersionUID = -3403386352761423917L;
+
+    /**
+     * Padded variant of AtomicLong supporting only raw accesses plus CAS.
+     * The value field is placed between pads, hoping that the JVM doesn't
+     * reorder them.
+     * 
+     * The CAS is a full (volatile) compareAndSet as with Unsafe, see the
+     * class comment.
+     */
+    static final class Cell {
+        volatile long p0, p1, p2, p3, p4, p5, p6;
+        volatile long value;
+        volatile long q0, q1, q2, q3, q4, q5, q6;
+        /** Set once the cell has been dropped from the table, see decay */
+        volatile boolean retired;
+
+        Cell(long x) {
+            value = x;
+        }
+
+        final boolean cas(long cmp, long val) {
+            return VALUE.compareAndSet(this, cmp, val);
+        }
+
+        // VarHandle mechanics
+        private static final VarHandle VALUE;
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle
+                        (Cell.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new Error(e);
+            }
+        }
+
+    }
+
+    /** Number of CPUS, to place bound on table size */
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Number of probe salts, a power of 2 well above the number of
+     * threads that contend at any one time.
+     */
+    static final int PROBE_SALTS = Integer.highestOneBit(Math.max(NCPU, 16) * 16 - 1) << 1;
+
+    /**
+     * The salts the hash of a thread's id is xored with to give its
+     * probe, initially 0 and changed upon collisions. Shared across all
+     * instances because adjustments due to collisions in one table are
+     * likely to be appropriate for others. Plain ints: a lost or stale
+     * salt only means a thread tries a slot it would have moved off.
+     */
+    static final int[] probeSalts = new int[PROBE_SALTS];
+
+    /**
+     * Returns the hash code of the current thread used to pick a cell,
+     * never zero (to allow xorShift rehash).
+     */
+    static int getProbe() {
+        int h = idHash();
+        h ^= probeSalts[h & (PROBE_SALTS - 1)];
+        return (h == 0) ? 1 : h;
+    }
+
+    /**
+     * Records the given hash code as the probe of the current thread
+     * (and of the threads sharing its salt), after rehashing it upon
+     * a collision.
+     */
+    static void setProbe(int h) {
+        int id = idHash();
+        probeSalts[id & (PROBE_SALTS - 1)] = h ^ id;
+    }
+
+    /**
+     * Rehashes the given hash code with Marsaglia XorShift and records
+     * it, see setProbe.
+     */
+    static int advanceProbe(int h) {
+        h ^= h << 13;
+        h ^= h >>> 17;
+        h ^= h << 5;
+        setProbe(h);
+        return h;
+    }
+
+    /**
+     * Fibonacci hash of the current thread's id, thread ids being handed
+     * out in sequence. The same bits pick the salt and (after the xor)
+     * the cell, the salt being what moves a thread to another cell.
+     */
+    private static int idHash() {
+        return (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32);
+    }
+
+    /**
+     * Table of cells. When non-null, size is a power of 2.
+     */
+    transient volatile Cell[] cells;
+
+    /**
+     * Base value, used mainly when there is no contention, but also as
+     * a fallback during table initialization races. Updated via CAS.
+     */
+    transient volatile long base;
+
+    /**
+     * Spinlock (locked via CAS) used when resizing and/or creating Cells.
+     */
+    transient volatile int busy;
+
+    /**
+     * Set by retryUpdate, cleared by decay. Volatile so that decay sees
+     * the contention since its last run. One set between decay's read
+     * and its clear can still be missed, which at worst drops a table
+     * that is then expanded again.
+     */
+    transient volatile boolean contended;
+
+    /**
+     * Bound on the table size in place of NCPU: the table grows up to
+     * the nearest power of two greater than or equal to it, and is
+     * never created if it is 1.
+     */
+    final int maxCells;
+
+    /**
+     * Package-private default constructor
+     */
+    Striped64() {
+        this(NCPU);
+    }
+
+    /**
+     * Package-private constructor with the maximum number of cells
+     */
+    Striped64(int maxCells) {
+        if (maxCells <= 0)
+            throw new IllegalArgumentException("The maximum number of cells must be at least 1: " + maxCells);
+        this.maxCells = maxCells;
+    }
+
+    /**
+     * CASes the base field.
+     */
+    final boolean casBase(long cmp, long val) {
+        return BASE.compareAndSet(this, cmp, val);
+    }
+
+    /**
+     * CASes the busy field from 0 to 1 to acquire lock.
+     */
+    final boolean casBusy() {
+        return BUSY.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Computes the function of current and new value. Subclasses
+     * should open-code this update function for most uses, but the
+     * virtualized form is needed within retryUpdate.
+     * 
+     * @param currentValue
+     *            the current value (of either base or a cell)
+     * @param newValue
+     *            the argument from a user update call
+     * @return result of the update function
+     */
+    abstract long fn(long currentValue, long newValue);
+
+    /**
+     * The value of base and of new cells after a reset, which fn leaves
+     * any value unchanged with.
+     */
+    abstract long identity();
+
+    /**
+     * Handles cases of updates involving initialization, resizing,
+     * creating new Cells, and/or contention. See above for
+     * explanation. This method suffers the usual non-modularity
+     * problems of optimistic retry code, relying on rechecked sets of
+     * reads.
+     * 
+     * @param x
+     *            the value
+     * @param h
+     *            the probe of the current thread
+     * @param wasUncontended
+     *            false if CAS failed before call
+     */
+    final void retryUpdate(long x, int h, boolean wasUncontended) {
+        contended = true;
+        boolean collide = false;                // True if last slot nonempty
+        for (;;) {
+            Cell[] as;
+            Cell a;
+            int n;
+            long v;
+            if ((as = cells) != null && (n = as.length) > 0) {
+                if ((a = as[(n - 1) & h]) == null) {
+                    if (busy == 0) {            // Try to attach new Cell
+                        Cell r = new Cell(x);   // Optimistically create
+                        if (busy == 0 && casBusy()) {
+                            boolean created = false;
+                            try {               // Recheck under lock
+                                Cell[] rs;
+                                int m, j;
+                                if ((rs = cells) != null &&
+                                        (m = rs.length) > 0 &&
+                                        rs[j = (m - 1) & h] == null) {
+                                    rs[j] = r;
+                                    created = true;
+                                }
+                            } finally {
+                                busy = 0;
+                            }
+                            if (created)
+                                break;
+                            continue;           // Slot is now non-empty
+                        }
+                    }
+                    collide = false;
+                }
+                else if (!wasUncontended)       // CAS already known to fail
+                    wasUncontended = true;      // Continue after rehash
+                else if (a.cas(v = a.value, fn(v, x))) {
+                    if (a.retired)
+                        drainRetired(a);
+                    break;
+                }
+                else if (n >= maxCells || cells != as)
+                    collide = false;            // At max size or stale
+                else if (!collide)
+                    collide = true;
+                else if (busy == 0 && casBusy()) {
+                    try {
+                        if (cells == as) {      // Expand table unless stale
+                            Cell[] rs = new Cell[n << 1];
+                            for (int i = 0; i < n; ++i)
+                                rs[i] = as[i];
+                            cells = rs;
+                        }
+                    } finally {
+                        busy = 0;
+                    }
+                    collide = false;
+                    continue;                   // Retry with expanded table
+                }
+                h ^= h << 13;                   // Rehash
+                h ^= h >>> 17;
+                h ^= h << 5;
+            }
+            else if (maxCells > 1 && busy == 0 && cells == as && casBusy()) {
+                boolean init = false;
+                try {                           // Initialize table
+                    if (cells == as) {
+                        Cell[] rs = new Cell[2];
+                        rs[h & 1] = new Cell(x);
+                        cells = rs;
+                        init = true;
+                    }
+                } finally {
+                    busy = 0;
+                }
+                if (init)
+                    break;
+            }
+            else if (casBase(v = base, fn(v, x)))
+                break;                          // Fall back on using base
+        }
+        setProbe(h);                            // Record index for next time
+    }
+
+    /**
+     * Sets base and all cells to the given value.
+     */
+    final void internalReset(long initialValue) {
+        Cell[] as = cells;
+        base = initialValue;
+        if (as != null) {
+            int n = as.length;
+            for (int i = 0; i < n; ++i) {
+                Cell a = as[i];
+                if (a != null)
+                    a.value = initialValue;
+            }
+        }
+    }
+
+    /**
+     * Drops the table of cells if there was no contention since the
+     * last call, folding the cells into base. (Numerus addition)
+     * 
+     * @return true if the table was dropped
+     */
+    final boolean decay() {
+        boolean wasContended = contended;
+        contended = false;
+        Cell[] as = cells;
+        if (wasContended || as == null || busy != 0 || !casBusy())
+            return false;
+        try {
+            if (cells != as)
+                return false;
+            cells = null;
+        } finally {
+            busy = 0;
+        }
+        for (int i = 0; i < as.length; ++i) {
+            Cell a = as[i];
+            if (a != null) {
+                a.retired = true;
+                drainRetired(a);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves the value of a cell dropped from the table into base,
+     * called by decay and by writers that updated a retired cell.
+     */
+    final void drainRetired(Cell a) {
+        long id = identity();
+        long v, b;
+        do {
+            v = a.value;
+        } while (v != id && !a.cas(v, id));
+        if (v != id) {
+            do {
+                b = base;
+            } while (!casBase(b, fn(b, v)));
+        }
+    }
+
+    /**
+     * Sets base and all cells to 0 one at a time with a CAS, returning the
+     * values they had combined with fn (starting from 0), so that an update
+     * made concurrently is either included in the result or left in place.
+     * (Numerus addition, unlike sumThenReset nothing is lost.)
+     */
+    final long drain() {
+        long result = 0;
+        long v;
+        do {
+            v = base;
+        } while (v != 0 && !casBase(v, 0));
+        result = fn(result, v);
+        Cell[] as = cells;
+        if (as != null) {
+            int n = as.length;
+            for (int i = 0; i < n; ++i) {
+                Cell a = as[i];
+                if (a != null) {
+                    do {
+                        v = a.value;
+                    } while (v != 0 && !a.cas(v, 0));
+                    result = fn(result, v);
+                }
+            }
+        }
+        return result;
+    }
+
+    // VarHandle mechanics
+    private static final VarHandle BASE;
+    private static final VarHandle BUSY;
+    static {
+        try {
+            MethodHandles.Lookup l = MethodHandles.lookup();
+            BASE = l.findVarHandle(Striped64.class, "base", long.class);
+            BUSY = l.findVarHandle(Striped64.class, "busy", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new Error(e);
+        }
+    }
+
+}
@@ -0,0 +1,407 @@
+/**
+ * Copyright 2014 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.numerus;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * {@link BucketValues} on the heap, striped the same way as {@link Striped64}.
+ * <p>
+ * Where a {@link LongAdder} per value has a table of cells per value, this has a single table of rows, each row being a padded <code>long[]</code> holding
+ * all of the values. A thread always updates the same row whichever value it updates, so a bucket of N counters is one contention domain with one table
+ * rather than N of them, and reading a value is a scan down a column of the rows.
+ * <p>
+ * Values start at 0, which is also the floor for the max values (as with the LongMaxUpdaters of a bucket that are initialized to 0).
+ * <p>
+ * This is the Java 9+ version of the class, picked over the one in src/main/java from the multi-release jar. It is the same but for the elements of the rows
+ * being accessed through an array element VarHandle rather than sun.misc.Unsafe, with the same (volatile) access modes.
+ */
+/* package */final class StripedLongArray implements BucketValues {
+    /*
+     * This follows Striped64, with rows in place of Cells:
+     *
+     * The table starts with a single row, which plays the part of the "base" field. Upon first contention (a failed CAS on it) the table is expanded to 2 rows
+     * and is doubled upon further contention until reaching the nearest power of two greater than or equal to the number of CPUS. Rows other than the first
+     * are only created once a thread hashes to them. A single spinlock ("busy") is used for resizing the table and populating it with new rows.
+     *
+     * Threads use the probe of Striped64 (shared with the LongAdders) to pick a row, and rehash on collisions.
+     *
+     * The table is bounded by maxRows (the number of CPUs unless given) rather than NCPU. When there was no contention since the last call to decay it
+     * collapses back to the first row, marking the other rows retired (in their padding) before draining them into it. A writer whose CAS on a row succeeds
+     * checks the mark and drains its value into the first row itself if it is set, as with the retired cells of Striped64.
+     *
+     * Rows are padded at both ends so the values of different rows (and of whatever is allocated next to them) never share a cache line. The padding is
+     * 128 bytes since some processors prefetch cache lines in pairs.
+     */
+
+    /** Number of longs of padding on each side of the values of a row */
+    static final int PAD = 16;
+
+    /** Number of CPUS, to place bound on table size */
+    static final int NCPU = Runtime.getRuntime().availableProcessors();
+
+    /** Index in a row (in the padding) of the mark set once it is dropped from the table */
+    static final int RETIRED = PAD - 1;
+
+    /** Number of values in each row */
+    final int length;
+
+    /** Bound on the table size in place of NCPU */
+    final int maxRows;
+
+    /**
+     * Table of rows. The size is a power of 2 and the first row is always present.
+     */
+    volatile long[][] rows;
+
+    /**
+     * Spinlock (locked via CAS) used when resizing and/or creating rows.
+     */
+    volatile int busy;
+
+    /**
+     * Set by retryUpdate, cleared by decay, volatile as in Striped64.
+     */
+    volatile boolean contended;
+
+    StripedLongArray(int length) {
+        this(length, NCPU);
+    }
+
+    /**
+     * @param maxRows
+     *            bound on the number of rows, the table grows up to the nearest power of two greater than or equal to it under contention
+     */
+    StripedLongArray(int length, int maxRows) {
+        if (maxRows <= 0) {
+            throw new IllegalArgumentException("The maximum number of stripes must be at least 1: " + maxRows);
+        }
+        this.length = length;
+        this.maxRows = maxRows;
+        this.rows = new long[][] { newRow() };
+    }
+
+    private long[] newRow() {
+        return new long[PAD + length + PAD];
+    }
+
+    /**
+     * Adds the given value to the value at index i.
+     */
+    @Override
+    public void add(int i, long x) {
+        long[][] rs = rows;
+        int index = index(i);
+        long v;
+        if (rs.length == 1) {
+            long[] r = rs[0];
+            if (LONGS.compareAndSet(r, index, v = (long) LONGS.getVolatile(r, index), v + x))
+                return;
+            retryUpdate(i, x, SUM, Striped64.getProbe(), false);
+            return;
+        }
+        int h = Striped64.getProbe();
+        long[] r = rs[(rs.length - 1) & h];
+        boolean uncontended = true;
+        if (r == null || !(uncontended = LONGS.compareAndSet(r, index, v = (long) LONGS.getVolatile(r, index), v + x)))
+            retryUpdate(i, x, SUM, h, uncontended);
+        else if (isRetired(r))
+            drainRetired(r, index, SUM);
+    }
+
+    /**
+     * Updates the value at index i to the given value if it is greater.
+     */
+    @Override
+    public void updateMax(int i, long x) {
+        long[][] rs = rows;
+        int index = index(i);
+        long v;
+        if (rs.length == 1) {
+            long[] r = rs[0];
+            if ((v = (long) LONGS.getVolatile(r, index)) >= x || LONGS.compareAndSet(r, index, v, x))
+                return;
+            retryUpdate(i, x, MAX, Striped64.getProbe(), false);
+            return;
+        }
+        int h = Striped64.getProbe();
+        long[] r = rs[(rs.length - 1) & h];
+        boolean uncontended = true;
+        if (r == null || ((v = (long) LONGS.getVolatile(r, index)) < x && !(uncontended = LONGS.compareAndSet(r, index, v, x))))
+            retryUpdate(i, x, MAX, h, uncontended);
+        else if (isRetired(r))
+            drainRetired(r, index, MAX);
+    }
+
+    /**
+     * Updates the value at index i to the given function of it and the given value.
+     */
+    @Override
+    public void accumulate(int i, long x, LongBinaryOperator fn) {
+        long[][] rs = rows;
+        int index = index(i);
+        long v, n;
+        if (rs.length == 1) {
+            long[] r = rs[0];
+            if ((n = fn.applyAsLong(v = (long) LONGS.getVolatile(r, index), x)) == v || LONGS.compareAndSet(r, index, v, n))
+                return;
+            retryUpdate(i, x, fn, Striped64.getProbe(), false);
+            return;
+        }
+        int h = Striped64.getProbe();
+        long[] r = rs[(rs.length - 1) & h];
+        boolean uncontended = true;
+        if (r == null || ((n = fn.applyAsLong(v = (long) LONGS.getVolatile(r, index), x)) != v && !(uncontended = LONGS.compareAndSet(r, index, v, n))))
+            retryUpdate(i, x, fn, h, uncontended);
+        else if (isRetired(r))
+            drainRetired(r, index, fn);
+    }
+
+    /**
+     * Sets the value at index i in the first row, which is never retired.
+     */
+    @Override
+    public void set(int i, long x) {
+        LONGS.setVolatile(rows[0], index(i), x);
+    }
+
+    /**
+     * Handles updates involving resizing, creating new rows and/or contention, see Striped64.retryUpdate.
+     */
+    private void retryUpdate(int i, long x, LongBinaryOperator fn, int h, boolean wasUncontended) {
+        int index = index(i);
+        contended = true;
+        boolean collide = false;                // True if last row nonempty
+        for (;;) {
+            long[][] rs = rows;
+            int n = rs.length;
+            long[] r = rs[(n - 1) & h];
+            long v, nv;
+            if (r == null) {
+                if (busy == 0 && casBusy()) {   // Try to attach a new row
+                    try {                       // Recheck under lock
+                        if (rows == rs && rs[(n - 1) & h] == null)
+                            rs[(n - 1) & h] = newRow();
+                    } finally {
+                        busy = 0;
+                    }
+                    continue;                   // Retry on the new row
+                }
+                collide = false;
+            }
+            else if (!wasUncontended)           // CAS already known to fail
+                wasUncontended = true;          // Continue after rehash
+            else if ((nv = fn.applyAsLong(v = (long) LONGS.getVolatile(r, index), x)) == v)
+                break;                          // Nothing to change (a max that is already higher)
+            else if (LONGS.compareAndSet(r, index, v, nv)) {
+                if (isRetired(r))
+                    drainRetired(r, index, fn);
+                break;
+            }
+            else if (n >= maxRows || rows != rs)
+                collide = false;                // At max size or stale
+            else if (!collide)
+                collide = true;
+            else if (busy == 0 && casBusy()) {
+                try {
+                    if (rows == rs) {           // Expand table unless stale
+                        long[][] ns = new long[n << 1][];
+                        System.arraycopy(rs, 0, ns, 0, n);
+                        rows = ns;
+                    }
+                } finally {
+                    busy = 0;
+                }
+                collide = false;
+                continue;                       // Retry with expanded table
+            }
+            h ^= h << 13;                       // Rehash
+            h ^= h >>> 17;
+            h ^= h << 5;
+        }
+        Striped64.setProbe(h);                  // Record index for next time
+    }
+
+    /**
+     * Collapses the table back to its first row if there was no contention since the last call, folding the values of the other rows into it.
+     */
+    @Override
+    public void decay(LongBinaryOperator[] operators) {
+        boolean wasContended = contended;
+        contended = false;
+        long[][] rs = rows;
+        if (wasContended || rs.length == 1 || busy != 0 || !casBusy())
+            return;
+        try {
+            if (rows != rs)
+                return;
+            rows = new long[][] { rs[0] };
+        } finally {
+            busy = 0;
+        }
+        for (int j = 1; j < rs.length; j++) {
+            long[] r = rs[j];
+            if (r != null) {
+                LONGS.setVolatile(r, RETIRED, 1L);
+                for (int i = 0; i < length; i++) {
+                    drainRetired(r, index(i), operators[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the sum of the value at index i over all rows. As with LongAdder.sum() this is not an atomic snapshot when there are concurrent updates.
+     */
+    @Override
+    public long sum(int i) {
+        int index = index(i);
+        long sum = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                sum += (long) LONGS.getVolatile(r, index);
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the max of the value at index i over all rows.
+     */
+    @Override
+    public long max(int i) {
+        int index = index(i);
+        long max = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                max = Math.max(max, (long) LONGS.getVolatile(r, index));
+        }
+        return max;
+    }
+
+    /**
+     * Returns the value at index i combined with the given function over all rows.
+     */
+    @Override
+    public long reduce(int i, LongBinaryOperator fn) {
+        int index = index(i);
+        long result = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                result = fn.applyAsLong(result, (long) LONGS.getVolatile(r, index));
+        }
+        return result;
+    }
+
+    /**
+     * Equivalent to {@link #sum} followed by resetting the value at index i to 0, except that each row is reset atomically with reading it so an update
+     * made concurrently is either included in the sum or left in place, never lost.
+     */
+    @Override
+    public long sumThenReset(int i) {
+        int index = index(i);
+        long sum = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                sum += getAndReset(r, index);
+        }
+        return sum;
+    }
+
+    /**
+     * Equivalent to {@link #max} followed by resetting the value at index i to 0, see {@link #sumThenReset}.
+     */
+    @Override
+    public long maxThenReset(int i) {
+        int index = index(i);
+        long max = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                max = Math.max(max, getAndReset(r, index));
+        }
+        return max;
+    }
+
+    /**
+     * Equivalent to {@link #reduce} followed by resetting the value at index i to 0, see {@link #sumThenReset}.
+     */
+    @Override
+    public long reduceThenReset(int i, LongBinaryOperator fn) {
+        int index = index(i);
+        long result = 0;
+        for (long[] r : rows) {
+            if (r != null)
+                result = fn.applyAsLong(result, getAndReset(r, index));
+        }
+        return result;
+    }
+
+    @Override
+    public int next(int from) {
+        // every value is allocated
+        return from;
+    }
+
+    private static boolean isRetired(long[] r) {
+        return (long) LONGS.getVolatile(r, RETIRED) != 0;
+    }
+
+    /**
+     * Moves a value of a row dropped from the table into the first row, called by decay and by writers that updated a retired row.
+     */
+    private void drainRetired(long[] r, int index, LongBinaryOperator fn) {
+        long x = getAndReset(r, index);
+        if (x == 0)
+            return;
+        long[] first = rows[0];
+        long v;
+        while (!LONGS.compareAndSet(first, index, v = (long) LONGS.getVolatile(first, index), fn.applyAsLong(v, x))) {
+        }
+    }
+
+    private static long getAndReset(long[] r, int index) {
+        long v;
+        do {
+            v = (long) LONGS.getVolatile(r, index);
+        } while (v != 0 && !LONGS.compareAndSet(r, index, v, 0L));
+        return v;
+    }
+
+    private int index(int i) {
+        if (i < 0 || i >= length)
+            throw new ArrayIndexOutOfBoundsException(i);
+        return PAD + i;
+    }
+
+    /**
+     * CASes the busy field from 0 to 1 to acquire lock.
+     */
+    private boolean casBusy() {
+        return BUSY.compareAndSet(this, 0, 1);
+    }
+
+    // VarHandle mechanics
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle BUSY;
+    static {
+        try {
+            BUSY = MethodHandles.lookup().findVarHandle(StripedLongArray.class, "busy", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new Error(e);
+        }
+    }
+
+}
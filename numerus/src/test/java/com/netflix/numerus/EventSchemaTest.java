@@ -0,0 +1,62 @@
+package com.netflix.numerus;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.netflix.numerus.NumerusRollingNumberTest.EventType;
+import com.netflix.numerus.NumerusRollingNumberTest.GaugeType;
+
+public class EventSchemaTest {
+
+    @Test
+    public void testSlotsAreDensePerKind() {
+        EventSchema schema = EventSchema.of(EventType.BOOTSTRAP);
+        assertEquals(EventType.values().length, schema.length);
+        assertEquals(EventType.values().length - 1, schema.counters.length);
+        assertEquals(1, schema.maxUpdaters.length);
+
+        assertEquals(0, schema.maxUpdaterSlot(EventType.THREAD_MAX_ACTIVE));
+        assertEquals(EventType.THREAD_MAX_ACTIVE.ordinal(), schema.maxUpdaterOrdinals[0]);
+        // the counters after the max updater move up a slot
+        assertEquals(EventType.COLLAPSED.ordinal() - 1, schema.counterSlot(EventType.COLLAPSED));
+        for (int s = 0; s < schema.counters.length; s++) {
+            assertEquals(s, schema.counterSlot(schema.counters[s]));
+            assertEquals(schema.counters[s].ordinal(), schema.counterOrdinals[s]);
+        }
+    }
+
+    @Test
+    public void testReducersAfterMaxUpdaters() {
+        EventSchema schema = EventSchema.of(GaugeType.REQUESTS);
+        assertEquals(1, schema.counters.length);
+        assertEquals(5, schema.reducers.length);
+        assertEquals(6, schema.numberOfValues);
+        assertEquals(2, schema.reducerSlot(GaugeType.FLAGS));
+        assertEquals(NumerusRollingNumberReducer.BITWISE_OR, schema.reducerFunctions[2]);
+        assertEquals(3, schema.valueIndex(GaugeType.FLAGS.ordinal()));
+        assertSame(BucketValues.SUM, schema.operators[0]);
+        assertSame(NumerusRollingNumberReducer.MIN.operator, schema.operators[1]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReducerSlotOfCounter() {
+        EventSchema.of(GaugeType.REQUESTS).reducerSlot(GaugeType.REQUESTS);
+    }
+
+    @Test
+    public void testSchemaIsSharedPerClass() {
+        assertSame(EventSchema.of(EventType.BOOTSTRAP), EventSchema.of(EventType.SUCCESS));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCounterSlotOfMaxUpdater() {
+        EventSchema.of(EventType.BOOTSTRAP).counterSlot(EventType.THREAD_MAX_ACTIVE);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMaxUpdaterSlotOfCounter() {
+        EventSchema.of(EventType.BOOTSTRAP).maxUpdaterSlot(EventType.SUCCESS);
+    }
+
+}
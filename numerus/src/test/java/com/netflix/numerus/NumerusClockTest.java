@@ -0,0 +1,43 @@
+package com.netflix.numerus;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class NumerusClockTest {
+
+    @Test
+    public void testMonotonicClockStartsAtWallClock() {
+        long before = System.currentTimeMillis();
+        long now = NumerusClock.Factory.monotonicClock().getCurrentTimeInMillis();
+        // started at (or before) the wall clock when first used, so is within a reasonable distance of it
+        assertTrue(now > 0);
+        assertTrue(Math.abs(before - now) < 60000);
+    }
+
+    @Test
+    public void testMonotonicClockNeverGoesBackwards() {
+        NumerusClock clock = NumerusClock.Factory.monotonicClock();
+        long last = clock.getCurrentTimeInMillis();
+        for (int i = 0; i < 100000; i++) {
+            long now = clock.getCurrentTimeInMillis();
+            assertTrue(now >= last);
+            last = now;
+        }
+    }
+
+    @Test
+    public void testCoarseClockTicks() throws InterruptedException {
+        NumerusClock clock = NumerusClock.Factory.coarseClock();
+        assertSame(clock, NumerusClock.Factory.coarseClock());
+
+        long start = clock.getCurrentTimeInMillis();
+        long waited = 0;
+        while (clock.getCurrentTimeInMillis() == start && waited < 5000) {
+            Thread.sleep(5);
+            waited += 5;
+        }
+        assertTrue(clock.getCurrentTimeInMillis() > start);
+    }
+
+}
@@ -2,12 +2,17 @@ package com.netflix.numerus;
 
 import static org.junit.Assert.*;
 
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
-import com.netflix.numerus.NumerusRollingNumber.Time;
-
 public class NumerusRollingNumberTest {
 
     @Test
@@ -99,6 +104,886 @@ public class NumerusRollingNumberTest {
         }
     }
 
+    @Test
+    public void testBucketsAreRecycled() {
+        MockedTime time = new MockedTime();
+        try {
+            NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+
+            // roll through the ring once so every preallocated bucket has been used
+            Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            for (int i = 0; i < 11; i++) {
+                counter.increment(EventType.SUCCESS);
+                counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, 10);
+                seen.add(counter.buckets.getLast());
+                time.increment(counter.getBucketSizeInMilliseconds());
+            }
+            assertEquals(11, seen.size());
+
+            // keep rolling and we should only ever see the same bucket instances again
+            for (int i = 0; i < 30; i++) {
+                counter.increment(EventType.SUCCESS);
+                assertTrue(seen.contains(counter.buckets.getLast()));
+
+                // a recycled bucket starts out empty
+                assertEquals(1, counter.buckets.getLast().get(EventType.SUCCESS));
+                assertEquals(0, counter.buckets.getLast().get(EventType.THREAD_MAX_ACTIVE));
+                time.increment(counter.getBucketSizeInMilliseconds());
+            }
+
+            // the newest bucket (created by this read) is empty and the other 9 have 1 each
+            assertEquals(9, counter.getRollingSum(EventType.SUCCESS));
+            assertEquals(10, counter.buckets.size());
+            assertEquals(41, counter.getCumulativeSum(EventType.SUCCESS));
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            fail("Exception: " + e.getMessage());
+        }
+    }
+
+    @Test
+    public void testConcurrentIncrementsWhileRolling() throws Exception {
+        final MockedTime time = new MockedTime();
+        final NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        final int threads = 8;
+        final int incrementsPerThread = 50000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < incrementsPerThread; i++) {
+                            counter.increment(EventType.SUCCESS);
+                        }
+                    } catch (InterruptedException e) {
+                        // ignore
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+            }).start();
+        }
+
+        start.countDown();
+        // keep rolling buckets (and occasionally skipping some) while the writers are running
+        while (done.getCount() > 0) {
+            time.increment(counter.getBucketSizeInMilliseconds() * (time.getCurrentTimeInMillis() % 3 == 0 ? 2 : 1));
+            Thread.yield();
+        }
+        done.await();
+
+        // every increment ends up either in a bucket or the cumulative sum, none are lost while rotating
+        assertEquals(threads * incrementsPerThread, counter.getCumulativeSum(EventType.SUCCESS));
+    }
+
+    @Test
+    public void testRollingSumMatchesBucketValues() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        Random r = new Random(42);
+
+        for (int i = 0; i < 2000; i++) {
+            counter.add(EventType.SUCCESS, r.nextInt(5));
+            if (r.nextInt(4) == 0) {
+                counter.increment(EventType.FAILURE);
+            }
+            if (r.nextInt(10) == 0) {
+                // move forward by anything from part of a bucket to more than a whole window
+                time.increment(r.nextInt(counter.getBucketSizeInMilliseconds() * 13));
+            }
+            if (r.nextInt(200) == 0) {
+                counter.reset();
+            }
+
+            assertEquals(sum(counter.getValues(EventType.SUCCESS)), counter.getRollingSum(EventType.SUCCESS));
+            assertEquals(sum(counter.getValues(EventType.FAILURE)), counter.getRollingSum(EventType.FAILURE));
+        }
+    }
+
+    @Test
+    public void testRollingMaxMatchesBucketValues() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        Random r = new Random(42);
+
+        for (int i = 0; i < 2000; i++) {
+            counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, r.nextInt(100));
+            if (r.nextInt(10) == 0) {
+                // move forward by anything from part of a bucket to more than a whole window
+                time.increment(r.nextInt(counter.getBucketSizeInMilliseconds() * 13));
+            }
+            if (r.nextInt(200) == 0) {
+                counter.reset();
+            }
+
+            assertEquals(max(counter.getValues(EventType.THREAD_MAX_ACTIVE)), counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
+        }
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long v : values) {
+            sum += v;
+        }
+        return sum;
+    }
+
+    private static long max(long[] values) {
+        long max = 0;
+        for (long v : values) {
+            max = Math.max(max, v);
+        }
+        return max;
+    }
+
+    @Test
+    public void testSnapshotMatchesPerTypeValues() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        long[] rolling = new long[EventType.values().length];
+        long[] cumulative = new long[EventType.values().length];
+        Random r = new Random(7);
+
+        for (int i = 0; i < 100; i++) {
+            counter.add(EventType.SUCCESS, r.nextInt(10));
+            counter.increment(EventType.FAILURE);
+            counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, r.nextInt(100));
+            time.increment(r.nextInt(counter.getBucketSizeInMilliseconds() * 3));
+
+            counter.getSnapshot(rolling, cumulative);
+            for (EventType type : EventType.values()) {
+                if (type.isCounter()) {
+                    assertEquals(counter.getRollingSum(type), rolling[type.ordinal()]);
+                    assertEquals(counter.getCumulativeSum(type), cumulative[type.ordinal()]);
+                } else {
+                    assertEquals(counter.getRollingMaxValue(type), rolling[type.ordinal()]);
+                }
+            }
+        }
+
+        // the cumulative max is the max ever seen, not just in the window
+        counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, 1000);
+        time.increment(1000);
+        counter.getSnapshot(rolling, cumulative);
+        assertEquals(0, rolling[EventType.THREAD_MAX_ACTIVE.ordinal()]);
+        assertEquals(1000, cumulative[EventType.THREAD_MAX_ACTIVE.ordinal()]);
+    }
+
+    @Test
+    public void testBufferedWrites() throws Exception {
+        MockedTime time = new MockedTime();
+        final NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, NumerusProperty.Factory.asProperty(200), NumerusProperty.Factory.asProperty(10), true);
+
+        counter.increment(EventType.SUCCESS);
+        counter.add(EventType.SUCCESS, 2);
+        // still in the thread's buffer
+        assertEquals(0, counter.buckets.getLast().get(EventType.SUCCESS));
+        // a read flushes the buffer of the reading thread
+        assertEquals(3, counter.getRollingSum(EventType.SUCCESS));
+        assertEquals(3, counter.buckets.getLast().get(EventType.SUCCESS));
+
+        // another thread's writes are flushed by its next write after a read
+        ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        try {
+            Runnable failure = new Runnable() {
+
+                @Override
+                public void run() {
+                    counter.increment(EventType.FAILURE);
+                }
+
+            };
+            otherThread.submit(failure).get();
+            assertEquals(0, counter.getRollingSum(EventType.FAILURE));
+            otherThread.submit(failure).get();
+            // the second write is still buffered
+            assertEquals(1, counter.getRollingSum(EventType.FAILURE));
+        } finally {
+            otherThread.shutdown();
+        }
+
+        // writing in a new bucket flushes what was buffered into it
+        counter.increment(EventType.SUCCESS);
+        time.increment(counter.getBucketSizeInMilliseconds());
+        counter.increment(EventType.SUCCESS);
+        assertEquals(1, counter.buckets.getLast().get(EventType.SUCCESS));
+        assertEquals(5, counter.getRollingSum(EventType.SUCCESS));
+        assertEquals(5, counter.getCumulativeSum(EventType.SUCCESS));
+
+        // max updaters aren't buffered
+        counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, 10);
+        assertEquals(10, counter.buckets.getLast().get(EventType.THREAD_MAX_ACTIVE));
+    }
+
+    @Test
+    public void testOffHeapStorage() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, NumerusProperty.Factory.asProperty(200), NumerusProperty.Factory.asProperty(10), false,
+                NumerusBucketStorage.Factory.offHeap(2));
+        Random r = new Random(11);
+        long total = 0;
+        for (int i = 0; i < 200; i++) {
+            int value = r.nextInt(10);
+            total += value;
+            counter.add(EventType.SUCCESS, value);
+            counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, value);
+            time.increment(r.nextInt(counter.getBucketSizeInMilliseconds() * 2));
+            assertEquals(sum(counter.getValues(EventType.SUCCESS)), counter.getRollingSum(EventType.SUCCESS));
+            assertEquals(max(counter.getValues(EventType.THREAD_MAX_ACTIVE)), counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
+        }
+        assertEquals(total, counter.getCumulativeSum(EventType.SUCCESS));
+    }
+
+    @Test
+    public void testSparseStorage() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, NumerusProperty.Factory.asProperty(200), NumerusProperty.Factory.asProperty(10), false,
+                NumerusBucketStorage.Factory.sparse());
+        Random r = new Random(13);
+        long total = 0;
+        for (int i = 0; i < 200; i++) {
+            int value = r.nextInt(10);
+            total += value;
+            counter.add(EventType.SUCCESS, value);
+            if (i % 3 == 0) {
+                counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, value);
+            }
+            time.increment(r.nextInt(counter.getBucketSizeInMilliseconds() * 2));
+            assertEquals(sum(counter.getValues(EventType.SUCCESS)), counter.getRollingSum(EventType.SUCCESS));
+            assertEquals(max(counter.getValues(EventType.THREAD_MAX_ACTIVE)), counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
+            // never written to
+            assertEquals(0, counter.getRollingSum(EventType.FAILURE));
+        }
+        assertEquals(total, counter.getCumulativeSum(EventType.SUCCESS));
+        assertEquals(0, counter.getCumulativeSum(EventType.FAILURE));
+
+        long[] cumulative = new long[EventType.values().length];
+        counter.getSnapshot(null, cumulative);
+        assertEquals(total, cumulative[EventType.SUCCESS.ordinal()]);
+        assertEquals(0, cumulative[EventType.FAILURE.ordinal()]);
+    }
+
+    @Test
+    public void testSubWindow() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        int bucketSize = counter.getBucketSizeInMilliseconds();
+        Random r = new Random(18);
+        // the value added in each bucket since the start, the bucket at index j starting at j * bucketSize
+        long[] sums = new long[300];
+        long[] maxes = new long[300];
+        int current = 0;
+        for (int i = 0; i < 1000; i++) {
+            int value = r.nextInt(10);
+            sums[current] += value;
+            maxes[current] = Math.max(maxes[current], value);
+            counter.add(EventType.SUCCESS, value);
+            counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, value);
+            if (r.nextInt(4) == 0) {
+                // sometimes skip buckets, now and then more than the whole window
+                int skip = r.nextInt(10) == 0 ? 12 : 1 + r.nextInt(3);
+                current += skip;
+                time.increment(skip * bucketSize);
+                if (current >= sums.length) {
+                    break;
+                }
+            }
+            for (int k = 1; k <= 10; k++) {
+                long sum = 0;
+                long max = 0;
+                for (int j = Math.max(0, current - k + 1); j <= current; j++) {
+                    sum += sums[j];
+                    max = Math.max(max, maxes[j]);
+                }
+                // rounded up to whole buckets
+                assertEquals(sum, counter.getRollingSum(EventType.SUCCESS, k * bucketSize - bucketSize / 2));
+                assertEquals(max, counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE, k * bucketSize));
+            }
+            // capped at the window
+            assertEquals(counter.getRollingSum(EventType.SUCCESS), counter.getRollingSum(EventType.SUCCESS, 100000));
+            assertEquals(counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE), counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE, 100000));
+        }
+    }
+
+    @Test
+    public void testSubWindowOfTypesWrittenToRarely() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        int bucketSize = counter.getBucketSizeInMilliseconds();
+        Random r = new Random(21);
+        EventType[] types = { EventType.SUCCESS, EventType.FAILURE };
+        // the values added by type and epoch, FAILURE only now and then and some of them late
+        long[][] sums = new long[2][400];
+        for (int i = 0; i < 3000; i++) {
+            int current = (int) (time.getCurrentTimeInMillis() / bucketSize);
+            counter.add(EventType.SUCCESS, 1);
+            sums[0][current]++;
+            if (r.nextInt(30) == 0) {
+                int epoch = Math.max(0, current - r.nextInt(9));
+                counter.add(EventType.FAILURE, 5, epoch * bucketSize);
+                sums[1][epoch] += 5;
+            }
+            for (int t = 0; t < types.length; t++) {
+                long sum = 0;
+                for (int k = 1; k <= 10; k++) {
+                    if (current - k + 1 >= 0) {
+                        sum += sums[t][current - k + 1];
+                    }
+                    assertEquals(sum, counter.getRollingSum(types[t], k * bucketSize));
+                }
+            }
+            if (r.nextInt(5) == 0) {
+                // now and then more than the whole window
+                time.increment((r.nextInt(20) == 0 ? 12 : 1 + r.nextInt(2)) * bucketSize);
+                if (time.getCurrentTimeInMillis() / bucketSize >= sums[0].length) {
+                    break;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testAddAtTime() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        int bucketSize = counter.getBucketSizeInMilliseconds();
+        Random r = new Random(19);
+        // the values added by epoch (time / bucketSize), events being up to 15 buckets late and 1 bucket early
+        long[] sums = new long[200];
+        long[] maxes = new long[200];
+        long total = 0;
+        long dropped = 0;
+        for (int i = 0; i < 2000; i++) {
+            int now = (int) time.getCurrentTimeInMillis();
+            int current = now / bucketSize;
+            int timestamp = Math.max(0, now - r.nextInt(bucketSize * 15) + r.nextInt(bucketSize));
+            int value = r.nextInt(10);
+            // moves the window to the current time
+            counter.getRollingSum(EventType.SUCCESS);
+            counter.add(EventType.SUCCESS, value, timestamp);
+            counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, value, timestamp);
+            // a time in the current bucket is not checked against the clock
+            if (timestamp / bucketSize > current || timestamp / bucketSize <= current - 10) {
+                dropped += 2;
+            } else {
+                sums[timestamp / bucketSize] += value;
+                maxes[timestamp / bucketSize] = Math.max(maxes[timestamp / bucketSize], value);
+                total += value;
+            }
+
+            long sum = 0;
+            long max = 0;
+            for (int j = Math.max(0, current - 9); j <= current; j++) {
+                sum += sums[j];
+                max = Math.max(max, maxes[j]);
+                if (j == current - 3) {
+                    assertEquals(sum, counter.getRollingSum(EventType.SUCCESS) - counter.getRollingSum(EventType.SUCCESS, 3 * bucketSize));
+                }
+            }
+            assertEquals(sum, counter.getRollingSum(EventType.SUCCESS));
+            assertEquals(max, counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
+            assertEquals(sum(counter.getValues(EventType.SUCCESS)), counter.getRollingSum(EventType.SUCCESS));
+
+            if (r.nextInt(20) == 0) {
+                time.increment(r.nextInt(bucketSize * 3));
+                if (time.getCurrentTimeInMillis() / bucketSize >= sums.length) {
+                    break;
+                }
+            }
+        }
+        assertEquals(dropped, counter.getNumberOfDroppedEvents());
+        time.increment(1000);
+        counter.reset();
+        assertEquals(total, counter.getCumulativeSum(EventType.SUCCESS));
+    }
+
+    @Test
+    public void testReducers() {
+        NumerusBucketStorage[] storages = { NumerusBucketStorage.Factory.heap(), NumerusBucketStorage.Factory.heap(1), NumerusBucketStorage.Factory.sparse(),
+                NumerusBucketStorage.Factory.offHeap(2) };
+        for (NumerusBucketStorage storage : storages) {
+            MockedTime time = new MockedTime();
+            NumerusRollingNumber counter = new NumerusRollingNumber(GaugeType.REQUESTS, time, NumerusProperty.Factory.asProperty(200),
+                    NumerusProperty.Factory.asProperty(10), false, storage);
+            int bucketSize = counter.getBucketSizeInMilliseconds();
+            Random r = new Random(29);
+            // the values by epoch (time / bucketSize), some of them late
+            boolean[] has = new boolean[300];
+            long[] mins = new long[300];
+            long[] lasts = new long[300];
+            long[] flags = new long[300];
+            for (int i = 0; i < 1000; i++) {
+                int now = (int) time.getCurrentTimeInMillis();
+                int current = now / bucketSize;
+                long value = r.nextInt(1000) - 500;
+                long flag = 1L << r.nextInt(64);
+                if (r.nextInt(4) == 0) {
+                    // moves the window to the current time
+                    counter.getRollingValue(GaugeType.ACTIVE);
+                    int timestamp = Math.max(0, now - r.nextInt(bucketSize * 12));
+                    counter.updateRollingValue(GaugeType.MIN_LATENCY, value, timestamp);
+                    counter.updateRollingValue(GaugeType.ACTIVE, value, timestamp);
+                    counter.updateRollingValue(GaugeType.FLAGS, flag, timestamp);
+                    current = timestamp / bucketSize;
+                    if (current <= now / bucketSize - 10) {
+                        current = -1;
+                    }
+                } else {
+                    counter.updateRollingValue(GaugeType.MIN_LATENCY, value);
+                    counter.updateRollingValue(GaugeType.ACTIVE, value);
+                    counter.updateRollingValue(GaugeType.FLAGS, flag);
+                }
+                if (current >= 0) {
+                    mins[current] = has[current] ? Math.min(mins[current], value) : value;
+                    lasts[current] = value;
+                    flags[current] |= flag;
+                    has[current] = true;
+                }
+
+                current = now / bucketSize;
+                long min = 0;
+                long last = 0;
+                long or = 0;
+                boolean any = false;
+                for (int j = Math.max(0, current - 9); j <= current; j++) {
+                    if (has[j]) {
+                        min = any ? Math.min(min, mins[j]) : mins[j];
+                        last = lasts[j];
+                        or |= flags[j];
+                        any = true;
+                    }
+                    if (j == current - 3) {
+                        // the values of the 3 most recent buckets are combined without these
+                        min = 0;
+                        last = 0;
+                        or = 0;
+                        any = false;
+                    }
+                }
+                assertEquals(min, counter.getRollingValue(GaugeType.MIN_LATENCY, 3 * bucketSize));
+                assertEquals(last, counter.getRollingValue(GaugeType.ACTIVE, 3 * bucketSize));
+                assertEquals(or, counter.getRollingValue(GaugeType.FLAGS, 3 * bucketSize));
+                min = 0;
+                last = 0;
+                or = 0;
+                any = false;
+                for (int j = Math.max(0, current - 9); j <= current; j++) {
+                    if (has[j]) {
+                        min = any ? Math.min(min, mins[j]) : mins[j];
+                        last = lasts[j];
+                        or |= flags[j];
+                        any = true;
+                    }
+                }
+                assertEquals(min, counter.getRollingValue(GaugeType.MIN_LATENCY));
+                assertEquals(last, counter.getRollingValue(GaugeType.ACTIVE));
+                assertEquals(or, counter.getRollingValue(GaugeType.FLAGS));
+                assertEquals(lasts[current], counter.getValueOfLatestBucket(GaugeType.ACTIVE));
+
+                if (r.nextInt(10) == 0) {
+                    time.increment(r.nextInt(bucketSize * 3));
+                    if (time.getCurrentTimeInMillis() / bucketSize >= has.length) {
+                        break;
+                    }
+                }
+            }
+
+            long min = Long.MAX_VALUE;
+            long last = 0;
+            long or = 0;
+            for (int j = 0; j < has.length; j++) {
+                if (has[j]) {
+                    min = Math.min(min, mins[j]);
+                    last = lasts[j];
+                    or |= flags[j];
+                }
+            }
+            long[] rolling = new long[GaugeType.values().length];
+            long[] cumulative = new long[GaugeType.values().length];
+            counter.getSnapshot(rolling, cumulative);
+            assertEquals(counter.getRollingValue(GaugeType.ACTIVE), rolling[GaugeType.ACTIVE.ordinal()]);
+            assertEquals(counter.getRollingValue(GaugeType.MIN_LATENCY), rolling[GaugeType.MIN_LATENCY.ordinal()]);
+            assertEquals(min, cumulative[GaugeType.MIN_LATENCY.ordinal()]);
+            assertEquals(last, cumulative[GaugeType.ACTIVE.ordinal()]);
+            assertEquals(or, cumulative[GaugeType.FLAGS.ordinal()]);
+
+            // the cumulative values are kept once the window is empty
+            time.increment(1000);
+            counter.reset();
+            assertEquals(0, counter.getRollingValue(GaugeType.ACTIVE));
+            assertEquals(min, counter.getCumulativeSum(GaugeType.MIN_LATENCY));
+            assertEquals(last, counter.getCumulativeSum(GaugeType.ACTIVE));
+            assertEquals(or, counter.getCumulativeSum(GaugeType.FLAGS));
+        }
+    }
+
+    @Test
+    public void testDoubleReducers() {
+        NumerusBucketStorage[] storages = { NumerusBucketStorage.Factory.heap(), NumerusBucketStorage.Factory.sparse(),
+                NumerusBucketStorage.Factory.offHeap(2) };
+        for (NumerusBucketStorage storage : storages) {
+            MockedTime time = new MockedTime();
+            NumerusRollingNumber counter = new NumerusRollingNumber(GaugeType.REQUESTS, time, NumerusProperty.Factory.asProperty(200),
+                    NumerusProperty.Factory.asProperty(10), false, storage);
+            int bucketSize = counter.getBucketSizeInMilliseconds();
+            assertEquals(0.0, counter.getRollingDoubleValue(GaugeType.CPU_SECONDS), 0);
+            assertEquals(0.0, counter.getRollingDoubleValue(GaugeType.PEAK), 0);
+
+            // a window of negative values keeps their max
+            counter.updateRollingValue(GaugeType.PEAK, -2.5);
+            counter.updateRollingValue(GaugeType.PEAK, -0.5);
+            counter.updateRollingValue(GaugeType.PEAK, -1.5);
+            assertEquals(-0.5, counter.getRollingDoubleValue(GaugeType.PEAK), 0);
+            counter.updateRollingValue(GaugeType.CPU_SECONDS, 0.25);
+            counter.updateRollingValue(GaugeType.CPU_SECONDS, 1.5);
+            assertEquals(1.75, counter.getRollingDoubleValue(GaugeType.CPU_SECONDS), 0);
+            // read as a long rounded toward 0
+            assertEquals(1, counter.getRollingValue(GaugeType.CPU_SECONDS));
+            assertEquals(0, counter.getRollingValue(GaugeType.PEAK));
+
+            time.increment(bucketSize);
+            counter.updateRollingValue(GaugeType.PEAK, -1.0);
+            counter.updateRollingValue(GaugeType.CPU_SECONDS, 2L);
+            // late, into the first bucket
+            counter.updateRollingValue(GaugeType.CPU_SECONDS, 0.125, 0);
+            assertEquals(-0.5, counter.getRollingDoubleValue(GaugeType.PEAK), 0);
+            assertEquals(-1.0, counter.getRollingDoubleValue(GaugeType.PEAK, bucketSize), 0);
+            assertEquals(3.875, counter.getRollingDoubleValue(GaugeType.CPU_SECONDS), 0);
+            assertEquals(2.0, counter.getRollingDoubleValue(GaugeType.CPU_SECONDS, bucketSize), 0);
+
+            // the sums of fractions which aren't exact in binary stay close
+            double sum = 3.875;
+            for (int i = 0; i < 1000; i++) {
+                counter.updateRollingValue(GaugeType.CPU_SECONDS, 0.1);
+                sum += 0.1;
+                if (i % 200 == 0) {
+                    time.increment(bucketSize);
+                }
+            }
+            assertEquals(sum, counter.getRollingDoubleValue(GaugeType.CPU_SECONDS), 1e-9);
+            counter.updateRollingValue(GaugeType.PEAK, 1e300);
+
+            // the cumulative values are kept once the window is empty
+            time.increment(1000);
+            counter.reset();
+            assertEquals(0.0, counter.getRollingDoubleValue(GaugeType.CPU_SECONDS), 0);
+            assertEquals(sum, counter.getCumulativeDoubleValue(GaugeType.CPU_SECONDS), 1e-9);
+            assertEquals(1e300, counter.getCumulativeDoubleValue(GaugeType.PEAK), 0);
+            assertEquals(Long.MAX_VALUE, counter.getCumulativeSum(GaugeType.PEAK));
+        }
+    }
+
+    @Test
+    public void testDoubleMaxEncodingKeepsTheOrder() {
+        NumerusRollingNumberReducer reducer = NumerusRollingNumberReducer.DOUBLE_MAX;
+        double[] values = { Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1, -Double.MIN_VALUE, -0.0, 0.0, Double.MIN_VALUE, 1, Double.MAX_VALUE,
+                Double.POSITIVE_INFINITY };
+        for (int i = 0; i < values.length; i++) {
+            long encoded = reducer.encode(values[i]);
+            assertTrue(encoded != 0);
+            assertEquals(Double.doubleToLongBits(values[i]), Double.doubleToLongBits(reducer.decodeDouble(encoded)));
+            assertEquals(encoded, reducer.combine(0, encoded));
+            for (int j = 0; j < i; j++) {
+                assertEquals(encoded, reducer.combine(reducer.encode(values[j]), encoded));
+                assertEquals(encoded, reducer.combine(encoded, reducer.encode(values[j])));
+            }
+        }
+    }
+
+    @Test
+    public void testLoad() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        Random r = new Random(20);
+        int length = 5000;
+        long[] timestamps = new long[length];
+        int[] types = new int[length];
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) {
+            timestamps[i] = time.getCurrentTimeInMillis();
+            types[i] = r.nextBoolean() ? EventType.SUCCESS.ordinal() : EventType.THREAD_MAX_ACTIVE.ordinal();
+            values[i] = r.nextInt(100);
+            if (types[i] == EventType.SUCCESS.ordinal()) {
+                counter.add(EventType.SUCCESS, values[i]);
+            } else {
+                counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, values[i]);
+            }
+            time.increment(r.nextInt(3));
+        }
+
+        // loaded in two chunks into a new one, the second one with a gap at the start of the window and events in the future
+        NumerusRollingNumber loaded = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        loaded.load(timestamps, types, values, 0, length / 2);
+        timestamps[length - 1] = time.getCurrentTimeInMillis() + 20;
+        loaded.load(timestamps, types, values, length / 2, length / 2);
+        counter.add(EventType.SUCCESS, -values[length - 1]);
+
+        assertEquals(1, loaded.getNumberOfDroppedEvents());
+        assertArrayEquals(counter.getValues(EventType.SUCCESS), loaded.getValues(EventType.SUCCESS));
+        assertArrayEquals(counter.getValues(EventType.THREAD_MAX_ACTIVE), loaded.getValues(EventType.THREAD_MAX_ACTIVE));
+        assertEquals(counter.getRollingSum(EventType.SUCCESS), loaded.getRollingSum(EventType.SUCCESS));
+        assertEquals(counter.getRollingSum(EventType.SUCCESS, 50), loaded.getRollingSum(EventType.SUCCESS, 50));
+        assertEquals(counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE), loaded.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
+        assertEquals(counter.getCumulativeSum(EventType.SUCCESS), loaded.getCumulativeSum(EventType.SUCCESS));
+
+        // and moving on from there the same way
+        time.increment(counter.getBucketSizeInMilliseconds() * 3);
+        assertEquals(counter.getRollingSum(EventType.SUCCESS), loaded.getRollingSum(EventType.SUCCESS));
+        assertEquals(counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE), loaded.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
+
+        try {
+            loaded.load(new long[] { 2, 1 }, new int[] { EventType.SUCCESS.ordinal(), EventType.SUCCESS.ordinal() }, new long[] { 1, 1 }, 0, 2);
+            fail("events out of order");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLoadOfUnsortedEventsChangesNothing() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        counter.add(EventType.SUCCESS, 3);
+        counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, 4);
+        time.increment(50);
+        counter.add(EventType.SUCCESS, 5);
+        long[] expectedValues = counter.getValues(EventType.SUCCESS);
+
+        // the first events are in order, in a closed bucket, the current one and before the window, the last one is out of order
+        long[] timestamps = { -500, 10, 50, 30 };
+        int success = EventType.SUCCESS.ordinal();
+        int[] types = { success, EventType.THREAD_MAX_ACTIVE.ordinal(), success, success };
+        try {
+            counter.load(timestamps, types, new long[] { 1, 10, 1, 1 }, 0, timestamps.length);
+            fail("events out of order");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertArrayEquals(expectedValues, counter.getValues(EventType.SUCCESS));
+        assertEquals(8, counter.getRollingSum(EventType.SUCCESS));
+        assertEquals(8, counter.getCumulativeSum(EventType.SUCCESS));
+        assertEquals(4, counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
+        assertEquals(0, counter.getNumberOfDroppedEvents());
+    }
+
+    @Test
+    public void testLoadOfInvalidEventsChangesNothing() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        int bucketSize = counter.getBucketSizeInMilliseconds();
+        for (int i = 0; i < 5; i++) {
+            counter.add(EventType.SUCCESS, i + 1);
+            counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, 10 - i);
+            time.increment(bucketSize);
+        }
+
+        // valid events in the closed buckets first
+        long[] timestamps = { 0, bucketSize, 2 * bucketSize };
+        int success = EventType.SUCCESS.ordinal();
+        try {
+            counter.load(timestamps, new int[] { success, EventType.THREAD_MAX_ACTIVE.ordinal(), 99 }, new long[] { 100, 100, 100 }, 0, 3);
+            fail("unknown type");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            counter.load(timestamps, new int[] { success, success, success }, new long[] { 100, 100 }, 0, 3);
+            fail("fewer values than events");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        long[] values = counter.getValues(EventType.SUCCESS);
+        long[] maxes = counter.getValues(EventType.THREAD_MAX_ACTIVE);
+        assertEquals(15, counter.getRollingSum(EventType.SUCCESS));
+        assertEquals(10, counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
+        long sum = 0;
+        long max = 0;
+        for (int k = 1; k <= values.length; k++) {
+            sum += values[values.length - k];
+            max = Math.max(max, maxes[maxes.length - k]);
+            assertEquals(sum, counter.getRollingSum(EventType.SUCCESS, k * bucketSize));
+            assertEquals(max, counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE, k * bucketSize));
+        }
+        assertEquals(counter.getRollingSum(EventType.SUCCESS), counter.getRollingSum(EventType.SUCCESS, 200));
+    }
+
+    @Test
+    public void testResize() {
+        MockedTime time = new MockedTime();
+        final AtomicInteger window = new AtomicInteger(200);
+        final AtomicInteger buckets = new AtomicInteger(10);
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, new NumerusProperty<Integer>() {
+
+            @Override
+            public Integer get() {
+                return window.get();
+            }
+
+        }, new NumerusProperty<Integer>() {
+
+            @Override
+            public Integer get() {
+                return buckets.get();
+            }
+
+        });
+        // 1 in each 20ms bucket
+        for (int i = 0; i < 10; i++) {
+            counter.increment(EventType.SUCCESS);
+            counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, i);
+            time.increment(20);
+        }
+        time.increment(-20);
+        assertEquals(10, counter.getRollingSum(EventType.SUCCESS));
+
+        // 40ms buckets merge the 20ms ones
+        buckets.set(5);
+        assertEquals(10, counter.getRollingSum(EventType.SUCCESS));
+        assertEquals(9, counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
+        assertArrayEquals(new long[] { 2, 2, 2, 2, 2 }, counter.getValues(EventType.SUCCESS));
+
+        // 10ms buckets get each 40ms one in the first of them
+        buckets.set(20);
+        assertEquals(10, counter.getRollingSum(EventType.SUCCESS));
+        assertEquals(10, sum(counter.getValues(EventType.SUCCESS)));
+
+        // values that don't divide equally are ignored
+        buckets.set(7);
+        assertEquals(10, counter.getBucketSizeInMilliseconds());
+
+        // a shorter window of 5 buckets of 20ms from 100 to 180 (the 10ms buckets at 80, 120 and 160 hold 2 each)
+        window.set(100);
+        buckets.set(5);
+        assertEquals(4, counter.getRollingSum(EventType.SUCCESS));
+        // the rest was moved to the cumulative sum
+        assertEquals(10, counter.getCumulativeSum(EventType.SUCCESS));
+
+        // and it keeps rolling with the new size
+        time.increment(100);
+        counter.increment(EventType.SUCCESS);
+        assertEquals(1, counter.getRollingSum(EventType.SUCCESS));
+        assertEquals(11, counter.getCumulativeSum(EventType.SUCCESS));
+    }
+
+    @Test
+    public void testResizeOnPropertyChange() {
+        MockedTime time = new MockedTime();
+        NumerusProperty.IntValue buckets = new NumerusProperty.IntValue(10);
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, NumerusProperty.Factory.asProperty(200), buckets);
+        for (int i = 0; i < 10; i++) {
+            counter.increment(EventType.SUCCESS);
+            time.increment(20);
+        }
+        time.increment(-20);
+        assertEquals(20, counter.getBucketSizeInMilliseconds());
+
+        // picked up from the listener rather than by reading the properties on each use
+        buckets.set(5);
+        assertEquals(40, counter.getBucketSizeInMilliseconds());
+        assertEquals(10, counter.getRollingSum(EventType.SUCCESS));
+        assertArrayEquals(new long[] { 2, 2, 2, 2, 2 }, counter.getValues(EventType.SUCCESS));
+    }
+
+    @Test
+    public void testWritesOnlyReadPlainPropertiesAtBucketBoundaries() {
+        MockedTime time = new MockedTime();
+        final AtomicInteger reads = new AtomicInteger();
+        final AtomicInteger buckets = new AtomicInteger(10);
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, NumerusProperty.Factory.asProperty(Integer.valueOf(200)),
+                new NumerusProperty<Integer>() {
+
+                    @Override
+                    public Integer get() {
+                        reads.incrementAndGet();
+                        return buckets.get();
+                    }
+
+                });
+        counter.increment(EventType.SUCCESS);
+        reads.set(0);
+        for (int i = 0; i < 100; i++) {
+            counter.increment(EventType.SUCCESS);
+            counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, i);
+        }
+        assertEquals(0, reads.get());
+
+        // picked up by the first write in the next bucket
+        buckets.set(5);
+        time.increment(20);
+        counter.increment(EventType.SUCCESS);
+        assertTrue(reads.get() > 0);
+        assertEquals(40, counter.getBucketSizeInMilliseconds());
+        assertEquals(102, counter.getRollingSum(EventType.SUCCESS));
+    }
+
+    @Test
+    public void testResizeRacingWithWritesLosesNothing() throws InterruptedException {
+        MockedTime time = new MockedTime();
+        time.increment(190);
+        NumerusProperty.IntValue buckets = new NumerusProperty.IntValue(10);
+        final NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, NumerusProperty.Factory.asProperty(200), buckets);
+        final int threads = 4;
+        final int increments = 200000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < increments; i++) {
+                        counter.increment(EventType.SUCCESS);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        int[] sizes = { 5, 20, 10 };
+        for (int i = 0; done.getCount() > 0; i++) {
+            buckets.set(sizes[i % sizes.length]);
+            // the resize happens on the next use
+            counter.getRollingSum(EventType.SUCCESS);
+        }
+        done.await();
+        // what was swept into the cumulative sum by a resize is not in the rolling sum
+        assertEquals(threads * increments, counter.getCumulativeSum(EventType.SUCCESS));
+        assertTrue(counter.getRollingSum(EventType.SUCCESS) <= threads * increments);
+    }
+
+    @Test
+    public void testGetValuesIntoArray() {
+        MockedTime time = new MockedTime();
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        long[] values = new long[10];
+
+        // reading starts the window with one empty bucket
+        assertEquals(1, counter.getValues(EventType.SUCCESS, values));
+        assertEquals(0, values[0]);
+
+        counter.increment(EventType.SUCCESS);
+        time.increment(counter.getBucketSizeInMilliseconds() * 2);
+        counter.add(EventType.SUCCESS, 3);
+
+        assertEquals(3, counter.getValues(EventType.SUCCESS, values));
+        assertEquals(1, values[0]);
+        assertEquals(0, values[1]);
+        assertEquals(3, values[2]);
+
+        // a smaller array gets the most recent buckets
+        long[] latest = new long[2];
+        assertEquals(2, counter.getValues(EventType.SUCCESS, latest));
+        assertEquals(0, latest[0]);
+        assertEquals(3, latest[1]);
+    }
+
     @Test
     public void testIncrementInSingleBucket() {
         MockedTime time = new MockedTime();
@@ -118,9 +1003,9 @@ public class NumerusRollingNumberTest {
             assertEquals(1, counter.buckets.size());
 
             // the count should be 4
-            assertEquals(4, counter.buckets.getLast().getAdder(EventType.SUCCESS).sum());
-            assertEquals(2, counter.buckets.getLast().getAdder(EventType.FAILURE).sum());
-            assertEquals(1, counter.buckets.getLast().getAdder(EventType.TIMEOUT).sum());
+            assertEquals(4, counter.buckets.getLast().get(EventType.SUCCESS));
+            assertEquals(2, counter.buckets.getLast().get(EventType.FAILURE));
+            assertEquals(1, counter.buckets.getLast().get(EventType.TIMEOUT));
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -141,7 +1026,7 @@ public class NumerusRollingNumberTest {
             assertEquals(1, counter.buckets.size());
 
             // the count should be 1
-            assertEquals(1, counter.buckets.getLast().getAdder(EventType.TIMEOUT).sum());
+            assertEquals(1, counter.buckets.getLast().get(EventType.TIMEOUT));
             assertEquals(1, counter.getRollingSum(EventType.TIMEOUT));
 
             // sleep to get to a new bucket
@@ -154,7 +1039,7 @@ public class NumerusRollingNumberTest {
             assertEquals(4, counter.buckets.size());
 
             // the counts of the last bucket
-            assertEquals(1, counter.buckets.getLast().getAdder(EventType.TIMEOUT).sum());
+            assertEquals(1, counter.buckets.getLast().get(EventType.TIMEOUT));
 
             // the total counts
             assertEquals(2, counter.getRollingSum(EventType.TIMEOUT));
@@ -178,7 +1063,7 @@ public class NumerusRollingNumberTest {
             assertEquals(1, counter.buckets.size());
 
             // the count should be 1
-            assertEquals(1, counter.buckets.getLast().getAdder(EventType.SHORT_CIRCUITED).sum());
+            assertEquals(1, counter.buckets.getLast().get(EventType.SHORT_CIRCUITED));
             assertEquals(1, counter.getRollingSum(EventType.SHORT_CIRCUITED));
 
             // sleep to get to a new bucket
@@ -191,7 +1076,7 @@ public class NumerusRollingNumberTest {
             assertEquals(4, counter.buckets.size());
 
             // the counts of the last bucket
-            assertEquals(1, counter.buckets.getLast().getAdder(EventType.SHORT_CIRCUITED).sum());
+            assertEquals(1, counter.buckets.getLast().get(EventType.SHORT_CIRCUITED));
 
             // the total counts
             assertEquals(2, counter.getRollingSum(EventType.SHORT_CIRCUITED));
@@ -234,7 +1119,7 @@ public class NumerusRollingNumberTest {
             assertEquals(1, counter.buckets.size());
 
             // the count should be 1
-            assertEquals(1, counter.buckets.getLast().getAdder(type).sum());
+            assertEquals(1, counter.buckets.getLast().get(type));
             assertEquals(1, counter.getRollingSum(type));
 
             // sleep to get to a new bucket
@@ -247,7 +1132,7 @@ public class NumerusRollingNumberTest {
             assertEquals(4, counter.buckets.size());
 
             // the counts of the last bucket
-            assertEquals(1, counter.buckets.getLast().getAdder(type).sum());
+            assertEquals(1, counter.buckets.getLast().get(type));
 
             // the total counts
             assertEquals(2, counter.getRollingSum(type));
@@ -291,10 +1176,10 @@ public class NumerusRollingNumberTest {
             assertEquals(4, counter.buckets.size());
 
             // the counts of the last bucket
-            assertEquals(2, counter.buckets.getLast().getAdder(EventType.SUCCESS).sum());
-            assertEquals(3, counter.buckets.getLast().getAdder(EventType.FAILURE).sum());
-            assertEquals(1, counter.buckets.getLast().getAdder(EventType.TIMEOUT).sum());
-            assertEquals(1, counter.buckets.getLast().getAdder(EventType.SHORT_CIRCUITED).sum());
+            assertEquals(2, counter.buckets.getLast().get(EventType.SUCCESS));
+            assertEquals(3, counter.buckets.getLast().get(EventType.FAILURE));
+            assertEquals(1, counter.buckets.getLast().get(EventType.TIMEOUT));
+            assertEquals(1, counter.buckets.getLast().get(EventType.SHORT_CIRCUITED));
 
             // the total counts
             assertEquals(6, counter.getRollingSum(EventType.SUCCESS));
@@ -379,7 +1264,7 @@ public class NumerusRollingNumberTest {
             assertEquals(1, counter.buckets.size());
 
             // the count should be 10
-            assertEquals(10, counter.buckets.getLast().getMaxUpdater(EventType.THREAD_MAX_ACTIVE).max());
+            assertEquals(10, counter.buckets.getLast().get(EventType.THREAD_MAX_ACTIVE));
             assertEquals(10, counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
 
             // sleep to get to a new bucket
@@ -392,7 +1277,7 @@ public class NumerusRollingNumberTest {
             assertEquals(4, counter.buckets.size());
 
             // the max
-            assertEquals(20, counter.buckets.getLast().getMaxUpdater(EventType.THREAD_MAX_ACTIVE).max());
+            assertEquals(20, counter.buckets.getLast().get(EventType.THREAD_MAX_ACTIVE));
 
             // counts per bucket
             long values[] = counter.getValues(EventType.THREAD_MAX_ACTIVE);
@@ -422,7 +1307,7 @@ public class NumerusRollingNumberTest {
             assertEquals(1, counter.buckets.size());
 
             // the count should be 30
-            assertEquals(30, counter.buckets.getLast().getMaxUpdater(EventType.THREAD_MAX_ACTIVE).max());
+            assertEquals(30, counter.buckets.getLast().get(EventType.THREAD_MAX_ACTIVE));
             assertEquals(30, counter.getRollingMaxValue(EventType.THREAD_MAX_ACTIVE));
 
             // sleep to get to a new bucket
@@ -436,7 +1321,7 @@ public class NumerusRollingNumberTest {
             assertEquals(4, counter.buckets.size());
 
             // the count
-            assertEquals(50, counter.buckets.getLast().getMaxUpdater(EventType.THREAD_MAX_ACTIVE).max());
+            assertEquals(50, counter.buckets.getLast().get(EventType.THREAD_MAX_ACTIVE));
             assertEquals(50, counter.getValueOfLatestBucket(EventType.THREAD_MAX_ACTIVE));
 
             // values per bucket
@@ -485,6 +1370,30 @@ public class NumerusRollingNumberTest {
         }
     }
 
+    @Test
+    public void testMaxRollsOutOfTheWindowAndBack() {
+        MockedTime time = new MockedTime();
+        EventType type = EventType.THREAD_MAX_ACTIVE;
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        counter.updateRollingMax(type, 50);
+        for (int i = 0; i < 9; i++) {
+            time.increment(counter.getBucketSizeInMilliseconds());
+            assertEquals(50, counter.getRollingMaxValue(type));
+        }
+        // one bucket at a time so the window is moved forward rather than started over
+        time.increment(counter.getBucketSizeInMilliseconds());
+        assertEquals(0, counter.getRollingMaxValue(type));
+        time.increment(counter.getBucketSizeInMilliseconds());
+        assertEquals(0, counter.getRollingMaxValue(type));
+
+        counter.updateRollingMax(type, 20);
+        time.increment(counter.getBucketSizeInMilliseconds());
+        counter.updateRollingMax(type, 10);
+        time.increment(counter.getBucketSizeInMilliseconds());
+        assertEquals(20, counter.getRollingMaxValue(type));
+        assertEquals(50, counter.getCumulativeSum(type));
+    }
+
     @Test
     public void testEmptySum() {
         MockedTime time = new MockedTime();
@@ -660,7 +1569,7 @@ public class NumerusRollingNumberTest {
         assertEquals(5, counter.getCumulativeSum(type));
     }
 
-    private static class MockedTime implements Time {
+    private static class MockedTime implements NumerusClock {
 
         private AtomicInteger time = new AtomicInteger(0);
 
@@ -675,6 +1584,35 @@ public class NumerusRollingNumberTest {
 
     }
 
+    public enum GaugeType implements NumerusRollingNumberReducerEvent {
+        REQUESTS(null), MIN_LATENCY(NumerusRollingNumberReducer.MIN), ACTIVE(NumerusRollingNumberReducer.LAST_VALUE),
+        FLAGS(NumerusRollingNumberReducer.BITWISE_OR), CPU_SECONDS(NumerusRollingNumberReducer.DOUBLE_SUM), PEAK(NumerusRollingNumberReducer.DOUBLE_MAX);
+
+        private final NumerusRollingNumberReducer reducer;
+
+        GaugeType(NumerusRollingNumberReducer reducer) {
+            this.reducer = reducer;
+        }
+
+        public boolean isCounter() {
+            return reducer == null;
+        }
+
+        public boolean isMaxUpdater() {
+            return false;
+        }
+
+        public NumerusRollingNumberReducer getReducer() {
+            return reducer;
+        }
+
+        @Override
+        public GaugeType[] getValues() {
+            return values();
+        }
+
+    }
+
     public enum EventType implements NumerusRollingNumberEvent {
         BOOTSTRAP(1), SUCCESS(1), FAILURE(1), TIMEOUT(1), SHORT_CIRCUITED(1), THREAD_POOL_REJECTED(1), SEMAPHORE_REJECTED(1),
         FALLBACK_SUCCESS(1), FALLBACK_FAILURE(1), FALLBACK_REJECTION(1), EXCEPTION_THROWN(1),
@@ -8,7 +8,6 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.netflix.numerus.NumerusRollingPercentile.PercentileSnapshot;
-import com.netflix.numerus.NumerusRollingPercentile.Time;
 
 public class NumerusRollingPercentileTest {
 
@@ -80,6 +79,135 @@ public class NumerusRollingPercentileTest {
         assertEquals(991, ps.getMean());
     }
 
+    @Test
+    public void testBucketsOfTimeWithoutTrafficAreSkipped() {
+        MockedTime time = new MockedTime();
+        NumerusRollingPercentile p = new NumerusRollingPercentile(time, timeInMilliseconds, numberOfBuckets, bucketDataLength, enabled);
+        p.addValue(1000);
+
+        // 3 buckets of time later only 1 new bucket is created
+        time.increment(15000);
+        assertEquals(1000, p.getPercentile(50));
+        assertEquals(2, p.buckets.size());
+        p.addValue(2000);
+
+        // the first bucket is still in the window ending where the new bucket starts
+        time.increment(45000);
+        assertEquals(1500, p.getMean());
+        // having dropped it from the buckets in the window starting with the new bucket
+        assertEquals(2, p.buckets.size());
+
+        // but not after one more bucket of time
+        time.increment(5000);
+        assertEquals(2000, p.getMean());
+        assertEquals(3, p.buckets.size());
+    }
+
+    @Test
+    public void testAddValueAt() {
+        MockedTime time = new MockedTime();
+        NumerusRollingPercentile p = new NumerusRollingPercentile(time, timeInMilliseconds, numberOfBuckets, bucketDataLength, enabled);
+        p.addValue(1000);
+        time.increment(20000);
+        p.addValue(4000);
+
+        // into the current bucket, the first one and a bucket of time in between that had no values
+        p.addValueAt(4000, 20000);
+        p.addValueAt(1000, 3000);
+        p.addValueAt(2000, 12000);
+        assertEquals(3, p.buckets.size());
+        // before the window and in the future (after the current bucket)
+        p.addValueAt(3000, -45000);
+        p.addValueAt(3000, 25000);
+        assertEquals(2, p.getNumberOfDroppedValues());
+
+        // in the snapshot once the current bucket closes
+        time.increment(5000);
+        assertEquals(2400, p.getMean());
+        assertEquals(4, p.buckets.size());
+    }
+
+    @Test
+    public void testLoad() {
+        MockedTime time = new MockedTime();
+        NumerusRollingPercentile p = new NumerusRollingPercentile(time, timeInMilliseconds, numberOfBuckets, bucketDataLength, enabled);
+        p.addValue(1000);
+        time.increment(70000);
+
+        // the first one is out of the window, the last one is in the future
+        long[] timestamps = { 5000, 15000, 16000, 20000, 69999, 70000, 75000 };
+        int[] values = { 9000, 1000, 2000, 3000, 4000, 5000, 9000 };
+        p.load(timestamps, values, 0, timestamps.length);
+        assertEquals(2, p.getNumberOfDroppedValues());
+        // the closed buckets are in the snapshot straight away
+        assertEquals(2500, p.getMean());
+        // [15000, 20000), [20000, 25000), [65000, 70000) and the current one
+        assertEquals(4, p.buckets.size());
+
+        time.increment(5000);
+        assertEquals(3000, p.getMean());
+    }
+
+    @Test
+    public void testLoadOfUnsortedValuesChangesNothing() {
+        MockedTime time = new MockedTime();
+        NumerusRollingPercentile p = new NumerusRollingPercentile(time, timeInMilliseconds, numberOfBuckets, bucketDataLength, enabled);
+        p.addValue(1000);
+        time.increment(10000);
+        p.addValue(2000);
+        assertEquals(1000, p.getMean());
+
+        // the first values are in order, in the closed bucket, a new bucket of time and in the future, the last one is out of order
+        long[] timestamps = { 1000, 5000, 20000, 4000 };
+        int[] values = { 9000, 9000, 9000, 9000 };
+        try {
+            p.load(timestamps, values, 0, timestamps.length);
+            fail("values out of order");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1000, p.getMean());
+        assertEquals(2, p.buckets.size());
+        assertEquals(0, p.getNumberOfDroppedValues());
+
+        time.increment(5000);
+        assertEquals(1500, p.getMean());
+    }
+
+    @Test
+    public void testResizeMergesBuckets() {
+        MockedTime time = new MockedTime();
+        final AtomicInteger buckets = new AtomicInteger(12);
+        NumerusProperty<Integer> numberOfBuckets = new NumerusProperty<Integer>() {
+
+            @Override
+            public Integer get() {
+                return buckets.get();
+            }
+
+        };
+        NumerusRollingPercentile p = new NumerusRollingPercentile(time, timeInMilliseconds, numberOfBuckets, bucketDataLength, enabled);
+        for (int i = 1; i <= 4; i++) {
+            p.addValue(i * 1000);
+            time.increment(5000);
+        }
+        time.increment(-5000);
+        assertEquals(4, p.buckets.size());
+
+        // 10000ms buckets counting back from the current one at 15000: [-5000, 5000), [5000, 15000) and [15000, 25000)
+        buckets.set(6);
+        // a write within the current bucket doesn't read the properties, the next read does
+        p.addValue(5000);
+        assertEquals(4, p.buckets.size());
+        p.getMean();
+        assertEquals(3, p.buckets.size());
+
+        // the current bucket was kept as it is
+        time.increment(10000);
+        assertEquals(3000, p.getMean());
+        assertEquals(4, p.buckets.size());
+    }
+
     @Test
     public void testValueIsZeroAfterRollingWindowPassesAndNoTraffic() {
         MockedTime time = new MockedTime();
@@ -312,7 +440,7 @@ public class NumerusRollingPercentileTest {
         assertEquals(-1, p.getMean());
     }
 
-    private static class MockedTime implements Time {
+    private static class MockedTime implements NumerusClock {
 
         private AtomicInteger time = new AtomicInteger(0);
 
@@ -0,0 +1,101 @@
+package com.netflix.numerus;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.netflix.numerus.NumerusRollingNumberTest.EventType;
+
+public class NumerusRotationSchedulerTest {
+
+    @Test
+    public void testRollingNumberIsRotatedAtBoundaries() {
+        MockedTime time = new MockedTime();
+        NumerusRotationScheduler scheduler = new NumerusRotationScheduler(time, 5, 16, false);
+        // 20ms buckets
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        counter.increment(EventType.SUCCESS);
+        scheduler.register(counter);
+        scheduler.runOnce(time.get());
+
+        // not before the boundary
+        time.increment(15);
+        scheduler.runOnce(time.get());
+        assertEquals(0, counter.buckets.getCurrentEpoch());
+
+        time.increment(5);
+        scheduler.runOnce(time.get());
+        assertEquals(1, counter.buckets.getCurrentEpoch());
+        assertEquals(1, counter.getRollingSum(EventType.SUCCESS));
+
+        // read since the last rotation so rotated again
+        time.increment(20);
+        scheduler.runOnce(time.get());
+        assertEquals(2, counter.buckets.getCurrentEpoch());
+
+        // not used since so skipped
+        time.increment(20);
+        scheduler.runOnce(time.get());
+        assertEquals(2, counter.buckets.getCurrentEpoch());
+
+        // and it catches up itself when used
+        counter.increment(EventType.SUCCESS);
+        assertEquals(3, counter.buckets.getCurrentEpoch());
+    }
+
+    @Test
+    public void testSchedulerFallingBehindVisitsEachSlotOnce() {
+        MockedTime time = new MockedTime();
+        NumerusRotationScheduler scheduler = new NumerusRotationScheduler(time, 5, 16, false);
+        NumerusRollingNumber counter = new NumerusRollingNumber(EventType.BOOTSTRAP, time, 200, 10);
+        counter.increment(EventType.SUCCESS);
+        scheduler.register(counter);
+        scheduler.runOnce(time.get());
+
+        // more than a turn of the wheel later
+        time.increment(1000);
+        scheduler.runOnce(time.get());
+        assertEquals(50, counter.buckets.getCurrentEpoch());
+    }
+
+    @Test
+    public void testRollingPercentileIsRotatedAtBoundaries() {
+        MockedTime time = new MockedTime();
+        NumerusRotationScheduler scheduler = new NumerusRotationScheduler(time, 100, 64, false);
+        // 5000ms buckets
+        NumerusRollingPercentile p = new NumerusRollingPercentile(time, NumerusProperty.Factory.asProperty(60000), NumerusProperty.Factory.asProperty(12),
+                NumerusProperty.Factory.asProperty(1000), NumerusProperty.Factory.asProperty(true));
+        p.addValue(1000);
+        scheduler.register(p);
+        scheduler.runOnce(time.get());
+        assertEquals(1, p.buckets.size());
+
+        time.increment(5000);
+        scheduler.runOnce(time.get());
+        // the new bucket and snapshot were created by the scheduler
+        assertEquals(2, p.buckets.size());
+        assertEquals(1000, p.currentPercentileSnapshot.getMean());
+    }
+
+    private static class MockedTime implements NumerusClock {
+
+        private AtomicInteger time = new AtomicInteger(0);
+
+        @Override
+        public long getCurrentTimeInMillis() {
+            return time.get();
+        }
+
+        public int get() {
+            return time.get();
+        }
+
+        public void increment(int millis) {
+            time.addAndGet(millis);
+        }
+
+    }
+
+}
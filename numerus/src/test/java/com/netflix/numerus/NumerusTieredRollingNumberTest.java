@@ -0,0 +1,101 @@
+package com.netflix.numerus;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.netflix.numerus.NumerusRollingNumberTest.EventType;
+import com.netflix.numerus.NumerusRollingNumberTest.GaugeType;
+
+public class NumerusTieredRollingNumberTest {
+
+    @Test
+    public void testRollUp() {
+        MockedTime time = new MockedTime();
+        // windows of 100ms, 1s and 10s with 10 buckets each
+        NumerusTieredRollingNumber counter = new NumerusTieredRollingNumber(new NumerusRollingNumber(EventType.BOOTSTRAP, time, 100, 10),
+                new NumerusRollingNumber(EventType.BOOTSTRAP, time, 1000, 10), new NumerusRollingNumber(EventType.BOOTSTRAP, time, 10000, 10));
+        assertEquals(3, counter.getNumberOfTiers());
+
+        // 1 every 10ms for 3 seconds
+        for (int i = 0; i < 300; i++) {
+            counter.increment(EventType.SUCCESS);
+            counter.updateRollingMax(EventType.THREAD_MAX_ACTIVE, i);
+            if (i < 299) {
+                time.increment(10);
+            }
+        }
+
+        assertEquals(10, counter.getRollingSum(0, EventType.SUCCESS));
+        assertEquals(100, counter.getRollingSum(1, EventType.SUCCESS));
+        assertEquals(300, counter.getRollingSum(2, EventType.SUCCESS));
+        assertEquals(300, counter.getCumulativeSum(EventType.SUCCESS));
+        assertEquals(299, counter.getRollingMaxValue(2, EventType.THREAD_MAX_ACTIVE));
+
+        // 5 seconds later only the coarsest window still has the values
+        time.increment(5000);
+        assertEquals(0, counter.getRollingSum(0, EventType.SUCCESS));
+        assertEquals(0, counter.getRollingSum(1, EventType.SUCCESS));
+        assertEquals(300, counter.getRollingSum(2, EventType.SUCCESS));
+
+        // and the first second rolls out of it
+        time.increment(3000);
+        assertEquals(200, counter.getRollingSum(2, EventType.SUCCESS));
+    }
+
+    @Test
+    public void testReducers() {
+        MockedTime time = new MockedTime();
+        NumerusTieredRollingNumber counter = new NumerusTieredRollingNumber(new NumerusRollingNumber(GaugeType.REQUESTS, time, 100, 10),
+                new NumerusRollingNumber(GaugeType.REQUESTS, time, 1000, 10));
+
+        // 1 every 10ms for 2 seconds, counting down
+        for (int i = 0; i < 200; i++) {
+            counter.updateRollingValue(GaugeType.MIN_LATENCY, 1000 - i);
+            counter.updateRollingValue(GaugeType.ACTIVE, i);
+            counter.updateRollingValue(GaugeType.FLAGS, 1L << (i / 10));
+            if (i < 199) {
+                time.increment(10);
+            }
+        }
+
+        assertEquals(801, counter.getRollingValue(0, GaugeType.MIN_LATENCY));
+        assertEquals(801, counter.getRollingValue(1, GaugeType.MIN_LATENCY));
+        // the latest value comes from the finest tier whichever tier is asked for
+        assertEquals(199, counter.getRollingValue(0, GaugeType.ACTIVE));
+        assertEquals(199, counter.getRollingValue(1, GaugeType.ACTIVE));
+        assertEquals(1L << 19, counter.getRollingValue(0, GaugeType.FLAGS));
+        // the last second
+        assertEquals(((1L << 20) - 1) & ~((1L << 10) - 1), counter.getRollingValue(1, GaugeType.FLAGS));
+
+        // only the coarser window still has the values
+        time.increment(500);
+        assertEquals(0, counter.getRollingValue(0, GaugeType.ACTIVE));
+        assertEquals(199, counter.getRollingValue(1, GaugeType.ACTIVE));
+        assertEquals(801, counter.getRollingValue(1, GaugeType.MIN_LATENCY));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBucketsMustBeMultiples() {
+        MockedTime time = new MockedTime();
+        new NumerusTieredRollingNumber(new NumerusRollingNumber(EventType.BOOTSTRAP, time, 300, 10), new NumerusRollingNumber(EventType.BOOTSTRAP, time, 1000, 10));
+    }
+
+    private static class MockedTime implements NumerusClock {
+
+        private AtomicInteger time = new AtomicInteger(0);
+
+        @Override
+        public long getCurrentTimeInMillis() {
+            return time.get();
+        }
+
+        public void increment(int millis) {
+            time.addAndGet(millis);
+        }
+
+    }
+
+}
@@ -0,0 +1,86 @@
+package com.netflix.numerus;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class OffHeapStripedLongArrayTest {
+
+    @Test
+    public void testSumAndMax() {
+        OffHeapStripedLongArray a = OffHeapStripedLongArray.allocate(1, 3, 1)[0];
+        a.add(0, 5);
+        a.add(0, -2);
+        a.updateMax(1, 7);
+        a.updateMax(1, 3);
+        a.updateMax(2, -10);
+
+        assertEquals(3, a.sum(0));
+        assertEquals(7, a.max(1));
+        // 0 is the floor of a max
+        assertEquals(0, a.max(2));
+
+        assertEquals(3, a.sumThenReset(0));
+        assertEquals(7, a.maxThenReset(1));
+        assertEquals(0, a.sum(0));
+        assertEquals(0, a.max(1));
+    }
+
+    @Test
+    public void testBucketsDoNotOverlap() {
+        OffHeapStripedLongArray[] buckets = OffHeapStripedLongArray.allocate(4, 9, 2);
+        for (int b = 0; b < buckets.length; b++) {
+            for (int i = 0; i < 9; i++) {
+                buckets[b].add(i, b * 100 + i);
+            }
+        }
+        for (int b = 0; b < buckets.length; b++) {
+            for (int i = 0; i < 9; i++) {
+                assertEquals(b * 100 + i, buckets[b].sum(i));
+            }
+        }
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void testIndexOutOfBounds() {
+        OffHeapStripedLongArray.allocate(1, 3, 1)[0].add(3, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStripesMustBePowerOf2() {
+        OffHeapStripedLongArray.allocate(1, 3, 3);
+    }
+
+    @Test
+    public void testConcurrentAddsAreNotLostByReset() throws InterruptedException {
+        final OffHeapStripedLongArray a = OffHeapStripedLongArray.allocate(1, 1, 4)[0];
+        final AtomicLong taken = new AtomicLong();
+        final int threads = 4;
+        final int adds = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < adds; i++) {
+                        a.add(0, 1);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        while (done.getCount() > 0) {
+            taken.addAndGet(a.sumThenReset(0));
+        }
+        done.await();
+        taken.addAndGet(a.sumThenReset(0));
+
+        assertEquals(threads * adds, taken.get());
+    }
+
+}
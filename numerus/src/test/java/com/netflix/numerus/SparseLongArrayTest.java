@@ -0,0 +1,140 @@
+package com.netflix.numerus;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class SparseLongArrayTest {
+
+    @Test
+    public void testSumAndMax() {
+        SparseLongArray a = new SparseLongArray(3);
+        a.add(0, 5);
+        a.add(0, -2);
+        a.updateMax(1, 7);
+        a.updateMax(1, 3);
+
+        assertEquals(3, a.sum(0));
+        assertEquals(7, a.max(1));
+        // never written to
+        assertEquals(0, a.max(2));
+        assertEquals(0, a.sumThenReset(2));
+
+        assertEquals(3, a.sumThenReset(0));
+        assertEquals(7, a.maxThenReset(1));
+        assertEquals(0, a.sum(0));
+        assertEquals(0, a.max(1));
+    }
+
+    @Test
+    public void testMaxIsTheSameAsOnTheHeap() {
+        BucketValues[] storage = { new StripedLongArray(3), new SparseLongArray(3) };
+        for (BucketValues a : storage) {
+            a.updateMax(0, -5);
+            a.updateMax(1, 0);
+            a.updateMax(2, -1);
+            a.updateMax(2, 3);
+
+            assertEquals(0, a.max(0));
+            assertEquals(0, a.max(1));
+            assertEquals(3, a.max(2));
+            assertEquals(0, a.maxThenReset(0));
+            assertEquals(3, a.maxThenReset(2));
+            // and once reset
+            a.updateMax(0, -5);
+            a.updateMax(2, -1);
+            assertEquals(0, a.max(0));
+            assertEquals(0, a.max(2));
+        }
+    }
+
+    @Test
+    public void testNextSkipsValuesNeverWrittenTo() {
+        SparseLongArray a = new SparseLongArray(1000);
+        assertEquals(1000, a.next(0));
+
+        a.add(3, 1);
+        a.add(64, 1);
+        a.updateMax(999, 1);
+        assertEquals(3, a.next(0));
+        assertEquals(3, a.next(3));
+        assertEquals(64, a.next(4));
+        assertEquals(999, a.next(65));
+        assertEquals(1000, a.next(1000));
+
+        // reset values stay allocated
+        a.sumThenReset(3);
+        assertEquals(3, a.next(0));
+    }
+
+    @Test
+    public void testValuesAllocatedConcurrentlyAreReportedByNext() throws InterruptedException {
+        final SparseLongArray a = new SparseLongArray(256);
+        final int threads = 4;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // every thread races to allocate the same values
+                    for (int i = 0; i < 256; i += 3) {
+                        a.add(i, 1);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        long sum = 0;
+        int count = 0;
+        for (int i = a.next(0); i < 256; i = a.next(i + 1)) {
+            assertEquals(0, i % 3);
+            sum += a.sumThenReset(i);
+            count++;
+        }
+        assertEquals(86, count);
+        assertEquals(86 * threads, sum);
+    }
+
+    @Test
+    public void testConcurrentAddsAreNotLostByReset() throws InterruptedException {
+        final SparseLongArray a = new SparseLongArray(1);
+        final AtomicLong taken = new AtomicLong();
+        final int threads = 4;
+        final int adds = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < adds; i++) {
+                        a.add(0, 1);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        while (done.getCount() > 0) {
+            taken.addAndGet(a.sumThenReset(0));
+        }
+        done.await();
+        taken.addAndGet(a.sumThenReset(0));
+
+        assertEquals(threads * adds, taken.get());
+    }
+
+}
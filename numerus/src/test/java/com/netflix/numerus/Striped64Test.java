@@ -0,0 +1,229 @@
+package com.netflix.numerus;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class Striped64Test {
+
+    @Test
+    public void testProbeIsKeptUntilAdvanced() {
+        int h = Striped64.getProbe();
+        assertTrue(h != 0);
+        assertEquals(h, Striped64.getProbe());
+
+        int advanced = Striped64.advanceProbe(h);
+        assertTrue(advanced != h);
+        assertEquals(advanced, Striped64.getProbe());
+    }
+
+    @Test
+    public void testDecayFoldsTheCellsIntoBase() {
+        LongAdder adder = new LongAdder(4);
+        adder.add(1);
+        Striped64.Cell retired = new Striped64.Cell(2);
+        adder.cells = new Striped64.Cell[] { retired, new Striped64.Cell(3) };
+        assertEquals(6, adder.sum());
+
+        // contended since the last decay
+        adder.contended = true;
+        assertFalse(adder.decay());
+        assertTrue(adder.decay());
+        assertNull(adder.cells);
+        assertTrue(retired.retired);
+        assertEquals(6, adder.sum());
+
+        LongMaxUpdater max = new LongMaxUpdater(4);
+        max.update(1);
+        max.cells = new Striped64.Cell[] { new Striped64.Cell(5), null };
+        assertTrue(max.decay());
+        assertEquals(5, max.max());
+        assertNull(max.cells);
+    }
+
+    @Test
+    public void testNoCellsWithMaxCellsOfOne() {
+        LongAdder adder = new LongAdder(1);
+        // as if the CAS on base had failed
+        adder.retryUpdate(1, Striped64.getProbe(), false);
+        assertNull(adder.cells);
+        assertEquals(1, adder.sum());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxCellsMustBePositive() {
+        new LongAdder(0);
+    }
+
+    @Test
+    public void testLongAccumulator() throws InterruptedException {
+        final LongAccumulator min = new LongAccumulator(new LongBinaryOperator() {
+
+            @Override
+            public long applyAsLong(long left, long right) {
+                return Math.min(left, right);
+            }
+
+        }, Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, min.get());
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int value = t;
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 1000; i >= 0; i--) {
+                        min.accumulate(value * 1000 + i);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        done.await();
+        assertEquals(0, min.get());
+        assertEquals(0, min.getThenReset());
+        assertEquals(Long.MAX_VALUE, min.get());
+    }
+
+    @Test
+    public void testDoubleAdderAndMaxUpdater() throws InterruptedException {
+        final DoubleAdder adder = new DoubleAdder();
+        final DoubleMaxUpdater max = new DoubleMaxUpdater();
+        assertEquals(Double.NEGATIVE_INFINITY, max.max(), 0);
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int value = t;
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        adder.add(0.5);
+                        max.update(value - 10.5);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        done.await();
+        // halves are exact whatever the order
+        assertEquals(threads * 500.0, adder.sum(), 0);
+        assertEquals(threads * 500.0, adder.compensatedSum(), 0);
+        assertEquals(-3.5, max.max(), 0);
+        assertEquals(threads * 500.0, adder.sumThenReset(), 0);
+        assertEquals(0.0, adder.sum(), 0);
+        assertEquals(-3.5, max.maxThenReset(), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, max.max(), 0);
+    }
+
+    @Test
+    public void testDoubleDecayFoldsTheCellsIntoBase() throws InterruptedException {
+        final DoubleAdder adder = new DoubleAdder();
+        final DoubleMaxUpdater max = new DoubleMaxUpdater();
+        final int threads = 8;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int value = t;
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        adder.add(0.25);
+                        max.update(-value);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        done.await();
+        adder.decay();
+        max.decay();
+        adder.decay();
+        max.decay();
+        assertEquals(threads * 250.0, adder.sum(), 0);
+        assertEquals(0.0, max.max(), 0);
+    }
+
+    @Test
+    public void testShortLivedThreadsLoseNothing() throws InterruptedException {
+        final LongAdder adder = new LongAdder();
+        final LongMaxUpdater max = new LongMaxUpdater();
+        final int threads = 1000;
+        final int adds = 1000;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int value = t;
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < adds; i++) {
+                        adder.increment();
+                        max.update(value);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(threads * adds, adder.sum());
+        assertEquals(threads - 1, max.max());
+    }
+
+    @Test
+    public void testDecayRacingWithUpdatesLosesNothing() throws InterruptedException {
+        final LongAdder adder = new LongAdder();
+        final LongMaxUpdater max = new LongMaxUpdater();
+        final DoubleAdder doubleAdder = new DoubleAdder();
+        final int threads = 8;
+        final int adds = 200000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int value = t;
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < adds; i++) {
+                        adder.increment();
+                        max.update(i * threads + value);
+                        doubleAdder.add(0.5);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        // the cells are dropped and folded into base over and over while they are being updated
+        while (done.getCount() > 0) {
+            adder.decay();
+            max.decay();
+            doubleAdder.decay();
+        }
+        done.await();
+
+        assertEquals(threads * adds, adder.sum());
+        assertEquals(threads * adds - 1, max.max());
+        // halves are exact whatever the order
+        assertEquals(threads * adds / 2.0, doubleAdder.sum(), 0);
+    }
+
+}
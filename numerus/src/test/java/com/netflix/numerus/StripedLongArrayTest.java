@@ -0,0 +1,154 @@
+package com.netflix.numerus;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class StripedLongArrayTest {
+
+    @Test
+    public void testSumAndMax() {
+        StripedLongArray a = new StripedLongArray(3);
+        a.add(0, 5);
+        a.add(0, -2);
+        a.updateMax(1, 7);
+        a.updateMax(1, 3);
+        a.updateMax(2, -10);
+
+        assertEquals(3, a.sum(0));
+        assertEquals(7, a.max(1));
+        // 0 is the floor of a max
+        assertEquals(0, a.max(2));
+
+        assertEquals(3, a.sumThenReset(0));
+        assertEquals(7, a.maxThenReset(1));
+        assertEquals(0, a.sum(0));
+        assertEquals(0, a.max(1));
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void testIndexOutOfBounds() {
+        new StripedLongArray(3).add(3, 1);
+    }
+
+    @Test
+    public void testValuesAreSummedOverAllRows() {
+        final StripedLongArray a = new StripedLongArray(2);
+        // as if the table had expanded under contention, the other rows get created as threads hash to them
+        long[][] rows = new long[4][];
+        rows[0] = a.rows[0];
+        a.rows = rows;
+
+        final int threads = 8;
+        for (int t = 0; t < threads; t++) {
+            // a new thread gets a new random hash code so these should be spread out over the rows
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    a.add(0, 1);
+                    a.updateMax(1, 42);
+                }
+
+            });
+            thread.start();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        assertEquals(threads, a.sum(0));
+        assertEquals(42, a.max(1));
+        assertEquals(threads, a.sumThenReset(0));
+        assertEquals(0, a.sum(0));
+    }
+
+    @Test
+    public void testDecayCollapsesToTheFirstRow() {
+        final StripedLongArray a = new StripedLongArray(2, 4);
+        LongBinaryOperator[] operators = { BucketValues.SUM, BucketValues.MAX };
+        long[][] rows = new long[4][];
+        rows[0] = a.rows[0];
+        a.rows = rows;
+        addFromNewThreads(a, 8);
+        assertEquals(8, a.sum(0));
+
+        // contended since the last decay
+        a.contended = true;
+        a.decay(operators);
+        assertSame(rows, a.rows);
+
+        a.decay(operators);
+        assertEquals(1, a.rows.length);
+        assertSame(rows[0], a.rows[0]);
+        assertEquals(8, a.sum(0));
+        assertEquals(42, a.max(1));
+
+        // a writer still holding the old table drains the retired row it updated into the first row
+        a.rows = rows;
+        addFromNewThreads(a, 8);
+        for (int r = 1; r < rows.length; r++) {
+            if (rows[r] != null) {
+                assertEquals(0, rows[r][StripedLongArray.PAD]);
+                assertEquals(0, rows[r][StripedLongArray.PAD + 1]);
+            }
+        }
+        assertEquals(16, a.sum(0));
+        assertEquals(42, a.max(1));
+    }
+
+    private static void addFromNewThreads(final StripedLongArray a, int threads) {
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    a.add(0, 1);
+                    a.updateMax(1, 42);
+                }
+
+            });
+            thread.start();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentAddsAreNotLostByReset() throws InterruptedException {
+        final StripedLongArray a = new StripedLongArray(1);
+        final AtomicLong taken = new AtomicLong();
+        final int threads = 4;
+        final int adds = 100000;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < adds; i++) {
+                        a.add(0, 1);
+                    }
+                    done.countDown();
+                }
+
+            }).start();
+        }
+        while (done.getCount() > 0) {
+            taken.addAndGet(a.sumThenReset(0));
+        }
+        done.await();
+        taken.addAndGet(a.sumThenReset(0));
+
+        assertEquals(threads * adds, taken.get());
+    }
+
+}